@@ -0,0 +1,229 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+
+import CPP.FoldVisitor;
+import CPP.Absyn.*;
+
+/**
+ * Finds the code of a type checked program that can't read a variable before
+ * assigning it. The Interpreter reports such a read as an error, while code
+ * keeping its variables unboxed starts them out as zero, so that code can
+ * only stand in for the Interpreter where no such read is possible.
+ *
+ * The check is the usual conservative one: a variable counts as assigned
+ * only where every path to there assigns it, whatever the conditions
+ * evaluate to. A function is safe if neither it nor anything it calls reads
+ * a variable before assigning it.
+ */
+public class DefiniteAssignment {
+
+    // functions each function calls directly, built-ins included
+    private HashMap<String,HashSet<String>> callees = new HashMap<String,HashSet<String>>();
+    private HashSet<String> safe = new HashSet<String>();
+
+    public DefiniteAssignment(Program p) {
+        for (Def f : ((PDefs)p).listdef_) {
+            DFun df = (DFun)f;
+            HashSet<String> ids = new HashSet<String>();
+            df.accept(new Callees(), ids);
+            callees.put(df.id_, ids);
+
+            // the arguments are assigned
+            State state = new State();
+            boolean reads = false;
+            for (Stm stm : df.liststm_) {
+                reads |= stm.accept(new Reads(), state);
+            }
+            if (!reads)
+                safe.add(df.id_);
+        }
+
+        // a function calling an unsafe function is unsafe
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (String id : callees.keySet()) {
+                if (safe.contains(id) && !callsSafe(callees.get(id))) {
+                    safe.remove(id);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    public boolean isSafe(String id) {
+        return safe.contains(id);
+    }
+
+    // true if s can't read a variable before assigning it, given that the variables in scope are assigned
+    public boolean isSafe(Stm s) {
+        HashSet<String> ids = new HashSet<String>();
+        s.accept(new Callees(), ids);
+        return !s.accept(new Reads(), new State()) && callsSafe(ids);
+    }
+
+    // built-ins read no variables
+    private boolean callsSafe(HashSet<String> ids) {
+        for (String id : ids) {
+            if (callees.containsKey(id) && !safe.contains(id))
+                return false;
+        }
+        return true;
+    }
+
+    private static class Callees extends FoldVisitor<Void, HashSet<String>> {
+        public Void leaf(HashSet<String> ids) { return null; }
+        public Void combine(Void x, Void y, HashSet<String> ids) { return null; }
+
+        public Void visit(EApp e, HashSet<String> ids) {
+            ids.add(e.id_);
+            return super.visit(e, ids);
+        }
+    }
+
+    // what may be unassigned at a point of a function
+    private static class State {
+        HashSet<String> unassigned = new HashSet<String>();
+        // after a return, where nothing runs
+        boolean unreachable;
+        // per block, whether the variables it declares were unassigned outside of it
+        LinkedList<HashMap<String,Boolean>> blocks;
+
+        State() {
+            blocks = new LinkedList<HashMap<String,Boolean>>();
+            blocks.add(new HashMap<String,Boolean>());
+        }
+
+        // a copy for a branch, which enters and leaves its own blocks
+        State branch() {
+            State s = new State();
+            s.unassigned.addAll(unassigned);
+            s.unreachable = unreachable;
+            s.blocks = blocks;
+            return s;
+        }
+
+        // where two branches meet
+        void merge(State other) {
+            if (unreachable) {
+                unassigned = other.unassigned;
+                unreachable = other.unreachable;
+            } else if (!other.unreachable) {
+                unassigned.addAll(other.unassigned);
+            }
+        }
+
+        void enterBlock() {
+            blocks.add(new HashMap<String,Boolean>());
+        }
+
+        void exitBlock() {
+            for (Map.Entry<String,Boolean> outer : blocks.pollLast().entrySet()) {
+                if (outer.getValue())
+                    unassigned.add(outer.getKey());
+                else
+                    unassigned.remove(outer.getKey());
+            }
+        }
+
+        void declare(String id, boolean assigned) {
+            if (!blocks.getLast().containsKey(id))
+                blocks.getLast().put(id, unassigned.contains(id));
+            assign(id, assigned);
+        }
+
+        void assign(String id, boolean assigned) {
+            if (assigned)
+                unassigned.remove(id);
+            else
+                unassigned.add(id);
+        }
+
+        boolean reads(String id) {
+            return !unreachable && unassigned.contains(id);
+        }
+    }
+
+    // True if code may read a variable before it is assigned, updating the
+    // state to after the code.
+    private static class Reads extends FoldVisitor<Boolean, State> {
+        public Boolean leaf(State state) { return false; }
+        public Boolean combine(Boolean x, Boolean y, State state) { return x || y; }
+
+        private Boolean block(Stm s, State state) {
+            state.enterBlock();
+            boolean reads = s.accept(this, state);
+            state.exitBlock();
+            return reads;
+        }
+
+        /* Stm */
+        public Boolean visit(SDecls s, State state) {
+            for (String id : s.listid_) {
+                state.declare(id, false);
+            }
+            return false;
+        }
+
+        public Boolean visit(SInit s, State state) {
+            boolean reads = s.exp_.accept(this, state);
+            state.declare(s.id_, true);
+            return reads;
+        }
+
+        public Boolean visit(SReturn s, State state) {
+            boolean reads = s.exp_.accept(this, state);
+            state.unreachable = true;
+            return reads;
+        }
+
+        public Boolean visit(SBlock s, State state) {
+            state.enterBlock();
+            boolean reads = false;
+            for (Stm stm : s.liststm_) {
+                reads |= stm.accept(this, state);
+            }
+            state.exitBlock();
+            return reads;
+        }
+
+        // the body may not run
+        public Boolean visit(SWhile s, State state) {
+            boolean reads = s.exp_.accept(this, state);
+            return block(s.stm_, state.branch()) || reads;
+        }
+
+        public Boolean visit(SIfElse s, State state) {
+            boolean reads = s.exp_.accept(this, state);
+            State other = state.branch();
+            reads |= block(s.stm_1, state);
+            reads |= block(s.stm_2, other);
+            state.merge(other);
+            return reads;
+        }
+
+        /* Exp */
+        public Boolean visit(EId e, State state) {
+            return state.reads(e.id_);
+        }
+
+        public Boolean visit(EAss e, State state) {
+            boolean reads = e.exp_2.accept(this, state);
+            state.assign(((EId)e.exp_1).id_, true);
+            return reads;
+        }
+
+        // the right operand may not run
+        public Boolean visit(EAnd e, State state) {
+            boolean reads = e.exp_1.accept(this, state);
+            return e.exp_2.accept(this, state.branch()) || reads;
+        }
+
+        public Boolean visit(EOr e, State state) {
+            boolean reads = e.exp_1.accept(this, state);
+            return e.exp_2.accept(this, state.branch()) || reads;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import CPP.ComposVisitor;
+import CPP.FoldVisitor;
+import CPP.Absyn.*;
+
+/**
+ * Replaces calls of small functions, and of functions called only once, by
+ * their bodies. Recursive functions and main are never inlined.
+ *
+ * A function whose body is a single return is substituted as an expression
+ * wherever it is called, as long as that evaluates every argument once and
+ * in order: each argument is a literal or a variable, or the arguments have
+ * no effects and can't fail and each parameter is used at most once. Only
+ * literals may go unused, as reading a variable fails while it's unassigned.
+ *
+ * Other functions are inlined where the call is a whole statement, the
+ * right hand side of an assignment statement, an initializer or a returned
+ * value. The body then runs in a block that first initializes the parameters
+ * from the arguments. Its variables are renamed to x$1, x$2, ... which can't
+ * capture a variable of the caller. A return at the end of the body becomes
+ * an assignment of the result. A return anywhere else also sets a flag,
+ * which skips the rest of the body and ends enclosing loops.
+ */
+public class Inliner extends ComposVisitor<Object> {
+
+    // bodies up to this many nodes are inlined
+    private static final int INLINE_SIZE = 24;
+
+    private HashMap<String,DFun> functions = new HashMap<String,DFun>();
+    // functions with their calls already inlined
+    private HashMap<String,DFun> inlined = new HashMap<String,DFun>();
+    // functions that may be inlined
+    private HashSet<String> inlinable = new HashSet<String>();
+    // number of fresh names so far
+    private int fresh;
+
+    public Program inline(Program p) {
+        HashMap<String,HashSet<String>> callees = new HashMap<String,HashSet<String>>();
+        HashMap<String,Integer> sites = new HashMap<String,Integer>();
+        for (Def f : ((PDefs)p).listdef_) {
+            DFun df = (DFun)f;
+            functions.put(df.id_, df);
+            HashSet<String> ids = new HashSet<String>();
+            df.accept(new Callees(), ids);
+            callees.put(df.id_, ids);
+            df.accept(new Sites(), sites);
+        }
+
+        for (String id : functions.keySet()) {
+            Integer n = sites.get(id);
+            boolean small = functions.get(id).accept(new Size(), null) <= INLINE_SIZE;
+            if (!id.equals("main") && (small || (n != null && n == 1)) && !reaches(id, id, callees, new HashSet<String>()))
+                inlinable.add(id);
+        }
+
+        ListDef defs = new ListDef();
+        for (Def f : ((PDefs)p).listdef_) {
+            defs.add(inlined(((DFun)f).id_));
+        }
+        return new PDefs(defs);
+    }
+
+    private static boolean reaches(String from, String to, HashMap<String,HashSet<String>> callees, HashSet<String> seen) {
+        if (!callees.containsKey(from) || !seen.add(from))
+            return false;
+        for (String callee : callees.get(from)) {
+            if (callee.equals(to) || reaches(callee, to, callees, seen))
+                return true;
+        }
+        return false;
+    }
+
+    // the function with all calls in it inlined, computed once
+    private DFun inlined(String id) {
+        DFun df = inlined.get(id);
+        if (df == null) {
+            df = (DFun)functions.get(id).accept(this, null);
+            inlined.put(id, df);
+        }
+        return df;
+    }
+
+    private ListStm stms(ListStm list, Object arg) {
+        ListStm stms = new ListStm();
+        for (Stm stm : list) {
+            stms.addAll(expand(stm, arg));
+        }
+        return stms;
+    }
+
+    // a single statement, which stays a block of its own if it was expanded
+    private Stm stm(Stm s, Object arg) {
+        ListStm stms = expand(s, arg);
+        if (stms.size() == 1)
+            return stms.getFirst();
+        return new SBlock(stms);
+    }
+
+    // the statements replacing s
+    private ListStm expand(Stm s, Object arg) {
+        ListStm stms = new ListStm();
+        if (s instanceof SExp && isInlinedCall(((SExp)s).exp_)) {
+            stms.addAll(body((EApp)((SExp)s).exp_, null, arg));
+        } else if (s instanceof SExp && ((SExp)s).exp_ instanceof EAss && isInlinedCall(((EAss)((SExp)s).exp_).exp_2)) {
+            EAss e = (EAss)((SExp)s).exp_;
+            stms.addAll(body((EApp)e.exp_2, ((EId)e.exp_1).id_, arg));
+        } else if (s instanceof SInit && isInlinedCall(((SInit)s).exp_)) {
+            // the arguments can't see the initialized variable, so the result goes through another one
+            SInit init = (SInit)s;
+            String result = freshName(init.id_);
+            stms.add(new SDecls(init.type_, single(result)));
+            stms.addAll(body((EApp)init.exp_, result, arg));
+            stms.add(new SInit(init.type_, init.id_, new EId(result)));
+        } else if (s instanceof SReturn && isInlinedCall(((SReturn)s).exp_)
+                && !(functions.get(((EApp)((SReturn)s).exp_).id_).type_ instanceof Type_void)) {
+            EApp call = (EApp)((SReturn)s).exp_;
+            String result = freshName(call.id_);
+            stms.add(new SDecls(functions.get(call.id_).type_, single(result)));
+            stms.addAll(body(call, result, arg));
+            stms.add(new SReturn(new EId(result)));
+        } else {
+            stms.add(s.accept(this, arg));
+        }
+        return stms;
+    }
+
+    private static boolean isLiteral(Exp e) {
+        return e instanceof EInt || e instanceof EDouble || e instanceof ETrue || e instanceof EFalse;
+    }
+
+    private static ListId single(String id) {
+        ListId ids = new ListId();
+        ids.add(id);
+        return ids;
+    }
+
+    private String freshName(String id) {
+        return id + "$" + ++fresh;
+    }
+
+    // a call whose body is inlined as statements
+    private boolean isInlinedCall(Exp e) {
+        return e instanceof EApp && inlinable.contains(((EApp)e).id_) && substitution((EApp)e) == null;
+    }
+
+    // the body of the called function as a block, which assigns the result to result unless it's null
+    private ListStm body(EApp call, String result, Object arg) {
+        DFun df = inlined(call.id_);
+        Body body = new Body(result);
+
+        ListStm stms = new ListStm();
+        ListIterator<Exp> args = call.listexp_.listIterator();
+        for (Arg a : df.listarg_) {
+            ADecl decl = (ADecl)a;
+            stms.add(new SInit(decl.type_, body.declare(decl.id_), args.next().accept(this, arg)));
+        }
+        ListStm lowered = body.stms(df.liststm_, true);
+        if (body.flag != null)
+            stms.add(new SInit(new Type_bool(), body.flag, new EFalse()));
+        stms.addAll(lowered);
+
+        ListStm block = new ListStm();
+        block.add(new SBlock(stms));
+        return block;
+    }
+
+    // the returned expression with the arguments in place of the parameters,
+    // null if the call can't be substituted
+    private Exp substitution(EApp call) {
+        if (!inlinable.contains(call.id_))
+            return null;
+        DFun df = inlined(call.id_);
+        if (df.liststm_.size() != 1 || !(df.liststm_.getFirst() instanceof SReturn) || df.type_ instanceof Type_void)
+            return null;
+        Exp e = ((SReturn)df.liststm_.getFirst()).exp_;
+        // the parameters become variables of the caller, so they must stay unchanged
+        HashSet<String> assigned = new HashSet<String>();
+        e.accept(new Optimizer.Assigned(), assigned);
+        if (!assigned.isEmpty())
+            return null;
+
+        boolean simple = true, harmless = true;
+        for (Exp arg : call.listexp_) {
+            simple &= isLiteral(arg) || arg instanceof EId;
+            harmless &= arg.accept(new Harmless(), null);
+        }
+        HashMap<String,Exp> args = new HashMap<String,Exp>();
+        ListIterator<Exp> it = call.listexp_.listIterator();
+        for (Arg a : df.listarg_) {
+            String id = ((ADecl)a).id_;
+            Exp arg = it.next();
+            int uses = e.accept(new Uses(), id);
+            if (!simple && !(harmless && uses <= 1))
+                return null;
+            if (uses == 0 && !isLiteral(arg))
+                return null;
+            args.put(id, arg);
+        }
+        return e.accept(new Substitute(), args);
+    }
+
+    /* Def */
+    public Def visit(DFun df, Object arg) {
+        return new DFun(df.type_, df.id_, df.listarg_, stms(df.liststm_, arg));
+    }
+
+    /* Stm */
+    public Stm visit(SWhile s, Object arg) { return new SWhile(s.exp_.accept(this, arg), stm(s.stm_, arg)); }
+    public Stm visit(SBlock s, Object arg) { return new SBlock(stms(s.liststm_, arg)); }
+    public Stm visit(SIfElse s, Object arg) {
+        return new SIfElse(s.exp_.accept(this, arg), stm(s.stm_1, arg), stm(s.stm_2, arg));
+    }
+
+    /* Exp */
+    public Exp visit(EApp e, Object arg) {
+        ListExp args = new ListExp();
+        for (Exp exp : e.listexp_) {
+            args.add(exp.accept(this, arg));
+        }
+        EApp call = new EApp(e.id_, args);
+        Exp substituted = substitution(call);
+        return substituted != null ? substituted : call;
+    }
+
+    // Renames the variables of an inlined body and replaces its returns.
+    // Statements after a return that isn't at the end run only while the
+    // flag is false.
+    private class Body extends ComposVisitor<Object> {
+        final String result;
+        // null until a return needs it
+        String flag;
+        // new names of the variables of the body, innermost block last
+        final LinkedList<HashMap<String,String>> scopes = new LinkedList<HashMap<String,String>>();
+
+        Body(String result) {
+            this.result = result;
+            scopes.add(new HashMap<String,String>());
+        }
+
+        String declare(String id) {
+            String name = freshName(id);
+            scopes.getLast().put(id, name);
+            return name;
+        }
+
+        private String lookup(String id) {
+            // search from current to earlier blocks
+            ListIterator<HashMap<String,String>> listIterator = scopes.listIterator(scopes.size());
+
+            while(listIterator.hasPrevious()) {
+                HashMap<String,String> scope = listIterator.previous();
+                if (scope.containsKey(id))
+                    return scope.get(id);
+            }
+            throw new RuntimeException("Var " + id + " could not be resolved.");
+        }
+
+        // the statements of a list, last tells whether nothing follows them in the function
+        ListStm stms(ListStm list, boolean last) {
+            ListStm stms = new ListStm();
+            ListIterator<Stm> it = list.listIterator();
+            while (it.hasNext()) {
+                Stm s = it.next();
+                boolean end = last && !it.hasNext();
+                if (s instanceof SReturn) {
+                    stms.addAll(ret((SReturn)s, last));
+                    // the rest can't be reached
+                    return stms;
+                }
+                stms.add(stm(s, end));
+                if (it.hasNext() && s.accept(new Returns(), null)) {
+                    ListStm rest = new ListStm();
+                    while (it.hasNext()) {
+                        rest.add(it.next());
+                    }
+                    stms.add(new SIfElse(new EId(flag), new SBlock(new ListStm()), new SBlock(stms(rest, last))));
+                }
+            }
+            return stms;
+        }
+
+        private Stm stm(Stm s, boolean last) {
+            if (s instanceof SReturn)
+                return new SBlock(ret((SReturn)s, last));
+            if (s instanceof SBlock) {
+                scopes.add(new HashMap<String,String>());
+                Stm block = new SBlock(stms(((SBlock)s).liststm_, last));
+                scopes.pollLast();
+                return block;
+            }
+            if (s instanceof SIfElse) {
+                SIfElse i = (SIfElse)s;
+                return new SIfElse(i.exp_.accept(this, null), arm(i.stm_1, last), arm(i.stm_2, last));
+            }
+            if (s instanceof SWhile) {
+                SWhile w = (SWhile)s;
+                Exp exp = w.exp_.accept(this, null);
+                Stm body = arm(w.stm_, false);
+                if (w.stm_.accept(new Returns(), null))
+                    exp = new EAnd(new EEq(new EId(flag), new EFalse()), exp);
+                return new SWhile(exp, body);
+            }
+            return s.accept(this, null);
+        }
+
+        private Stm arm(Stm s, boolean last) {
+            scopes.add(new HashMap<String,String>());
+            Stm stm = stm(s, last);
+            scopes.pollLast();
+            return stm;
+        }
+
+        private ListStm ret(SReturn s, boolean last) {
+            ListStm stms = new ListStm();
+            Exp e = s.exp_.accept(this, null);
+            if (result != null)
+                stms.add(new SExp(new EAss(new EId(result), e)));
+            else if (!isLiteral(e))
+                // the value isn't needed, only its effects and failures
+                stms.add(new SExp(e));
+            if (!last) {
+                if (flag == null)
+                    flag = freshName("returned");
+                stms.add(new SExp(new EAss(new EId(flag), new ETrue())));
+            }
+            return stms;
+        }
+
+        /* Stm */
+        public Stm visit(SDecls s, Object arg) {
+            ListId ids = new ListId();
+            for (String id : s.listid_) {
+                ids.add(declare(id));
+            }
+            return new SDecls(s.type_, ids);
+        }
+
+        public Stm visit(SInit s, Object arg) {
+            // the initializer can't see the variable it initializes
+            Exp exp = s.exp_.accept(this, arg);
+            return new SInit(s.type_, declare(s.id_), exp);
+        }
+
+        /* Exp */
+        public Exp visit(EId e, Object arg) { return new EId(lookup(e.id_)); }
+    }
+
+    // replaces parameters by the arguments of a call
+    private static class Substitute extends ComposVisitor<HashMap<String,Exp>> {
+        public Exp visit(EId e, HashMap<String,Exp> args) { return args.get(e.id_); }
+    }
+
+    // true if a statement contains a return
+    private static class Returns extends FoldVisitor<Boolean, Object> {
+        public Boolean leaf(Object arg) { return false; }
+        public Boolean combine(Boolean x, Boolean y, Object arg) { return x || y; }
+        public Boolean visit(SReturn s, Object arg) { return true; }
+    }
+
+    // true if an expression has no effects and can't fail
+    private static class Harmless extends FoldVisitor<Boolean, Object> {
+        public Boolean leaf(Object arg) { return true; }
+        public Boolean combine(Boolean x, Boolean y, Object arg) { return x && y; }
+        public Boolean visit(EApp e, Object arg) { return false; }
+        public Boolean visit(EPostIncr e, Object arg) { return false; }
+        public Boolean visit(EPostDecr e, Object arg) { return false; }
+        public Boolean visit(EPreIncr e, Object arg) { return false; }
+        public Boolean visit(EPreDecr e, Object arg) { return false; }
+        public Boolean visit(EAss e, Object arg) { return false; }
+        public Boolean visit(EDiv e, Object arg) { return false; }
+    }
+
+    // number of occurrences of a variable
+    private static class Uses extends FoldVisitor<Integer, String> {
+        public Integer leaf(String id) { return 0; }
+        public Integer combine(Integer x, Integer y, String id) { return x + y; }
+        public Integer visit(EId e, String id) { return e.id_.equals(id) ? 1 : 0; }
+    }
+
+    // number of nodes of a function
+    private static class Size extends FoldVisitor<Integer, Object> {
+        public Integer leaf(Object arg) { return 1; }
+        public Integer combine(Integer x, Integer y, Object arg) { return x + y; }
+    }
+
+    // number of calls of every function
+    private static class Sites extends FoldVisitor<Void, HashMap<String,Integer>> {
+        public Void leaf(HashMap<String,Integer> sites) { return null; }
+        public Void combine(Void x, Void y, HashMap<String,Integer> sites) { return null; }
+
+        public Void visit(EApp e, HashMap<String,Integer> sites) {
+            sites.merge(e.id_, 1, Integer::sum);
+            for (Exp arg : e.listexp_) {
+                arg.accept(this, sites);
+            }
+            return null;
+        }
+    }
+
+    // collects the functions a function calls
+    private static class Callees extends FoldVisitor<Void, HashSet<String>> {
+        public Void leaf(HashSet<String> ids) { return null; }
+        public Void combine(Void x, Void y, HashSet<String> ids) { return null; }
+
+        public Void visit(EApp e, HashSet<String> ids) {
+            ids.add(e.id_);
+            for (Exp arg : e.listexp_) {
+                arg.accept(this, ids);
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import CPP.ComposVisitor;
+import CPP.FoldVisitor;
+import CPP.Absyn.*;
+
+/**
+ * Simplifies a type checked program before it is run or compiled. Operators
+ * with literal operands are folded, variables initialized with a literal and
+ * never assigned afterwards are replaced by that literal, and branches and
+ * loops whose condition is a literal are reduced to what can actually run.
+ *
+ * The returned tree is a copy of the input made of the plain CPP.Absyn
+ * classes, so every later pass can consume it.
+ */
+public class Optimizer extends ComposVisitor<Object> {
+
+    // variables that are assigned somewhere in the current function
+    private HashSet<String> assigned;
+    // literal value of every visible variable, null for variables that aren't constant
+    private LinkedList<HashMap<String,Exp>> scopes = new LinkedList<HashMap<String,Exp>>();
+
+    public Program optimize(Program p) {
+        return p.accept(this, null);
+    }
+
+    private static boolean isLiteral(Exp e) {
+        return e instanceof EInt || e instanceof EDouble || e instanceof ETrue || e instanceof EFalse;
+    }
+
+    private static Exp bool(boolean b) {
+        return b ? new ETrue() : new EFalse();
+    }
+
+    private Exp lookup(String id) {
+        // search from current to earlier blocks
+        ListIterator<HashMap<String,Exp>> listIterator = scopes.listIterator(scopes.size());
+
+        while(listIterator.hasPrevious()) {
+            HashMap<String,Exp> scope = listIterator.previous();
+            if (scope.containsKey(id))
+                return scope.get(id);
+        }
+        return null;
+    }
+
+    // optimizes s as a block of its own, as the arms of if and while are
+    private Stm block(Stm s, Object arg) {
+        scopes.add(new HashMap<String,Exp>());
+        Stm stm = s.accept(this, arg);
+        scopes.pollLast();
+        return stm;
+    }
+
+    private static boolean isEmpty(Stm s) {
+        return s instanceof SBlock && ((SBlock)s).liststm_.isEmpty();
+    }
+
+    private ListStm stms(ListStm list, Object arg) {
+        ListStm stms = new ListStm();
+        for (Stm stm : list) {
+            Stm s = stm.accept(this, arg);
+            if (!isEmpty(s))
+                stms.add(s);
+        }
+        return stms;
+    }
+
+    /* Def */
+    public Def visit(DFun df, Object arg) {
+        assigned = new HashSet<String>();
+        df.accept(new Assigned(), assigned);
+        scopes.clear();
+        scopes.add(new HashMap<String,Exp>());
+
+        for (Arg a : df.listarg_) {
+            scopes.getLast().put(((ADecl)a).id_, null);
+        }
+        return new DFun(df.type_, df.id_, df.listarg_, stms(df.liststm_, arg));
+    }
+
+    /* Stm */
+    public Stm visit(SDecls s, Object arg) {
+        for (String id : s.listid_) {
+            scopes.getLast().put(id, null);
+        }
+        return s;
+    }
+
+    public Stm visit(SInit s, Object arg) {
+        // the initializer can't see the variable it initializes
+        Exp exp = s.exp_.accept(this, arg);
+        if (isLiteral(exp) && !assigned.contains(s.id_)) {
+            // every use is replaced, the variable itself is not needed
+            scopes.getLast().put(s.id_, exp);
+            return new SBlock(new ListStm());
+        }
+        scopes.getLast().put(s.id_, null);
+        return new SInit(s.type_, s.id_, exp);
+    }
+
+    public Stm visit(SWhile s, Object arg) {
+        Exp exp = s.exp_.accept(this, arg);
+        if (exp instanceof EFalse)
+            return new SBlock(new ListStm());
+        return new SWhile(exp, block(s.stm_, arg));
+    }
+
+    public Stm visit(SBlock s, Object arg) {
+        scopes.add(new HashMap<String,Exp>());
+        ListStm stms = stms(s.liststm_, arg);
+        scopes.pollLast();
+        return new SBlock(stms);
+    }
+
+    public Stm visit(SIfElse s, Object arg) {
+        Exp exp = s.exp_.accept(this, arg);
+        // the arm that runs stays a block, so its declarations stay local
+        if (exp instanceof ETrue)
+            return asBlock(block(s.stm_1, arg));
+        if (exp instanceof EFalse)
+            return asBlock(block(s.stm_2, arg));
+        return new SIfElse(exp, block(s.stm_1, arg), block(s.stm_2, arg));
+    }
+
+    private static Stm asBlock(Stm s) {
+        if (s instanceof SBlock)
+            return s;
+        ListStm stms = new ListStm();
+        stms.add(s);
+        return new SBlock(stms);
+    }
+
+    /* Exp */
+    public Exp visit(EId e, Object arg) {
+        Exp v = lookup(e.id_);
+        if (v == null)
+            return new EId(e.id_);
+        // literals are immutable, but every occurrence gets its own node
+        return v.accept(this, arg);
+    }
+
+    public Exp visit(ETimes e, Object arg) {
+        Exp e1 = e.exp_1.accept(this, arg), e2 = e.exp_2.accept(this, arg);
+        if (e1 instanceof EInt && e2 instanceof EInt)
+            return new EInt(((EInt)e1).integer_ * ((EInt)e2).integer_);
+        if (e1 instanceof EDouble && e2 instanceof EDouble)
+            return new EDouble(((EDouble)e1).double_ * ((EDouble)e2).double_);
+        return new ETimes(e1, e2);
+    }
+
+    public Exp visit(EDiv e, Object arg) {
+        Exp e1 = e.exp_1.accept(this, arg), e2 = e.exp_2.accept(this, arg);
+        // division by zero is left to fail at run time
+        if (e1 instanceof EInt && e2 instanceof EInt && ((EInt)e2).integer_ != 0)
+            return new EInt(((EInt)e1).integer_ / ((EInt)e2).integer_);
+        if (e1 instanceof EDouble && e2 instanceof EDouble)
+            return new EDouble(((EDouble)e1).double_ / ((EDouble)e2).double_);
+        return new EDiv(e1, e2);
+    }
+
+    public Exp visit(EPlus e, Object arg) {
+        Exp e1 = e.exp_1.accept(this, arg), e2 = e.exp_2.accept(this, arg);
+        if (e1 instanceof EInt && e2 instanceof EInt)
+            return new EInt(((EInt)e1).integer_ + ((EInt)e2).integer_);
+        if (e1 instanceof EDouble && e2 instanceof EDouble)
+            return new EDouble(((EDouble)e1).double_ + ((EDouble)e2).double_);
+        return new EPlus(e1, e2);
+    }
+
+    public Exp visit(EMinus e, Object arg) {
+        Exp e1 = e.exp_1.accept(this, arg), e2 = e.exp_2.accept(this, arg);
+        if (e1 instanceof EInt && e2 instanceof EInt)
+            return new EInt(((EInt)e1).integer_ - ((EInt)e2).integer_);
+        if (e1 instanceof EDouble && e2 instanceof EDouble)
+            return new EDouble(((EDouble)e1).double_ - ((EDouble)e2).double_);
+        return new EMinus(e1, e2);
+    }
+
+    // < > <= >= == != of two literals, null if they aren't literals
+    private static Exp compare(Exp e1, Exp e2, int op) {
+        int c;
+        if (e1 instanceof EInt && e2 instanceof EInt)
+            c = Integer.compare(((EInt)e1).integer_, ((EInt)e2).integer_);
+        else if (e1 instanceof EDouble && e2 instanceof EDouble) {
+            double d1 = ((EDouble)e1).double_, d2 = ((EDouble)e2).double_;
+            // comparisons with NaN are false, except for !=
+            if (Double.isNaN(d1) || Double.isNaN(d2))
+                return bool(op == NE);
+            c = d1 < d2 ? -1 : d1 > d2 ? 1 : 0;
+        } else if ((e1 instanceof ETrue || e1 instanceof EFalse) && (e2 instanceof ETrue || e2 instanceof EFalse))
+            c = e1.getClass() == e2.getClass() ? 0 : 1;
+        else
+            return null;
+
+        switch (op) {
+            case LT: return bool(c < 0);
+            case GT: return bool(c > 0);
+            case LE: return bool(c <= 0);
+            case GE: return bool(c >= 0);
+            case EQ: return bool(c == 0);
+            default: return bool(c != 0);
+        }
+    }
+
+    private static final int LT = 0, GT = 1, LE = 2, GE = 3, EQ = 4, NE = 5;
+
+    public Exp visit(ELt e, Object arg) {
+        Exp e1 = e.exp_1.accept(this, arg), e2 = e.exp_2.accept(this, arg);
+        Exp c = compare(e1, e2, LT);
+        return c != null ? c : new ELt(e1, e2);
+    }
+
+    public Exp visit(EGt e, Object arg) {
+        Exp e1 = e.exp_1.accept(this, arg), e2 = e.exp_2.accept(this, arg);
+        Exp c = compare(e1, e2, GT);
+        return c != null ? c : new EGt(e1, e2);
+    }
+
+    public Exp visit(ELtEq e, Object arg) {
+        Exp e1 = e.exp_1.accept(this, arg), e2 = e.exp_2.accept(this, arg);
+        Exp c = compare(e1, e2, LE);
+        return c != null ? c : new ELtEq(e1, e2);
+    }
+
+    public Exp visit(EGtEq e, Object arg) {
+        Exp e1 = e.exp_1.accept(this, arg), e2 = e.exp_2.accept(this, arg);
+        Exp c = compare(e1, e2, GE);
+        return c != null ? c : new EGtEq(e1, e2);
+    }
+
+    public Exp visit(EEq e, Object arg) {
+        Exp e1 = e.exp_1.accept(this, arg), e2 = e.exp_2.accept(this, arg);
+        Exp c = compare(e1, e2, EQ);
+        return c != null ? c : new EEq(e1, e2);
+    }
+
+    public Exp visit(ENEq e, Object arg) {
+        Exp e1 = e.exp_1.accept(this, arg), e2 = e.exp_2.accept(this, arg);
+        Exp c = compare(e1, e2, NE);
+        return c != null ? c : new ENEq(e1, e2);
+    }
+
+    // only a literal left operand decides, the right one may have effects
+    public Exp visit(EAnd e, Object arg) {
+        Exp e1 = e.exp_1.accept(this, arg), e2 = e.exp_2.accept(this, arg);
+        if (e1 instanceof EFalse)
+            return e1;
+        if (e1 instanceof ETrue)
+            return e2;
+        return new EAnd(e1, e2);
+    }
+
+    public Exp visit(EOr e, Object arg) {
+        Exp e1 = e.exp_1.accept(this, arg), e2 = e.exp_2.accept(this, arg);
+        if (e1 instanceof ETrue)
+            return e1;
+        if (e1 instanceof EFalse)
+            return e2;
+        return new EOr(e1, e2);
+    }
+
+    // collects the variables a function assigns or increments
+    static class Assigned extends FoldVisitor<Void, HashSet<String>> {
+        public Void leaf(HashSet<String> ids) { return null; }
+        public Void combine(Void x, Void y, HashSet<String> ids) { return null; }
+
+        public Void visit(EAss e, HashSet<String> ids) {
+            ids.add(((EId)e.exp_1).id_);
+            return e.exp_2.accept(this, ids);
+        }
+        public Void visit(EPostIncr e, HashSet<String> ids) { ids.add(((EId)e.exp_).id_); return null; }
+        public Void visit(EPostDecr e, HashSet<String> ids) { ids.add(((EId)e.exp_).id_); return null; }
+        public Void visit(EPreIncr e, HashSet<String> ids) { ids.add(((EId)e.exp_).id_); return null; }
+        public Void visit(EPreDecr e, HashSet<String> ids) { ids.add(((EId)e.exp_).id_); return null; }
+    }
+}
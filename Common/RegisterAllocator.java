@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Assigns registers to the values of a function in {@link SSA} form, for a
+ * backend to lower it. Values that are live at the same time interfere and
+ * get different registers; the graph is colored greedily in the order of the
+ * blocks, preferring the register of a related phi so that its copy
+ * disappears.
+ *
+ * Doubles have a file of registers of their own, ints and bools share the
+ * other. Parameter i is in register i of its file, so the parameters have to
+ * come first in the entry block. Constants only get a register if they are
+ * among the loaded ones, the others are left for the backend to inline.
+ */
+public class RegisterAllocator {
+
+    // register of every value by id, -1 for those without one
+    public final int[] register;
+    // registers used in each file
+    public int ints, doubles;
+
+    private final Set<SSA.Value> loaded;
+
+    public RegisterAllocator(SSA.Function fn, Set<SSA.Value> loaded) {
+        this.loaded = loaded;
+        HashMap<SSA.Value, HashSet<SSA.Value>> graph = interference(fn);
+        HashMap<SSA.Value, ArrayList<SSA.Value>> related = new HashMap<SSA.Value, ArrayList<SSA.Value>>();
+        for (SSA.Block b : fn.blocks) {
+            for (SSA.Value phi : b.phis) {
+                for (SSA.Value arg : phi.args) {
+                    relate(related, phi, arg);
+                    relate(related, arg, phi);
+                }
+            }
+        }
+
+        register = new int[fn.valueCount()];
+        Arrays.fill(register, -1);
+        ints = doubles = fn.paramTypes.length;
+        for (SSA.Block b : fn.blocks) {
+            for (SSA.Value v : b.phis) {
+                register[v.id] = color(v, graph.get(v), related.get(v));
+            }
+            for (SSA.Value v : b.code) {
+                if (v.op == SSA.PARAM)
+                    register[v.id] = v.index;
+                else if (v.type != SSA.VOID && (!v.isConstant() || loaded.contains(v)))
+                    register[v.id] = color(v, graph.get(v), related.get(v));
+            }
+        }
+    }
+
+    // values that are live at the same time can't share a register
+    private HashMap<SSA.Value, HashSet<SSA.Value>> interference(SSA.Function fn) {
+        // live values at the start of every block, without its phis
+        HashMap<SSA.Block, HashSet<SSA.Value>> liveIn = new HashMap<SSA.Block, HashSet<SSA.Value>>();
+        for (SSA.Block b : fn.blocks) {
+            liveIn.put(b, new HashSet<SSA.Value>());
+        }
+        HashMap<SSA.Value, HashSet<SSA.Value>> graph = new HashMap<SSA.Value, HashSet<SSA.Value>>();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = fn.blocks.size() - 1; i >= 0; i--) {
+                SSA.Block b = fn.blocks.get(i);
+                HashSet<SSA.Value> live = liveOut(b, liveIn);
+                for (int k = b.code.size() - 1; k >= 0; k--) {
+                    SSA.Value v = b.code.get(k);
+                    live.remove(v);
+                    addUses(live, v);
+                }
+                live.removeAll(b.phis);
+                changed |= liveIn.get(b).addAll(live);
+            }
+        }
+
+        for (SSA.Block b : fn.blocks) {
+            HashSet<SSA.Value> live = liveOut(b, liveIn);
+            for (int k = b.code.size() - 1; k >= 0; k--) {
+                SSA.Value v = b.code.get(k);
+                live.remove(v);
+                // parameters are all in place on entry
+                if (v.op == SSA.PARAM)
+                    live.addAll(b.code.subList(0, k));
+                interfere(graph, v, live);
+                addUses(live, v);
+            }
+            // phis are all defined at once on entry
+            live.addAll(b.phis);
+            for (SSA.Value phi : b.phis) {
+                live.remove(phi);
+                interfere(graph, phi, live);
+                live.add(phi);
+            }
+        }
+        return graph;
+    }
+
+    private HashSet<SSA.Value> liveOut(SSA.Block b, HashMap<SSA.Block, HashSet<SSA.Value>> liveIn) {
+        HashSet<SSA.Value> live = new HashSet<SSA.Value>();
+        for (SSA.Block s : b.succs) {
+            live.addAll(liveIn.get(s));
+            int k = s.preds.indexOf(b);
+            for (SSA.Value phi : s.phis) {
+                addUse(live, phi.args[k]);
+            }
+        }
+        if (b.operand != null)
+            addUse(live, b.operand);
+        return live;
+    }
+
+    private void addUses(HashSet<SSA.Value> live, SSA.Value v) {
+        for (SSA.Value arg : v.args) {
+            addUse(live, arg);
+        }
+    }
+
+    private void addUse(HashSet<SSA.Value> live, SSA.Value v) {
+        if (!v.isConstant() || loaded.contains(v))
+            live.add(v);
+    }
+
+    private static void interfere(HashMap<SSA.Value, HashSet<SSA.Value>> graph, SSA.Value v, HashSet<SSA.Value> live) {
+        for (SSA.Value w : live) {
+            if ((v.type == SSA.DOUBLE) != (w.type == SSA.DOUBLE))
+                continue;
+            neighbours(graph, v).add(w);
+            neighbours(graph, w).add(v);
+        }
+    }
+
+    private static HashSet<SSA.Value> neighbours(HashMap<SSA.Value, HashSet<SSA.Value>> graph, SSA.Value v) {
+        HashSet<SSA.Value> n = graph.get(v);
+        if (n == null) {
+            n = new HashSet<SSA.Value>();
+            graph.put(v, n);
+        }
+        return n;
+    }
+
+    private static void relate(HashMap<SSA.Value, ArrayList<SSA.Value>> related, SSA.Value v, SSA.Value w) {
+        ArrayList<SSA.Value> r = related.get(v);
+        if (r == null) {
+            r = new ArrayList<SSA.Value>();
+            related.put(v, r);
+        }
+        r.add(w);
+    }
+
+    private int color(SSA.Value v, HashSet<SSA.Value> neighbours, ArrayList<SSA.Value> related) {
+        HashSet<Integer> taken = new HashSet<Integer>();
+        if (neighbours != null) {
+            for (SSA.Value w : neighbours) {
+                if (register[w.id] >= 0)
+                    taken.add(register[w.id]);
+            }
+        }
+        if (related != null) {
+            for (SSA.Value w : related) {
+                if (register[w.id] >= 0 && !taken.contains(register[w.id]))
+                    return register[w.id];
+            }
+        }
+        int r = 0;
+        while (taken.contains(r)) {
+            r++;
+        }
+        if (v.type == SSA.DOUBLE)
+            doubles = Math.max(doubles, r + 1);
+        else
+            ints = Math.max(ints, r + 1);
+        return r;
+    }
+}
@@ -0,0 +1,287 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Control flow graph of a function in static single assignment form. The
+ * {@link SSABuilder} builds it from a type checked program, the
+ * {@link SSAOptimizer} simplifies it and a backend lowers it to its code.
+ *
+ * Every value is computed by exactly one instruction, which is the value
+ * itself. Phis sit at the start of a block and have one argument per
+ * predecessor, in the order of {@code preds}. Bools are ints 0 and 1.
+ */
+public class SSA {
+
+    // types of values
+    public static final int VOID = 0, INT = 1, DOUBLE = 2, BOOL = 3;
+
+    // operations of values
+    public static final int CONST = 0, PARAM = 1, PHI = 2, CALL = 3;
+    public static final int ADD = 4, SUB = 5, MUL = 6, DIV = 7;
+    public static final int LT = 8, GT = 9, LE = 10, GE = 11, EQ = 12, NE = 13;
+
+    // ends of blocks
+    public static final int JUMP = 0, BRANCH = 1, RETURN = 2;
+
+    private static final String[] NAMES = {
+        "const", "param", "phi", "call", "add", "sub", "mul", "div", "lt", "gt", "le", "ge", "eq", "ne"
+    };
+
+    public static final class Value {
+        // an optimization may turn a value into a constant in place
+        public int op;
+        public final int type;
+        public Value[] args;
+        public Block block;
+        // unique in its function, in order of creation
+        public final int id;
+
+        // CONST: the constant, ints and bools in intConstant
+        public int intConstant;
+        public double doubleConstant;
+        // PARAM: the position of the parameter
+        public int index;
+        // CALL: the called function, built-ins included
+        public String function;
+
+        Value(int op, int type, Value[] args, int id) {
+            this.op = op;
+            this.type = type;
+            this.args = args;
+            this.id = id;
+        }
+
+        public boolean isConstant() {
+            return op == CONST;
+        }
+
+        public void makeConstant(int i, double d) {
+            op = CONST;
+            args = new Value[0];
+            intConstant = i;
+            doubleConstant = d;
+        }
+
+        public String toString() {
+            return "v" + id;
+        }
+    }
+
+    public static final class Block {
+        public final int id;
+        public final ArrayList<Value> phis = new ArrayList<Value>();
+        public final ArrayList<Value> code = new ArrayList<Value>();
+        public final ArrayList<Block> preds = new ArrayList<Block>();
+
+        // JUMP to succs[0], BRANCH on operand to succs[0] if true and
+        // succs[1] if false, or RETURN operand, which is null in void functions
+        public int end = -1;
+        public Value operand;
+        public Block[] succs = new Block[0];
+
+        Block(int id) {
+            this.id = id;
+        }
+
+        public String toString() {
+            return "b" + id;
+        }
+    }
+
+    public static final class Function {
+        public final String name;
+        public final int type;
+        public final int[] paramTypes;
+        // entry block first
+        public final ArrayList<Block> blocks = new ArrayList<Block>();
+        private int values, blockIds;
+
+        public Function(String name, int type, int[] paramTypes) {
+            this.name = name;
+            this.type = type;
+            this.paramTypes = paramTypes;
+        }
+
+        public Block entry() {
+            return blocks.get(0);
+        }
+
+        // number of values created so far, every id is below it
+        public int valueCount() {
+            return values;
+        }
+
+        public Block newBlock() {
+            Block b = new Block(blockIds++);
+            blocks.add(b);
+            return b;
+        }
+
+        public Value newValue(int op, int type, Value... args) {
+            return new Value(op, type, args, values++);
+        }
+
+        // the edge from b to a new block, which jumps on to the old successor
+        public Block split(Block b, int succ) {
+            Block to = b.succs[succ];
+            Block e = newBlock();
+            e.end = JUMP;
+            e.succs = new Block[] { to };
+            e.preds.add(b);
+            b.succs[succ] = e;
+            to.preds.set(to.preds.indexOf(b), e);
+            return e;
+        }
+
+        // a block of its own on every edge from a branch to a block with phis,
+        // where the copies for the phis can go
+        public void splitCriticalEdges() {
+            for (Block b : new ArrayList<Block>(blocks)) {
+                if (b.end != BRANCH)
+                    continue;
+                for (int i = 0; i < b.succs.length; i++) {
+                    if (!b.succs[i].phis.isEmpty())
+                        split(b, i);
+                }
+            }
+            // back into reverse postorder
+            removeUnreachable();
+        }
+
+        // removes the edge from b to one of its successors, with its phi arguments
+        public void removeEdge(Block b, Block to) {
+            int i = to.preds.indexOf(b);
+            to.preds.remove(i);
+            for (Value phi : to.phis) {
+                Value[] args = new Value[phi.args.length - 1];
+                System.arraycopy(phi.args, 0, args, 0, i);
+                System.arraycopy(phi.args, i + 1, args, i, args.length - i);
+                phi.args = args;
+            }
+        }
+
+        // drops the blocks that can't be reached from the entry and orders
+        // the others in reverse postorder
+        public void removeUnreachable() {
+            ArrayList<Block> order = new ArrayList<Block>();
+            postorder(entry(), new HashSet<Block>(), order);
+            HashSet<Block> reachable = new HashSet<Block>(order);
+            for (Block b : blocks) {
+                if (reachable.contains(b))
+                    continue;
+                for (Block s : b.succs) {
+                    if (reachable.contains(s))
+                        removeEdge(b, s);
+                }
+            }
+            blocks.clear();
+            for (int i = order.size() - 1; i >= 0; i--) {
+                blocks.add(order.get(i));
+            }
+        }
+
+        private static void postorder(Block b, HashSet<Block> seen, ArrayList<Block> order) {
+            seen.add(b);
+            for (Block s : b.succs) {
+                if (!seen.contains(s))
+                    postorder(s, seen, order);
+            }
+            order.add(b);
+        }
+
+        // replaces every use of a key by its value, following chains of replacements
+        public void replace(HashMap<Value, Value> replaced) {
+            if (replaced.isEmpty())
+                return;
+            for (Block b : blocks) {
+                for (Value v : b.phis) {
+                    replaceArgs(v, replaced);
+                }
+                for (Value v : b.code) {
+                    replaceArgs(v, replaced);
+                }
+                if (b.operand != null)
+                    b.operand = resolve(b.operand, replaced);
+            }
+        }
+
+        private static void replaceArgs(Value v, HashMap<Value, Value> replaced) {
+            for (int i = 0; i < v.args.length; i++) {
+                v.args[i] = resolve(v.args[i], replaced);
+            }
+        }
+
+        private static Value resolve(Value v, HashMap<Value, Value> replaced) {
+            while (replaced.containsKey(v)) {
+                v = replaced.get(v);
+            }
+            return v;
+        }
+
+        // removes phis whose arguments are all the same value or the phi itself
+        public void removeTrivialPhis() {
+            HashMap<Value, Value> replaced = new HashMap<Value, Value>();
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (Block b : blocks) {
+                    for (int i = 0; i < b.phis.size(); i++) {
+                        Value phi = b.phis.get(i);
+                        Value same = null;
+                        boolean trivial = true;
+                        for (Value arg : phi.args) {
+                            arg = resolve(arg, replaced);
+                            if (arg == phi || arg == same)
+                                continue;
+                            if (same != null)
+                                trivial = false;
+                            same = arg;
+                        }
+                        // a phi of only itself is in a block that can't be entered
+                        if (trivial && same != null) {
+                            replaced.put(phi, same);
+                            b.phis.remove(i--);
+                            changed = true;
+                        }
+                    }
+                }
+            }
+            replace(replaced);
+        }
+
+        public String toString() {
+            StringBuilder s = new StringBuilder(name + ":\n");
+            for (Block b : blocks) {
+                s.append(b).append(" <- ").append(b.preds).append(":\n");
+                for (Value v : b.phis) {
+                    s.append("  ").append(format(v)).append('\n');
+                }
+                for (Value v : b.code) {
+                    s.append("  ").append(format(v)).append('\n');
+                }
+                switch (b.end) {
+                    case JUMP: s.append("  jump ").append(b.succs[0]); break;
+                    case BRANCH: s.append("  branch ").append(b.operand).append(' ').append(b.succs[0]).append(' ').append(b.succs[1]); break;
+                    case RETURN: s.append("  return ").append(b.operand == null ? "" : b.operand); break;
+                }
+                s.append('\n');
+            }
+            return s.toString();
+        }
+
+        private static String format(Value v) {
+            StringBuilder s = new StringBuilder(v + " = " + NAMES[v.op]);
+            if (v.op == CONST)
+                s.append(' ').append(v.type == DOUBLE ? String.valueOf(v.doubleConstant) : String.valueOf(v.intConstant));
+            else if (v.op == PARAM)
+                s.append(' ').append(v.index);
+            else if (v.op == CALL)
+                s.append(' ').append(v.function);
+            for (Value arg : v.args) {
+                s.append(' ').append(arg);
+            }
+            return s.toString();
+        }
+    }
+}
@@ -0,0 +1,415 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import CPP.Absyn.*;
+
+/**
+ * Builds the {@link SSA} form of every function of a type checked program,
+ * following Braun et al., "Simple and Efficient Construction of Static Single
+ * Assignment Form". A block is sealed once all its predecessors are known;
+ * variables read in a block that isn't sealed yet get a phi whose arguments
+ * are filled in when it is.
+ *
+ * Conditions of if and while become branches, so && and || short-circuit
+ * through the graph. Declared variables start out as zero, as in the
+ * backends, so a read of a variable that was never assigned would give zero
+ * instead of failing, and the optimizer would fold that zero further. Only
+ * programs where {@link DefiniteAssignment} rules such a read out are built.
+ */
+public class SSABuilder {
+
+    // return types of all functions
+    private HashMap<String, Integer> functions = new HashMap<String, Integer>();
+
+    // function being built
+    private SSA.Function fn;
+    private SSA.Block current;
+    // variables numbered per function, by name with the innermost block last
+    private LinkedList<HashMap<String, Integer>> scopes = new LinkedList<HashMap<String, Integer>>();
+    private ArrayList<Integer> varTypes = new ArrayList<Integer>();
+    // current value of each variable at the end of each block
+    private HashMap<SSA.Block, HashMap<Integer, SSA.Value>> defs = new HashMap<SSA.Block, HashMap<Integer, SSA.Value>>();
+    private HashMap<SSA.Block, HashMap<Integer, SSA.Value>> incompletePhis = new HashMap<SSA.Block, HashMap<Integer, SSA.Value>>();
+    private HashSet<SSA.Block> sealed = new HashSet<SSA.Block>();
+
+    private final StmBuilder stmBuilder = new StmBuilder();
+    private final ExpBuilder expBuilder = new ExpBuilder();
+
+    public ArrayList<SSA.Function> build(Program p) {
+        functions.put("readInt", SSA.INT);
+        functions.put("readDouble", SSA.DOUBLE);
+        functions.put("printInt", SSA.VOID);
+        functions.put("printDouble", SSA.VOID);
+        for (Def d : ((PDefs)p).listdef_) {
+            functions.put(((DFun)d).id_, type(((DFun)d).type_));
+        }
+
+        ArrayList<SSA.Function> fns = new ArrayList<SSA.Function>();
+        for (Def d : ((PDefs)p).listdef_) {
+            fns.add(buildFunction((DFun)d));
+        }
+        return fns;
+    }
+
+    public static int type(Type t) {
+        if (t instanceof Type_int) return SSA.INT;
+        if (t instanceof Type_double) return SSA.DOUBLE;
+        if (t instanceof Type_bool) return SSA.BOOL;
+        return SSA.VOID;
+    }
+
+    private SSA.Function buildFunction(DFun df) {
+        int[] params = new int[df.listarg_.size()];
+        int i = 0;
+        for (Arg a : df.listarg_) {
+            params[i++] = type(((ADecl)a).type_);
+        }
+        fn = new SSA.Function(df.id_, type(df.type_), params);
+        scopes.clear();
+        varTypes.clear();
+        defs.clear();
+        incompletePhis.clear();
+        sealed.clear();
+
+        current = fn.newBlock();
+        seal(current);
+        scopes.add(new HashMap<String, Integer>());
+        i = 0;
+        for (Arg a : df.listarg_) {
+            SSA.Value param = append(fn.newValue(SSA.PARAM, params[i]));
+            param.index = i++;
+            write(declare(((ADecl)a).id_, param.type), current, param);
+        }
+        for (Stm s : df.liststm_) {
+            s.accept(stmBuilder, null);
+        }
+        // falling off the end of a function
+        if (fn.type == SSA.VOID)
+            ret(null);
+        else
+            ret(zero(fn.type));
+
+        fn.removeUnreachable();
+        fn.removeTrivialPhis();
+        return fn;
+    }
+
+    /* variables */
+
+    private int declare(String id, int type) {
+        int var = varTypes.size();
+        varTypes.add(type);
+        scopes.getLast().put(id, var);
+        return var;
+    }
+
+    private int lookup(String id) {
+        // search from current to earlier blocks
+        ListIterator<HashMap<String, Integer>> listIterator = scopes.listIterator(scopes.size());
+
+        while(listIterator.hasPrevious()) {
+            HashMap<String, Integer> scope = listIterator.previous();
+            if (scope.containsKey(id))
+                return scope.get(id);
+        }
+        throw new RuntimeException("Var " + id + " could not be resolved.");
+    }
+
+    private void write(int var, SSA.Block b, SSA.Value v) {
+        HashMap<Integer, SSA.Value> d = defs.get(b);
+        if (d == null) {
+            d = new HashMap<Integer, SSA.Value>();
+            defs.put(b, d);
+        }
+        d.put(var, v);
+    }
+
+    private SSA.Value read(int var, SSA.Block b) {
+        HashMap<Integer, SSA.Value> d = defs.get(b);
+        if (d != null && d.containsKey(var))
+            return d.get(var);
+
+        SSA.Value v;
+        if (!sealed.contains(b)) {
+            v = phi(b, varTypes.get(var));
+            HashMap<Integer, SSA.Value> incomplete = incompletePhis.get(b);
+            if (incomplete == null) {
+                incomplete = new HashMap<Integer, SSA.Value>();
+                incompletePhis.put(b, incomplete);
+            }
+            incomplete.put(var, v);
+        } else if (b.preds.size() == 1) {
+            v = read(var, b.preds.get(0));
+        } else if (b.preds.isEmpty()) {
+            // the entry or code after a return, which never runs
+            v = fn.newValue(SSA.CONST, varTypes.get(var));
+            v.block = b;
+            b.code.add(0, v);
+        } else {
+            // the phi breaks cycles through loops
+            v = phi(b, varTypes.get(var));
+            write(var, b, v);
+            addPhiArgs(var, v);
+        }
+        write(var, b, v);
+        return v;
+    }
+
+    private SSA.Value phi(SSA.Block b, int type) {
+        SSA.Value phi = fn.newValue(SSA.PHI, type);
+        phi.block = b;
+        b.phis.add(phi);
+        return phi;
+    }
+
+    private void addPhiArgs(int var, SSA.Value phi) {
+        SSA.Value[] args = new SSA.Value[phi.block.preds.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = read(var, phi.block.preds.get(i));
+        }
+        phi.args = args;
+    }
+
+    private void seal(SSA.Block b) {
+        HashMap<Integer, SSA.Value> incomplete = incompletePhis.remove(b);
+        sealed.add(b);
+        if (incomplete == null)
+            return;
+        for (int var : incomplete.keySet()) {
+            addPhiArgs(var, incomplete.get(var));
+        }
+    }
+
+    /* blocks */
+
+    private SSA.Value append(SSA.Value v) {
+        v.block = current;
+        current.code.add(v);
+        return v;
+    }
+
+    private SSA.Value zero(int type) {
+        return append(fn.newValue(SSA.CONST, type));
+    }
+
+    private SSA.Value intConstant(int type, int i) {
+        SSA.Value v = append(fn.newValue(SSA.CONST, type));
+        v.intConstant = i;
+        return v;
+    }
+
+    private SSA.Value doubleConstant(double d) {
+        SSA.Value v = append(fn.newValue(SSA.CONST, SSA.DOUBLE));
+        v.doubleConstant = d;
+        return v;
+    }
+
+    private void jump(SSA.Block to) {
+        current.end = SSA.JUMP;
+        current.succs = new SSA.Block[] { to };
+        to.preds.add(current);
+    }
+
+    private void branch(SSA.Value cond, SSA.Block t, SSA.Block f) {
+        current.end = SSA.BRANCH;
+        current.operand = cond;
+        current.succs = new SSA.Block[] { t, f };
+        t.preds.add(current);
+        f.preds.add(current);
+    }
+
+    private void ret(SSA.Value v) {
+        current.end = SSA.RETURN;
+        current.operand = v;
+        // whatever follows can't be reached
+        current = fn.newBlock();
+        seal(current);
+    }
+
+    // branches to t if e is true and to f otherwise
+    private void cond(Exp e, SSA.Block t, SSA.Block f) {
+        if (e instanceof ETrue) {
+            jump(t);
+        } else if (e instanceof EFalse) {
+            jump(f);
+        } else if (e instanceof EAnd) {
+            SSA.Block right = fn.newBlock();
+            cond(((EAnd)e).exp_1, right, f);
+            seal(right);
+            current = right;
+            cond(((EAnd)e).exp_2, t, f);
+        } else if (e instanceof EOr) {
+            SSA.Block right = fn.newBlock();
+            cond(((EOr)e).exp_1, t, right);
+            seal(right);
+            current = right;
+            cond(((EOr)e).exp_2, t, f);
+        } else {
+            branch(exp(e), t, f);
+        }
+    }
+
+    private SSA.Value exp(Exp e) {
+        return e.accept(expBuilder, null);
+    }
+
+    private void stm(Stm s) {
+        scopes.add(new HashMap<String, Integer>());
+        s.accept(stmBuilder, null);
+        scopes.pollLast();
+    }
+
+    private class StmBuilder implements Stm.Visitor<Void, Object> {
+        public Void visit(SExp s, Object arg) {
+            exp(s.exp_);
+            return null;
+        }
+
+        public Void visit(SDecls s, Object arg) {
+            // declared variables start out as zero, which no read can see
+            for (String id : s.listid_) {
+                int var = declare(id, type(s.type_));
+                write(var, current, zero(varTypes.get(var)));
+            }
+            return null;
+        }
+
+        public Void visit(SInit s, Object arg) {
+            // the initializer can't see the variable it initializes
+            SSA.Value v = exp(s.exp_);
+            write(declare(s.id_, type(s.type_)), current, v);
+            return null;
+        }
+
+        public Void visit(SReturn s, Object arg) {
+            SSA.Value v = exp(s.exp_);
+            ret(v.type == SSA.VOID ? null : v);
+            return null;
+        }
+
+        public Void visit(SWhile s, Object arg) {
+            SSA.Block header = fn.newBlock(), body = fn.newBlock(), exit = fn.newBlock();
+            jump(header);
+            current = header;
+            cond(s.exp_, body, exit);
+            seal(body);
+            current = body;
+            stm(s.stm_);
+            jump(header);
+            seal(header);
+            seal(exit);
+            current = exit;
+            return null;
+        }
+
+        public Void visit(SBlock s, Object arg) {
+            scopes.add(new HashMap<String, Integer>());
+            for (Stm stm : s.liststm_) {
+                stm.accept(this, arg);
+            }
+            scopes.pollLast();
+            return null;
+        }
+
+        public Void visit(SIfElse s, Object arg) {
+            SSA.Block then = fn.newBlock(), otherwise = fn.newBlock(), end = fn.newBlock();
+            cond(s.exp_, then, otherwise);
+            seal(then);
+            seal(otherwise);
+            current = then;
+            stm(s.stm_1);
+            jump(end);
+            current = otherwise;
+            stm(s.stm_2);
+            jump(end);
+            seal(end);
+            current = end;
+            return null;
+        }
+    }
+
+    private class ExpBuilder implements Exp.Visitor<SSA.Value, Object> {
+        // basic
+        public SSA.Value visit(ETrue e, Object arg) { return intConstant(SSA.BOOL, 1); }
+        public SSA.Value visit(EFalse e, Object arg) { return intConstant(SSA.BOOL, 0); }
+        public SSA.Value visit(EInt e, Object arg) { return intConstant(SSA.INT, e.integer_); }
+        public SSA.Value visit(EDouble e, Object arg) { return doubleConstant(e.double_); }
+
+        // var, function
+        public SSA.Value visit(EId e, Object arg) { return read(lookup(e.id_), current); }
+        public SSA.Value visit(EApp e, Object arg) {
+            SSA.Value[] args = new SSA.Value[e.listexp_.size()];
+            int i = 0;
+            for (Exp x : e.listexp_) {
+                args[i++] = exp(x);
+            }
+            SSA.Value call = append(fn.newValue(SSA.CALL, functions.get(e.id_), args));
+            call.function = e.id_;
+            return call;
+        }
+
+        //++ --
+        public SSA.Value visit(EPostIncr e, Object arg) { return increment(e.exp_, SSA.ADD, false); }
+        public SSA.Value visit(EPostDecr e, Object arg) { return increment(e.exp_, SSA.SUB, false); }
+        public SSA.Value visit(EPreIncr e, Object arg) { return increment(e.exp_, SSA.ADD, true); }
+        public SSA.Value visit(EPreDecr e, Object arg) { return increment(e.exp_, SSA.SUB, true); }
+
+        private SSA.Value increment(Exp x, int op, boolean pre) {
+            int var = lookup(((EId)x).id_);
+            SSA.Value old = read(var, current);
+            SSA.Value one = old.type == SSA.DOUBLE ? doubleConstant(1.0) : intConstant(SSA.INT, 1);
+            SSA.Value v = append(fn.newValue(op, old.type, old, one));
+            write(var, current, v);
+            return pre ? v : old;
+        }
+
+        // * / + - assignment
+        public SSA.Value visit(ETimes e, Object arg) { return binary(SSA.MUL, e.exp_1, e.exp_2, false); }
+        public SSA.Value visit(EDiv e, Object arg) { return binary(SSA.DIV, e.exp_1, e.exp_2, false); }
+        public SSA.Value visit(EPlus e, Object arg) { return binary(SSA.ADD, e.exp_1, e.exp_2, false); }
+        public SSA.Value visit(EMinus e, Object arg) { return binary(SSA.SUB, e.exp_1, e.exp_2, false); }
+        public SSA.Value visit(EAss e, Object arg) {
+            SSA.Value v = exp(e.exp_2);
+            write(lookup(((EId)e.exp_1).id_), current, v);
+            return v;
+        }
+
+        private SSA.Value binary(int op, Exp e1, Exp e2, boolean comparison) {
+            SSA.Value a = exp(e1);
+            SSA.Value b = exp(e2);
+            return append(fn.newValue(op, comparison ? SSA.BOOL : a.type, a, b));
+        }
+
+        // < > >= ... && ||
+        public SSA.Value visit(ELt e, Object arg) { return binary(SSA.LT, e.exp_1, e.exp_2, true); }
+        public SSA.Value visit(EGt e, Object arg) { return binary(SSA.GT, e.exp_1, e.exp_2, true); }
+        public SSA.Value visit(ELtEq e, Object arg) { return binary(SSA.LE, e.exp_1, e.exp_2, true); }
+        public SSA.Value visit(EGtEq e, Object arg) { return binary(SSA.GE, e.exp_1, e.exp_2, true); }
+        public SSA.Value visit(EEq e, Object arg) { return binary(SSA.EQ, e.exp_1, e.exp_2, true); }
+        public SSA.Value visit(ENEq e, Object arg) { return binary(SSA.NE, e.exp_1, e.exp_2, true); }
+        public SSA.Value visit(EAnd e, Object arg) { return logical(e); }
+        public SSA.Value visit(EOr e, Object arg) { return logical(e); }
+
+        // the value of && and || is a phi of 1 and 0 after branching on it
+        private SSA.Value logical(Exp e) {
+            SSA.Block t = fn.newBlock(), f = fn.newBlock(), end = fn.newBlock();
+            cond(e, t, f);
+            seal(t);
+            seal(f);
+            current = t;
+            SSA.Value one = intConstant(SSA.BOOL, 1);
+            jump(end);
+            current = f;
+            SSA.Value zero = intConstant(SSA.BOOL, 0);
+            jump(end);
+            seal(end);
+            current = end;
+            SSA.Value phi = phi(end, SSA.BOOL);
+            phi.args = new SSA.Value[] { one, zero };
+            return phi;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+/**
+ * Optimizes functions in {@link SSA} form with three passes:
+ *
+ * Sparse conditional constant propagation finds the values that are constant
+ * on every path that can actually run, replaces them by their constant and
+ * turns branches on a constant into jumps.
+ *
+ * Global value numbering walks the dominator tree and replaces a value by an
+ * equal one computed in a dominating block.
+ *
+ * Dead code elimination drops every value that no call, return, branch or
+ * possibly failing division depends on.
+ */
+public class SSAOptimizer {
+
+    // lattice of constant propagation, below CONSTANT the constant is in ints/doubles
+    private static final int UNKNOWN = 0, CONSTANT = 1, VARYING = 2;
+
+    private int[] state;
+    private int[] ints;
+    private double[] doubles;
+
+    public void optimize(ArrayList<SSA.Function> fns) {
+        for (SSA.Function fn : fns) {
+            optimize(fn);
+        }
+    }
+
+    public void optimize(SSA.Function fn) {
+        propagateConstants(fn);
+        numberValues(fn);
+        removeDeadCode(fn);
+    }
+
+    /* sparse conditional constant propagation */
+
+    private void propagateConstants(SSA.Function fn) {
+        int n = fn.valueCount();
+        state = new int[n];
+        ints = new int[n];
+        doubles = new double[n];
+
+        // executable blocks, and executable incoming edges by position in preds
+        HashSet<SSA.Block> executable = new HashSet<SSA.Block>();
+        HashMap<SSA.Block, boolean[]> edges = new HashMap<SSA.Block, boolean[]>();
+        for (SSA.Block b : fn.blocks) {
+            edges.put(b, new boolean[b.preds.size()]);
+        }
+        executable.add(fn.entry());
+
+        // blocks are in reverse postorder, so a few rounds reach the fixpoint
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (SSA.Block b : fn.blocks) {
+                if (!executable.contains(b))
+                    continue;
+                boolean[] incoming = edges.get(b);
+                for (SSA.Value phi : b.phis) {
+                    int s = UNKNOWN, i = 0;
+                    double d = 0;
+                    for (int k = 0; k < phi.args.length; k++) {
+                        if (!incoming[k])
+                            continue;
+                        SSA.Value arg = phi.args[k];
+                        if (state[arg.id] == VARYING)
+                            s = VARYING;
+                        else if (state[arg.id] == UNKNOWN)
+                            continue;
+                        else if (s == CONSTANT && (ints[arg.id] != i || !same(doubles[arg.id], d)))
+                            s = VARYING;
+                        else if (s == UNKNOWN) {
+                            s = CONSTANT;
+                            i = ints[arg.id];
+                            d = doubles[arg.id];
+                        }
+                    }
+                    changed |= lower(phi, s, i, d);
+                }
+                for (SSA.Value v : b.code) {
+                    changed |= evaluate(v);
+                }
+                for (int k = 0; k < b.succs.length; k++) {
+                    if (b.end == SSA.BRANCH) {
+                        SSA.Value cond = b.operand;
+                        if (state[cond.id] == UNKNOWN || state[cond.id] == CONSTANT && (ints[cond.id] != 0) != (k == 0))
+                            continue;
+                    }
+                    SSA.Block s = b.succs[k];
+                    changed |= executable.add(s);
+                    boolean[] in = edges.get(s);
+                    for (int p = 0; p < in.length; p++) {
+                        if (s.preds.get(p) == b && !in[p]) {
+                            in[p] = true;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+        }
+
+        for (SSA.Block b : fn.blocks) {
+            if (!executable.contains(b))
+                continue;
+            for (int k = 0; k < b.phis.size(); k++) {
+                SSA.Value phi = b.phis.get(k);
+                if (state[phi.id] == CONSTANT) {
+                    // a constant is no phi any more
+                    phi.makeConstant(ints[phi.id], doubles[phi.id]);
+                    b.phis.remove(k--);
+                    b.code.add(0, phi);
+                }
+            }
+            for (SSA.Value v : b.code) {
+                if (state[v.id] == CONSTANT && !v.isConstant())
+                    v.makeConstant(ints[v.id], doubles[v.id]);
+            }
+            if (b.end == SSA.BRANCH && state[b.operand.id] == CONSTANT) {
+                int taken = ints[b.operand.id] != 0 ? 0 : 1;
+                SSA.Block to = b.succs[taken];
+                if (b.succs[1 - taken] != to)
+                    fn.removeEdge(b, b.succs[1 - taken]);
+                b.end = SSA.JUMP;
+                b.operand = null;
+                b.succs = new SSA.Block[] { to };
+            }
+        }
+        fn.removeUnreachable();
+        fn.removeTrivialPhis();
+    }
+
+    // doubles are the same constant if their bits are, so NaN is NaN and 0.0 isn't -0.0
+    private static boolean same(double a, double b) {
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+
+    // moves v down the lattice to s, true if it changed
+    private boolean lower(SSA.Value v, int s, int i, double d) {
+        if (s == CONSTANT && state[v.id] == CONSTANT && (ints[v.id] != i || !same(doubles[v.id], d)))
+            s = VARYING;
+        if (s <= state[v.id])
+            return false;
+        state[v.id] = s;
+        ints[v.id] = i;
+        doubles[v.id] = d;
+        return true;
+    }
+
+    private boolean evaluate(SSA.Value v) {
+        switch (v.op) {
+            case SSA.CONST:
+                return lower(v, CONSTANT, v.intConstant, v.doubleConstant);
+            case SSA.PARAM:
+            case SSA.CALL:
+                return lower(v, VARYING, 0, 0);
+        }
+
+        SSA.Value a = v.args[0], b = v.args[1];
+        if (state[a.id] == VARYING || state[b.id] == VARYING)
+            return lower(v, VARYING, 0, 0);
+        if (state[a.id] == UNKNOWN || state[b.id] == UNKNOWN)
+            return false;
+
+        if (a.type == SSA.DOUBLE) {
+            double x = doubles[a.id], y = doubles[b.id];
+            switch (v.op) {
+                case SSA.ADD: return lower(v, CONSTANT, 0, x + y);
+                case SSA.SUB: return lower(v, CONSTANT, 0, x - y);
+                case SSA.MUL: return lower(v, CONSTANT, 0, x * y);
+                case SSA.DIV: return lower(v, CONSTANT, 0, x / y);
+                case SSA.LT: return lower(v, CONSTANT, x < y ? 1 : 0, 0);
+                case SSA.GT: return lower(v, CONSTANT, x > y ? 1 : 0, 0);
+                case SSA.LE: return lower(v, CONSTANT, x <= y ? 1 : 0, 0);
+                case SSA.GE: return lower(v, CONSTANT, x >= y ? 1 : 0, 0);
+                case SSA.EQ: return lower(v, CONSTANT, x == y ? 1 : 0, 0);
+                default: return lower(v, CONSTANT, x != y ? 1 : 0, 0);
+            }
+        }
+        int x = ints[a.id], y = ints[b.id];
+        switch (v.op) {
+            case SSA.ADD: return lower(v, CONSTANT, x + y, 0);
+            case SSA.SUB: return lower(v, CONSTANT, x - y, 0);
+            case SSA.MUL: return lower(v, CONSTANT, x * y, 0);
+            // division by zero is left to fail at run time
+            case SSA.DIV: return y == 0 ? lower(v, VARYING, 0, 0) : lower(v, CONSTANT, x / y, 0);
+            case SSA.LT: return lower(v, CONSTANT, x < y ? 1 : 0, 0);
+            case SSA.GT: return lower(v, CONSTANT, x > y ? 1 : 0, 0);
+            case SSA.LE: return lower(v, CONSTANT, x <= y ? 1 : 0, 0);
+            case SSA.GE: return lower(v, CONSTANT, x >= y ? 1 : 0, 0);
+            case SSA.EQ: return lower(v, CONSTANT, x == y ? 1 : 0, 0);
+            default: return lower(v, CONSTANT, x != y ? 1 : 0, 0);
+        }
+    }
+
+    /* global value numbering */
+
+    private HashMap<SSA.Value, SSA.Value> replaced;
+    // values available in the dominator tree, by key, with the innermost block last
+    private LinkedList<HashMap<String, SSA.Value>> available = new LinkedList<HashMap<String, SSA.Value>>();
+
+    private void numberValues(SSA.Function fn) {
+        // immediate dominators, by Cooper, Harvey and Kennedy over the reverse postorder
+        HashMap<SSA.Block, Integer> order = new HashMap<SSA.Block, Integer>();
+        for (SSA.Block b : fn.blocks) {
+            order.put(b, order.size());
+        }
+        SSA.Block[] idom = new SSA.Block[fn.blocks.size()];
+        idom[0] = fn.entry();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < idom.length; i++) {
+                SSA.Block b = fn.blocks.get(i), dom = null;
+                for (SSA.Block p : b.preds) {
+                    if (idom[order.get(p)] == null)
+                        continue;
+                    dom = dom == null ? p : intersect(p, dom, idom, order);
+                }
+                if (idom[i] != dom) {
+                    idom[i] = dom;
+                    changed = true;
+                }
+            }
+        }
+        HashMap<SSA.Block, ArrayList<SSA.Block>> children = new HashMap<SSA.Block, ArrayList<SSA.Block>>();
+        for (SSA.Block b : fn.blocks) {
+            children.put(b, new ArrayList<SSA.Block>());
+        }
+        for (int i = 1; i < idom.length; i++) {
+            children.get(idom[i]).add(fn.blocks.get(i));
+        }
+
+        replaced = new HashMap<SSA.Value, SSA.Value>();
+        available.clear();
+        number(fn.entry(), children);
+        fn.replace(replaced);
+    }
+
+    private static SSA.Block intersect(SSA.Block a, SSA.Block b, SSA.Block[] idom, HashMap<SSA.Block, Integer> order) {
+        while (a != b) {
+            while (order.get(a) > order.get(b)) {
+                a = idom[order.get(a)];
+            }
+            while (order.get(b) > order.get(a)) {
+                b = idom[order.get(b)];
+            }
+        }
+        return a;
+    }
+
+    private void number(SSA.Block b, HashMap<SSA.Block, ArrayList<SSA.Block>> children) {
+        available.add(new HashMap<String, SSA.Value>());
+        for (int i = 0; i < b.phis.size(); i++) {
+            SSA.Value phi = b.phis.get(i);
+            if (merge(phi, key(phi)))
+                b.phis.remove(i--);
+        }
+        for (int i = 0; i < b.code.size(); i++) {
+            SSA.Value v = b.code.get(i);
+            for (int k = 0; k < v.args.length; k++) {
+                SSA.Value arg = replaced.get(v.args[k]);
+                if (arg != null)
+                    v.args[k] = arg;
+            }
+            String key = key(v);
+            if (key != null && merge(v, key))
+                b.code.remove(i--);
+        }
+        for (SSA.Block c : children.get(b)) {
+            number(c, children);
+        }
+        available.pollLast();
+    }
+
+    // replaces v by an available value with the same key, or makes v available
+    private boolean merge(SSA.Value v, String key) {
+        // search from current to dominating blocks
+        ListIterator<HashMap<String, SSA.Value>> listIterator = available.listIterator(available.size());
+
+        while(listIterator.hasPrevious()) {
+            HashMap<String, SSA.Value> scope = listIterator.previous();
+            if (scope.containsKey(key)) {
+                replaced.put(v, scope.get(key));
+                return true;
+            }
+        }
+        available.getLast().put(key, v);
+        return false;
+    }
+
+    // the values with the same key are equal, null for calls, which never are
+    private static String key(SSA.Value v) {
+        switch (v.op) {
+            case SSA.CALL:
+                return null;
+            case SSA.CONST:
+                return "const " + v.type + " " + v.intConstant + " " + Double.doubleToLongBits(v.doubleConstant);
+            case SSA.PARAM:
+                return "param " + v.index;
+        }
+        StringBuilder key = new StringBuilder();
+        key.append(v.op).append(' ').append(v.type);
+        // phis are only equal within their block, their arguments depend on it
+        if (v.op == SSA.PHI)
+            key.append(' ').append(v.block);
+        int[] ids = new int[v.args.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = v.args[i].id;
+        }
+        boolean commutative = v.op == SSA.ADD || v.op == SSA.MUL || v.op == SSA.EQ || v.op == SSA.NE;
+        if (commutative && ids[0] > ids[1]) {
+            int id = ids[0];
+            ids[0] = ids[1];
+            ids[1] = id;
+        }
+        for (int id : ids) {
+            key.append(' ').append(id);
+        }
+        return key.toString();
+    }
+
+    /* dead code elimination */
+
+    private void removeDeadCode(SSA.Function fn) {
+        HashSet<SSA.Value> live = new HashSet<SSA.Value>();
+        LinkedList<SSA.Value> work = new LinkedList<SSA.Value>();
+        for (SSA.Block b : fn.blocks) {
+            for (SSA.Value v : b.code) {
+                if (hasEffect(v))
+                    work.add(v);
+            }
+            if (b.operand != null)
+                work.add(b.operand);
+        }
+        while (!work.isEmpty()) {
+            SSA.Value v = work.poll();
+            if (!live.add(v))
+                continue;
+            for (SSA.Value arg : v.args) {
+                work.add(arg);
+            }
+        }
+        for (SSA.Block b : fn.blocks) {
+            b.phis.retainAll(live);
+            b.code.retainAll(live);
+        }
+    }
+
+    // calls and int divisions that may divide by zero must run even if unused
+    private static boolean hasEffect(SSA.Value v) {
+        if (v.op == SSA.CALL)
+            return true;
+        if (v.op == SSA.DIV && v.type != SSA.DOUBLE) {
+            SSA.Value divisor = v.args[1];
+            return !divisor.isConstant() || divisor.intConstant == 0;
+        }
+        return false;
+    }
+}
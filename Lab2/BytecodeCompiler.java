@@ -0,0 +1,466 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+import CPP.FoldVisitor;
+import CPP.Absyn.*;
+
+/**
+ * Compiles a resolved program to register code for the {@link VM}.
+ *
+ * Variables live in the register of their Resolver slot, in the int or the
+ * double file depending on their type. Temporaries are allocated above the
+ * variables and released after every statement. Conditions of if and while
+ * are compiled to jumps, so && and || short-circuit without materializing
+ * booleans.
+ *
+ * Registers hold plain ints and doubles, so declared variables start out as
+ * zero and a read before the first assignment isn't detected. The VM only
+ * gets programs where {@link DefiniteAssignment} rules such a read out.
+ */
+public class BytecodeCompiler implements Opcodes {
+
+    private HashMap<String, Integer> functionIndex = new HashMap<String, Integer>();
+
+    // function being compiled
+    private int[] code;
+    private int length;
+    private ArrayList<Double> constants;
+    private int frameSize;
+    private int nextInt, nextDouble, maxInt, maxDouble;
+
+    private final StmCompiler stmCompiler = new StmCompiler();
+    private final ExpCompiler expCompiler = new ExpCompiler();
+    private final Assigns assigns = new Assigns();
+
+    public VM.Function[] compile(Program p) {
+        PDefs defs = (PDefs)p;
+        VM.Function[] functions = new VM.Function[defs.listdef_.size()];
+
+        int i = 0;
+        for(Def d : defs.listdef_) {
+            functionIndex.put(((DFun)d).id_, i++);
+        }
+        i = 0;
+        for(Def d : defs.listdef_) {
+            functions[i++] = compileFunction((Resolver.Function)d);
+        }
+        return functions;
+    }
+
+    private VM.Function compileFunction(Resolver.Function df) {
+        code = new int[64];
+        length = 0;
+        constants = new ArrayList<Double>();
+        frameSize = df.frameSize;
+        nextInt = maxInt = nextDouble = maxDouble = frameSize;
+
+        for(Stm stm : df.liststm_) {
+            compileStm(stm);
+        }
+        // falling off the end of a function
+        emit(RET_V);
+
+        boolean[] doubleParams = new boolean[df.listarg_.size()];
+        int i = 0;
+        for(Arg arg : df.listarg_) {
+            doubleParams[i++] = ((ADecl)arg).type_ instanceof Type_double;
+        }
+        double[] k = new double[constants.size()];
+        for(i = 0; i < k.length; i++) {
+            k[i] = constants.get(i);
+        }
+        return new VM.Function(df.id_, Arrays.copyOf(code, length), k, maxInt, maxDouble, doubleParams);
+    }
+
+    /* code buffer */
+
+    private void emit(int... words) {
+        if (length + words.length > code.length)
+            code = Arrays.copyOf(code, 2 * code.length + words.length);
+        for(int w : words) {
+            code[length++] = w;
+        }
+    }
+
+    // emits a jump with a yet unknown target and records where to patch it
+    private void jump(LinkedList<Integer> patches, int... instr) {
+        emit(instr);
+        patches.add(length - 1);
+    }
+
+    private void patch(LinkedList<Integer> patches, int target) {
+        for(int at : patches) {
+            code[at] = target;
+        }
+    }
+
+    private int constant(double d) {
+        int k = constants.indexOf(d);
+        if (k < 0) {
+            k = constants.size();
+            constants.add(d);
+        }
+        return k;
+    }
+
+    /* registers */
+
+    private int intTemp() {
+        int r = nextInt++;
+        if (nextInt > maxInt)
+            maxInt = nextInt;
+        return r;
+    }
+
+    private int doubleTemp() {
+        int r = nextDouble++;
+        if (nextDouble > maxDouble)
+            maxDouble = nextDouble;
+        return r;
+    }
+
+    // the register for a result of the given type, dst if one is requested
+    private int target(int dst, boolean isDouble) {
+        if (dst >= 0)
+            return dst;
+        return isDouble ? doubleTemp() : intTemp();
+    }
+
+    private int move(int r, int dst, boolean isDouble) {
+        if (dst < 0 || dst == r)
+            return r;
+        emit(isDouble ? DMOV : IMOV, dst, r);
+        return dst;
+    }
+
+    /* statements and expressions */
+
+    private void compileStm(Stm s) {
+        int ints = nextInt, doubles = nextDouble;
+        s.accept(stmCompiler, null);
+        nextInt = ints;
+        nextDouble = doubles;
+    }
+
+    // compiles e into dst or, if dst is -1, any register, and returns that register
+    private int exp(Exp e, int dst) {
+        return e.accept(expCompiler, dst);
+    }
+
+    // compiles the left operand of an operator whose right operand is e2
+    private int left(Exp e1, Exp e2) {
+        int r = exp(e1, -1);
+        // a variable's register still has to hold the old value after e2
+        if (r < frameSize && e2.accept(assigns, null))
+            r = move(r, isDouble(e1) ? doubleTemp() : intTemp(), isDouble(e1));
+        return r;
+    }
+
+    // jumps to the patched target if e evaluates to when, falls through otherwise
+    private void branch(Exp e, boolean when, LinkedList<Integer> patches) {
+        if (e instanceof ETrue || e instanceof EFalse) {
+            if ((e instanceof ETrue) == when)
+                jump(patches, JMP, 0);
+        } else if (e instanceof EAnd || e instanceof EOr) {
+            boolean isAnd = e instanceof EAnd;
+            Exp e1 = isAnd ? ((EAnd)e).exp_1 : ((EOr)e).exp_1;
+            Exp e2 = isAnd ? ((EAnd)e).exp_2 : ((EOr)e).exp_2;
+            if (isAnd != when) {
+                // false && _ is false, true || _ is true
+                branch(e1, when, patches);
+                branch(e2, when, patches);
+            } else {
+                LinkedList<Integer> skip = new LinkedList<Integer>();
+                branch(e1, !when, skip);
+                branch(e2, when, patches);
+                patch(skip, length);
+            }
+        } else {
+            int ints = nextInt, doubles = nextDouble;
+            jump(patches, when ? JMPT : JMPF, exp(e, -1), 0);
+            nextInt = ints;
+            nextDouble = doubles;
+        }
+    }
+
+    private static boolean isDouble(Exp e) { return Resolver.typeOf(e) instanceof Type_double; }
+    private static int slot(Exp e) { return ((Resolver.Var)e).slot; }
+
+    // the value of an int or bool literal, null for anything else
+    private static Integer immediate(Exp e) {
+        if (e instanceof EInt) return ((EInt)e).integer_;
+        if (e instanceof ETrue) return 1;
+        if (e instanceof EFalse) return 0;
+        return null;
+    }
+
+    // true if an expression assigns to a variable
+    private static class Assigns extends FoldVisitor<Boolean, Object> {
+        public Boolean leaf(Object arg) { return false; }
+        public Boolean combine(Boolean x, Boolean y, Object arg) { return x || y; }
+
+        public Boolean visit(EPostIncr e, Object arg) { return true; }
+        public Boolean visit(EPostDecr e, Object arg) { return true; }
+        public Boolean visit(EPreIncr e, Object arg) { return true; }
+        public Boolean visit(EPreDecr e, Object arg) { return true; }
+        public Boolean visit(EAss e, Object arg) { return true; }
+    }
+
+    private class StmCompiler implements Stm.Visitor<Void, Object> {
+        public Void visit(SExp s, Object arg) {
+            // ++ and -- whose value is unused only update their variable
+            if (s.exp_ instanceof EPostIncr || s.exp_ instanceof EPreIncr)
+                increment(s.exp_ instanceof EPostIncr ? ((EPostIncr)s.exp_).exp_ : ((EPreIncr)s.exp_).exp_, 1);
+            else if (s.exp_ instanceof EPostDecr || s.exp_ instanceof EPreDecr)
+                increment(s.exp_ instanceof EPostDecr ? ((EPostDecr)s.exp_).exp_ : ((EPreDecr)s.exp_).exp_, -1);
+            else
+                exp(s.exp_, -1);
+            return null;
+        }
+
+        public Void visit(SDecls s, Object arg) {
+            // declared variables start out as zero
+            for(int slot : ((Resolver.Decls)s).slots) {
+                if (s.type_ instanceof Type_double)
+                    emit(DCONST, slot, constant(0.0));
+                else
+                    emit(ICONST, slot, 0);
+            }
+            return null;
+        }
+
+        public Void visit(SInit s, Object arg) {
+            exp(s.exp_, ((Resolver.Init)s).slot);
+            return null;
+        }
+
+        public Void visit(SReturn s, Object arg) {
+            Type t = Resolver.typeOf(s.exp_);
+            int r = exp(s.exp_, -1);
+            if (t instanceof Type_double)
+                emit(RET_D, r);
+            else if (t instanceof Type_void)
+                emit(RET_V);
+            else
+                emit(RET_I, r);
+            return null;
+        }
+
+        public Void visit(SWhile s, Object arg) {
+            // the condition is placed after the body, so each iteration takes one jump
+            LinkedList<Integer> toCond = new LinkedList<Integer>();
+            jump(toCond, JMP, 0);
+            int body = length;
+            compileStm(s.stm_);
+            patch(toCond, length);
+            LinkedList<Integer> toBody = new LinkedList<Integer>();
+            branch(s.exp_, true, toBody);
+            patch(toBody, body);
+            return null;
+        }
+
+        public Void visit(SBlock s, Object arg) {
+            for(Stm stm : s.liststm_) {
+                compileStm(stm);
+            }
+            return null;
+        }
+
+        public Void visit(SIfElse s, Object arg) {
+            LinkedList<Integer> toElse = new LinkedList<Integer>();
+            LinkedList<Integer> toEnd = new LinkedList<Integer>();
+            branch(s.exp_, false, toElse);
+            compileStm(s.stm_1);
+            jump(toEnd, JMP, 0);
+            patch(toElse, length);
+            compileStm(s.stm_2);
+            patch(toEnd, length);
+            return null;
+        }
+    }
+
+    private void increment(Exp var, int delta) {
+        int x = slot(var);
+        if (isDouble(var))
+            emit(DADD_RI, x, x, constant(delta));
+        else
+            emit(IADD_RI, x, x, delta);
+    }
+
+    private int preIncrement(Exp var, int delta, int dst) {
+        increment(var, delta);
+        return move(slot(var), dst, isDouble(var));
+    }
+
+    private int postIncrement(Exp var, int delta, int dst) {
+        int x = slot(var);
+        boolean dbl = isDouble(var);
+        // x = x++ has to leave the old value in x
+        int old = (dst >= 0 && dst != x) ? dst : (dbl ? doubleTemp() : intTemp());
+        move(x, old, dbl);
+        increment(var, delta);
+        return move(old, dst, dbl);
+    }
+
+    private int arithmetic(Exp e1, Exp e2, int dst, int intRR, int intRI, int doubleRR, int doubleRI) {
+        boolean dbl = isDouble(e1);
+        int ints = nextInt, doubles = nextDouble;
+        int a = left(e1, e2);
+        Integer i = immediate(e2);
+        if (!dbl && i != null) {
+            nextInt = ints;
+            nextDouble = doubles;
+            int d = target(dst, false);
+            emit(intRI, d, a, i);
+            return d;
+        } else if (dbl && e2 instanceof EDouble) {
+            nextInt = ints;
+            nextDouble = doubles;
+            int d = target(dst, true);
+            emit(doubleRI, d, a, constant(((EDouble)e2).double_));
+            return d;
+        }
+        int b = exp(e2, -1);
+        nextInt = ints;
+        nextDouble = doubles;
+        int d = target(dst, dbl);
+        emit(dbl ? doubleRR : intRR, d, a, b);
+        return d;
+    }
+
+    // comparisons yield an int register, bools compare as ints
+    private int compare(Exp e1, Exp e2, int dst, int intRR, int intRI, int doubleRR, int doubleRI) {
+        boolean dbl = isDouble(e1);
+        int ints = nextInt, doubles = nextDouble;
+        int a = left(e1, e2);
+        Integer i = immediate(e2);
+        int op, b;
+        if (!dbl && i != null) {
+            op = intRI;
+            b = i;
+        } else if (dbl && e2 instanceof EDouble) {
+            op = doubleRI;
+            b = constant(((EDouble)e2).double_);
+        } else {
+            op = dbl ? doubleRR : intRR;
+            b = exp(e2, -1);
+        }
+        nextInt = ints;
+        nextDouble = doubles;
+        int d = target(dst, false);
+        emit(op, d, a, b);
+        return d;
+    }
+
+    private int call(EApp e, int dst) {
+        int ints = nextInt, doubles = nextDouble;
+        int[] instr = new int[4 + e.listexp_.size()];
+        int i = 4;
+        for(int n = 0; n < e.listexp_.size(); n++) {
+            Exp arg = e.listexp_.get(n);
+            int r = exp(arg, -1);
+            // later arguments could still change the variable
+            if (r < frameSize) {
+                for(Exp later : e.listexp_.subList(n + 1, e.listexp_.size())) {
+                    if (later.accept(assigns, null)) {
+                        r = move(r, isDouble(arg) ? doubleTemp() : intTemp(), isDouble(arg));
+                        break;
+                    }
+                }
+            }
+            instr[i++] = r;
+        }
+        nextInt = ints;
+        nextDouble = doubles;
+
+        Type t = ((Resolver.Call)e).type;
+        instr[2] = functionIndex.get(e.id_);
+        instr[3] = e.listexp_.size();
+        if (t instanceof Type_void) {
+            // CALL_V has no destination
+            instr[1] = CALL_V;
+            emit(Arrays.copyOfRange(instr, 1, instr.length));
+            return -1;
+        }
+        boolean dbl = t instanceof Type_double;
+        instr[0] = dbl ? CALL_D : CALL_I;
+        instr[1] = target(dst, dbl);
+        emit(instr);
+        return instr[1];
+    }
+
+    private class ExpCompiler implements Exp.Visitor<Integer, Integer> {
+        // basic
+        public Integer visit(ETrue e, Integer dst) { int d = target(dst, false); emit(ICONST, d, 1); return d; }
+        public Integer visit(EFalse e, Integer dst) { int d = target(dst, false); emit(ICONST, d, 0); return d; }
+        public Integer visit(EInt e, Integer dst) { int d = target(dst, false); emit(ICONST, d, e.integer_); return d; }
+        public Integer visit(EDouble e, Integer dst) { int d = target(dst, true); emit(DCONST, d, constant(e.double_)); return d; }
+
+        // var, function
+        public Integer visit(EId e, Integer dst) { return move(slot(e), dst, isDouble(e)); }
+
+        public Integer visit(EApp e, Integer dst) {
+            switch (e.id_) {
+                case "printInt":
+                    emit(PRINTI, exp(e.listexp_.getFirst(), -1));
+                    return -1;
+                case "printDouble":
+                    emit(PRINTD, exp(e.listexp_.getFirst(), -1));
+                    return -1;
+                case "readInt": {
+                    int d = target(dst, false);
+                    emit(READI, d);
+                    return d;
+                }
+                case "readDouble": {
+                    int d = target(dst, true);
+                    emit(READD, d);
+                    return d;
+                }
+            }
+            return call(e, dst);
+        }
+
+        //++ --
+        public Integer visit(EPostIncr e, Integer dst) { return postIncrement(e.exp_, 1, dst); }
+        public Integer visit(EPostDecr e, Integer dst) { return postIncrement(e.exp_, -1, dst); }
+        public Integer visit(EPreIncr e, Integer dst) { return preIncrement(e.exp_, 1, dst); }
+        public Integer visit(EPreDecr e, Integer dst) { return preIncrement(e.exp_, -1, dst); }
+
+        // * / + - assignment
+        public Integer visit(ETimes e, Integer dst) { return arithmetic(e.exp_1, e.exp_2, dst, IMUL_RR, IMUL_RI, DMUL_RR, DMUL_RI); }
+        public Integer visit(EDiv e, Integer dst) { return arithmetic(e.exp_1, e.exp_2, dst, IDIV_RR, IDIV_RI, DDIV_RR, DDIV_RI); }
+        public Integer visit(EPlus e, Integer dst) { return arithmetic(e.exp_1, e.exp_2, dst, IADD_RR, IADD_RI, DADD_RR, DADD_RI); }
+        public Integer visit(EMinus e, Integer dst) { return arithmetic(e.exp_1, e.exp_2, dst, ISUB_RR, ISUB_RI, DSUB_RR, DSUB_RI); }
+        public Integer visit(EAss e, Integer dst) {
+            int x = slot(e.exp_1);
+            exp(e.exp_2, x);
+            return move(x, dst, isDouble(e.exp_1));
+        }
+
+        // < > >= ... && ||
+        public Integer visit(ELt e, Integer dst) { return compare(e.exp_1, e.exp_2, dst, ILT_RR, ILT_RI, DLT_RR, DLT_RI); }
+        public Integer visit(EGt e, Integer dst) { return compare(e.exp_1, e.exp_2, dst, IGT_RR, IGT_RI, DGT_RR, DGT_RI); }
+        public Integer visit(ELtEq e, Integer dst) { return compare(e.exp_1, e.exp_2, dst, ILE_RR, ILE_RI, DLE_RR, DLE_RI); }
+        public Integer visit(EGtEq e, Integer dst) { return compare(e.exp_1, e.exp_2, dst, IGE_RR, IGE_RI, DGE_RR, DGE_RI); }
+        public Integer visit(EEq e, Integer dst) { return compare(e.exp_1, e.exp_2, dst, IEQ_RR, IEQ_RI, DEQ_RR, DEQ_RI); }
+        public Integer visit(ENEq e, Integer dst) { return compare(e.exp_1, e.exp_2, dst, INE_RR, INE_RI, DNE_RR, DNE_RI); }
+        public Integer visit(EAnd e, Integer dst) { return logical(e, dst); }
+        public Integer visit(EOr e, Integer dst) { return logical(e, dst); }
+
+        private int logical(Exp e, int dst) {
+            int d = target(dst, false);
+            LinkedList<Integer> toFalse = new LinkedList<Integer>();
+            LinkedList<Integer> toEnd = new LinkedList<Integer>();
+            branch(e, false, toFalse);
+            emit(ICONST, d, 1);
+            jump(toEnd, JMP, 0);
+            patch(toFalse, length);
+            emit(ICONST, d, 0);
+            patch(toEnd, length);
+            return d;
+        }
+    }
+}
@@ -0,0 +1,682 @@
+import java.util.HashMap;
+
+import CPP.Absyn.*;
+
+/**
+ * Compiles the functions of a resolved program once into trees of small
+ * final node objects, specialized on the static types of the expressions,
+ * and runs them on {@link Frame}s. Unlike the interpreters there is no
+ * visitor dispatch and no allocation while a program runs, except for the
+ * frame of every call, so the JIT can inline the nodes of hot code.
+ *
+ * Declared variables start out as zero, so a variable read before it is
+ * assigned is not reported as in the Interpreter. Only programs, and in the
+ * tiered Interpreter only loops, where {@link DefiniteAssignment} rules out
+ * such a read run here.
+ */
+public class ClosureCompiler {
+
+    private Runtime runtime;
+
+    private HashMap<String, Function> functions = new HashMap<String, Function>();
+
+    private final ExpCompiler expCompiler = new ExpCompiler();
+    private final StmCompiler stmCompiler = new StmCompiler();
+
+    public ClosureCompiler() {
+        this(new Runtime());
+    }
+
+    public ClosureCompiler(Runtime runtime) {
+        this.runtime = runtime;
+    }
+
+    public void interpret(Program p) {
+        compile(p);
+        Function main = functions.get("main");
+        Frame frame = new Frame(main.frameSize);
+        main.body.exec(frame);
+        complete(frame);
+    }
+
+    public void compile(Program p) {
+        PDefs defs = (PDefs)p;
+
+        // create all functions first, so calls can refer to them
+        for(Def d : defs.listdef_) {
+            Resolver.Function df = (Resolver.Function)d;
+            functions.put(df.id_, new Function(df));
+        }
+        for(Function f : functions.values()) {
+            f.body = compileStms(f.def.liststm_);
+        }
+    }
+
+    /* nodes */
+
+    static final class Function {
+        final Resolver.Function def;
+        final int frameSize;
+        StmNode body;
+
+        Function(Resolver.Function def) {
+            this.def = def;
+            this.frameSize = def.frameSize;
+        }
+    }
+
+    // statements return true once the function returned
+    abstract static class StmNode { abstract boolean exec(Frame f); }
+    abstract static class IntNode { abstract int eval(Frame f); }
+    abstract static class DoubleNode { abstract double eval(Frame f); }
+    abstract static class BoolNode { abstract boolean eval(Frame f); }
+    abstract static class VoidNode { abstract void eval(Frame f); }
+
+    // passes one argument from the caller's frame to a slot of the callee's
+    abstract static class ArgNode { abstract void pass(Frame from, Frame to, int slot); }
+
+    static final class IntArg extends ArgNode {
+        final IntNode e;
+        IntArg(IntNode e) { this.e = e; }
+        void pass(Frame from, Frame to, int slot) { to.ints[slot] = e.eval(from); }
+    }
+    static final class DoubleArg extends ArgNode {
+        final DoubleNode e;
+        DoubleArg(DoubleNode e) { this.e = e; }
+        void pass(Frame from, Frame to, int slot) { to.doubles[slot] = e.eval(from); }
+    }
+    static final class BoolArg extends ArgNode {
+        final BoolNode e;
+        BoolArg(BoolNode e) { this.e = e; }
+        void pass(Frame from, Frame to, int slot) { to.ints[slot] = e.eval(from) ? 1 : 0; }
+    }
+
+    static final class Invoke {
+        final Function fn;
+        final ArgNode[] args;
+
+        Invoke(Function fn, ArgNode[] args) {
+            this.fn = fn;
+            this.args = args;
+        }
+
+        Frame call(Frame caller) {
+            // enter by hand, the JIT inlines one call less on every level of recursion
+            Frame frame = new Frame(fn.frameSize);
+            for (int i = 0; i < args.length; i++) {
+                args[i].pass(caller, frame, i);
+            }
+            fn.body.exec(frame);
+            return frame.next == null ? frame : complete(frame);
+        }
+
+        Frame enter(Frame caller) {
+            Frame frame = new Frame(fn.frameSize);
+            for (int i = 0; i < args.length; i++) {
+                args[i].pass(caller, frame, i);
+            }
+            return frame;
+        }
+    }
+
+    // runs the calls a function returned with in frame, and returns the frame of the last
+    static Frame complete(Frame frame) {
+        while (frame.next != null) {
+            Frame next = frame.next;
+            ((Function)frame.callee).body.exec(next);
+            frame = next;
+        }
+        return frame;
+    }
+
+    // statements
+    static final class Block extends StmNode {
+        final StmNode[] stms;
+        Block(StmNode[] stms) { this.stms = stms; }
+        boolean exec(Frame f) {
+            for (StmNode stm : stms) {
+                if (stm.exec(f))
+                    return true;
+            }
+            return false;
+        }
+    }
+    static final class While extends StmNode {
+        final BoolNode cond;
+        final StmNode body;
+        While(BoolNode cond, StmNode body) { this.cond = cond; this.body = body; }
+        boolean exec(Frame f) {
+            while (cond.eval(f)) {
+                if (body.exec(f))
+                    return true;
+            }
+            return false;
+        }
+    }
+    static final class IfElse extends StmNode {
+        final BoolNode cond;
+        final StmNode then, otherwise;
+        IfElse(BoolNode cond, StmNode then, StmNode otherwise) { this.cond = cond; this.then = then; this.otherwise = otherwise; }
+        boolean exec(Frame f) { return cond.eval(f) ? then.exec(f) : otherwise.exec(f); }
+    }
+    static final class Decls extends StmNode {
+        final int[] slots;
+        Decls(int[] slots) { this.slots = slots; }
+        boolean exec(Frame f) {
+            // declared variables start out as zero
+            for (int slot : slots) {
+                f.ints[slot] = 0;
+                f.doubles[slot] = 0.0;
+            }
+            return false;
+        }
+    }
+    static final class IntInit extends StmNode {
+        final int slot; final IntNode e;
+        IntInit(int slot, IntNode e) { this.slot = slot; this.e = e; }
+        boolean exec(Frame f) { f.ints[slot] = e.eval(f); return false; }
+    }
+    static final class DoubleInit extends StmNode {
+        final int slot; final DoubleNode e;
+        DoubleInit(int slot, DoubleNode e) { this.slot = slot; this.e = e; }
+        boolean exec(Frame f) { f.doubles[slot] = e.eval(f); return false; }
+    }
+    static final class BoolInit extends StmNode {
+        final int slot; final BoolNode e;
+        BoolInit(int slot, BoolNode e) { this.slot = slot; this.e = e; }
+        boolean exec(Frame f) { f.ints[slot] = e.eval(f) ? 1 : 0; return false; }
+    }
+    static final class IntEffect extends StmNode {
+        final IntNode e;
+        IntEffect(IntNode e) { this.e = e; }
+        boolean exec(Frame f) { e.eval(f); return false; }
+    }
+    static final class DoubleEffect extends StmNode {
+        final DoubleNode e;
+        DoubleEffect(DoubleNode e) { this.e = e; }
+        boolean exec(Frame f) { e.eval(f); return false; }
+    }
+    static final class BoolEffect extends StmNode {
+        final BoolNode e;
+        BoolEffect(BoolNode e) { this.e = e; }
+        boolean exec(Frame f) { e.eval(f); return false; }
+    }
+    static final class VoidEffect extends StmNode {
+        final VoidNode e;
+        VoidEffect(VoidNode e) { this.e = e; }
+        boolean exec(Frame f) { e.eval(f); return false; }
+    }
+    static final class IntReturn extends StmNode {
+        final IntNode e;
+        IntReturn(IntNode e) { this.e = e; }
+        boolean exec(Frame f) { f.intResult = e.eval(f); return true; }
+    }
+    static final class DoubleReturn extends StmNode {
+        final DoubleNode e;
+        DoubleReturn(DoubleNode e) { this.e = e; }
+        boolean exec(Frame f) { f.doubleResult = e.eval(f); return true; }
+    }
+    static final class BoolReturn extends StmNode {
+        final BoolNode e;
+        BoolReturn(BoolNode e) { this.e = e; }
+        boolean exec(Frame f) { f.intResult = e.eval(f) ? 1 : 0; return true; }
+    }
+    static final class VoidReturn extends StmNode {
+        final VoidNode e;
+        VoidReturn(VoidNode e) { this.e = e; }
+        boolean exec(Frame f) { e.eval(f); return true; }
+    }
+    static final class TailCall extends StmNode {
+        final Invoke call;
+        TailCall(Invoke call) { this.call = call; }
+        boolean exec(Frame f) { f.callee = call.fn; f.next = call.enter(f); return true; }
+    }
+
+    // int expressions
+    static final class IntConst extends IntNode {
+        final int value;
+        IntConst(int value) { this.value = value; }
+        int eval(Frame f) { return value; }
+    }
+    static final class IntVar extends IntNode {
+        final int slot;
+        IntVar(int slot) { this.slot = slot; }
+        int eval(Frame f) { return f.ints[slot]; }
+    }
+    static final class IntCall extends IntNode {
+        final Invoke call;
+        IntCall(Invoke call) { this.call = call; }
+        int eval(Frame f) { return call.call(f).intResult; }
+    }
+    static final class ReadInt extends IntNode {
+        final Runtime runtime;
+        ReadInt(Runtime runtime) { this.runtime = runtime; }
+        int eval(Frame f) { return runtime.readInt(); }
+    }
+    static final class IntPostAdd extends IntNode {
+        final int slot, delta;
+        IntPostAdd(int slot, int delta) { this.slot = slot; this.delta = delta; }
+        int eval(Frame f) { int v = f.ints[slot]; f.ints[slot] = v + delta; return v; }
+    }
+    static final class IntPreAdd extends IntNode {
+        final int slot, delta;
+        IntPreAdd(int slot, int delta) { this.slot = slot; this.delta = delta; }
+        int eval(Frame f) { return f.ints[slot] += delta; }
+    }
+    static final class IntAssign extends IntNode {
+        final int slot; final IntNode e;
+        IntAssign(int slot, IntNode e) { this.slot = slot; this.e = e; }
+        int eval(Frame f) { return f.ints[slot] = e.eval(f); }
+    }
+    static final class IntTimes extends IntNode {
+        final IntNode e1, e2;
+        IntTimes(IntNode e1, IntNode e2) { this.e1 = e1; this.e2 = e2; }
+        int eval(Frame f) { return e1.eval(f) * e2.eval(f); }
+    }
+    static final class IntDiv extends IntNode {
+        final IntNode e1, e2;
+        IntDiv(IntNode e1, IntNode e2) { this.e1 = e1; this.e2 = e2; }
+        int eval(Frame f) { return e1.eval(f) / e2.eval(f); }
+    }
+    static final class IntPlus extends IntNode {
+        final IntNode e1, e2;
+        IntPlus(IntNode e1, IntNode e2) { this.e1 = e1; this.e2 = e2; }
+        int eval(Frame f) { return e1.eval(f) + e2.eval(f); }
+    }
+    static final class IntMinus extends IntNode {
+        final IntNode e1, e2;
+        IntMinus(IntNode e1, IntNode e2) { this.e1 = e1; this.e2 = e2; }
+        int eval(Frame f) { return e1.eval(f) - e2.eval(f); }
+    }
+
+    // double expressions
+    static final class DoubleConst extends DoubleNode {
+        final double value;
+        DoubleConst(double value) { this.value = value; }
+        double eval(Frame f) { return value; }
+    }
+    static final class DoubleVar extends DoubleNode {
+        final int slot;
+        DoubleVar(int slot) { this.slot = slot; }
+        double eval(Frame f) { return f.doubles[slot]; }
+    }
+    static final class DoubleCall extends DoubleNode {
+        final Invoke call;
+        DoubleCall(Invoke call) { this.call = call; }
+        double eval(Frame f) { return call.call(f).doubleResult; }
+    }
+    static final class ReadDouble extends DoubleNode {
+        final Runtime runtime;
+        ReadDouble(Runtime runtime) { this.runtime = runtime; }
+        double eval(Frame f) { return runtime.readDouble(); }
+    }
+    static final class DoublePostAdd extends DoubleNode {
+        final int slot; final double delta;
+        DoublePostAdd(int slot, double delta) { this.slot = slot; this.delta = delta; }
+        double eval(Frame f) { double v = f.doubles[slot]; f.doubles[slot] = v + delta; return v; }
+    }
+    static final class DoublePreAdd extends DoubleNode {
+        final int slot; final double delta;
+        DoublePreAdd(int slot, double delta) { this.slot = slot; this.delta = delta; }
+        double eval(Frame f) { return f.doubles[slot] += delta; }
+    }
+    static final class DoubleAssign extends DoubleNode {
+        final int slot; final DoubleNode e;
+        DoubleAssign(int slot, DoubleNode e) { this.slot = slot; this.e = e; }
+        double eval(Frame f) { return f.doubles[slot] = e.eval(f); }
+    }
+    static final class DoubleTimes extends DoubleNode {
+        final DoubleNode e1, e2;
+        DoubleTimes(DoubleNode e1, DoubleNode e2) { this.e1 = e1; this.e2 = e2; }
+        double eval(Frame f) { return e1.eval(f) * e2.eval(f); }
+    }
+    static final class DoubleDiv extends DoubleNode {
+        final DoubleNode e1, e2;
+        DoubleDiv(DoubleNode e1, DoubleNode e2) { this.e1 = e1; this.e2 = e2; }
+        double eval(Frame f) { return e1.eval(f) / e2.eval(f); }
+    }
+    static final class DoublePlus extends DoubleNode {
+        final DoubleNode e1, e2;
+        DoublePlus(DoubleNode e1, DoubleNode e2) { this.e1 = e1; this.e2 = e2; }
+        double eval(Frame f) { return e1.eval(f) + e2.eval(f); }
+    }
+    static final class DoubleMinus extends DoubleNode {
+        final DoubleNode e1, e2;
+        DoubleMinus(DoubleNode e1, DoubleNode e2) { this.e1 = e1; this.e2 = e2; }
+        double eval(Frame f) { return e1.eval(f) - e2.eval(f); }
+    }
+
+    // bool expressions
+    static final class BoolConst extends BoolNode {
+        final boolean value;
+        BoolConst(boolean value) { this.value = value; }
+        boolean eval(Frame f) { return value; }
+    }
+    static final class BoolVar extends BoolNode {
+        final int slot;
+        BoolVar(int slot) { this.slot = slot; }
+        boolean eval(Frame f) { return f.ints[slot] != 0; }
+    }
+    static final class BoolCall extends BoolNode {
+        final Invoke call;
+        BoolCall(Invoke call) { this.call = call; }
+        boolean eval(Frame f) { return call.call(f).intResult != 0; }
+    }
+    static final class BoolAssign extends BoolNode {
+        final int slot; final BoolNode e;
+        BoolAssign(int slot, BoolNode e) { this.slot = slot; this.e = e; }
+        boolean eval(Frame f) { boolean v = e.eval(f); f.ints[slot] = v ? 1 : 0; return v; }
+    }
+    static final class IntLt extends BoolNode {
+        final IntNode e1, e2;
+        IntLt(IntNode e1, IntNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) < e2.eval(f); }
+    }
+    static final class IntGt extends BoolNode {
+        final IntNode e1, e2;
+        IntGt(IntNode e1, IntNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) > e2.eval(f); }
+    }
+    static final class IntLtEq extends BoolNode {
+        final IntNode e1, e2;
+        IntLtEq(IntNode e1, IntNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) <= e2.eval(f); }
+    }
+    static final class IntGtEq extends BoolNode {
+        final IntNode e1, e2;
+        IntGtEq(IntNode e1, IntNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) >= e2.eval(f); }
+    }
+    static final class IntEq extends BoolNode {
+        final IntNode e1, e2;
+        IntEq(IntNode e1, IntNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) == e2.eval(f); }
+    }
+    static final class IntNEq extends BoolNode {
+        final IntNode e1, e2;
+        IntNEq(IntNode e1, IntNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) != e2.eval(f); }
+    }
+    static final class DoubleLt extends BoolNode {
+        final DoubleNode e1, e2;
+        DoubleLt(DoubleNode e1, DoubleNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) < e2.eval(f); }
+    }
+    static final class DoubleGt extends BoolNode {
+        final DoubleNode e1, e2;
+        DoubleGt(DoubleNode e1, DoubleNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) > e2.eval(f); }
+    }
+    static final class DoubleLtEq extends BoolNode {
+        final DoubleNode e1, e2;
+        DoubleLtEq(DoubleNode e1, DoubleNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) <= e2.eval(f); }
+    }
+    static final class DoubleGtEq extends BoolNode {
+        final DoubleNode e1, e2;
+        DoubleGtEq(DoubleNode e1, DoubleNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) >= e2.eval(f); }
+    }
+    static final class DoubleEq extends BoolNode {
+        final DoubleNode e1, e2;
+        DoubleEq(DoubleNode e1, DoubleNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) == e2.eval(f); }
+    }
+    static final class DoubleNEq extends BoolNode {
+        final DoubleNode e1, e2;
+        DoubleNEq(DoubleNode e1, DoubleNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) != e2.eval(f); }
+    }
+    static final class BoolEq extends BoolNode {
+        final BoolNode e1, e2;
+        BoolEq(BoolNode e1, BoolNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) == e2.eval(f); }
+    }
+    static final class BoolNEq extends BoolNode {
+        final BoolNode e1, e2;
+        BoolNEq(BoolNode e1, BoolNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) != e2.eval(f); }
+    }
+    static final class And extends BoolNode {
+        final BoolNode e1, e2;
+        And(BoolNode e1, BoolNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) && e2.eval(f); }
+    }
+    static final class Or extends BoolNode {
+        final BoolNode e1, e2;
+        Or(BoolNode e1, BoolNode e2) { this.e1 = e1; this.e2 = e2; }
+        boolean eval(Frame f) { return e1.eval(f) || e2.eval(f); }
+    }
+
+    // void expressions
+    static final class VoidCall extends VoidNode {
+        final Invoke call;
+        VoidCall(Invoke call) { this.call = call; }
+        void eval(Frame f) { call.call(f); }
+    }
+    static final class PrintInt extends VoidNode {
+        final Runtime runtime; final IntNode e;
+        PrintInt(Runtime runtime, IntNode e) { this.runtime = runtime; this.e = e; }
+        void eval(Frame f) { runtime.printInt(e.eval(f)); }
+    }
+    static final class PrintDouble extends VoidNode {
+        final Runtime runtime; final DoubleNode e;
+        PrintDouble(Runtime runtime, DoubleNode e) { this.runtime = runtime; this.e = e; }
+        void eval(Frame f) { runtime.printDouble(e.eval(f)); }
+    }
+
+    /* compiler */
+
+    StmNode compileStms(ListStm stms) {
+        StmNode[] nodes = new StmNode[stms.size()];
+        int i = 0;
+        for(Stm stm : stms) {
+            nodes[i++] = compileStm(stm);
+        }
+        return new Block(nodes);
+    }
+
+    StmNode compileStm(Stm s) { return s.accept(stmCompiler, null); }
+    IntNode compileInt(Exp e) { return (IntNode)e.accept(expCompiler, null); }
+    DoubleNode compileDouble(Exp e) { return (DoubleNode)e.accept(expCompiler, null); }
+    BoolNode compileBool(Exp e) { return (BoolNode)e.accept(expCompiler, null); }
+    VoidNode compileVoid(Exp e) { return (VoidNode)e.accept(expCompiler, null); }
+
+    private static boolean isDouble(Exp e) { return Resolver.typeOf(e) instanceof Type_double; }
+    private static boolean isBool(Exp e) { return Resolver.typeOf(e) instanceof Type_bool; }
+    private static int slot(Exp e) { return ((Resolver.Var)e).slot; }
+
+    private class StmCompiler implements Stm.Visitor<StmNode, Object> {
+        public StmNode visit(SExp s, Object arg) {
+            Object e = s.exp_.accept(expCompiler, arg);
+            if (e instanceof IntNode)
+                return new IntEffect((IntNode)e);
+            else if (e instanceof DoubleNode)
+                return new DoubleEffect((DoubleNode)e);
+            else if (e instanceof BoolNode)
+                return new BoolEffect((BoolNode)e);
+            else
+                return new VoidEffect((VoidNode)e);
+        }
+
+        public StmNode visit(SDecls s, Object arg) {
+            return new Decls(((Resolver.Decls)s).slots);
+        }
+
+        public StmNode visit(SInit s, Object arg) {
+            int slot = ((Resolver.Init)s).slot;
+            if (s.type_ instanceof Type_double)
+                return new DoubleInit(slot, compileDouble(s.exp_));
+            else if (s.type_ instanceof Type_int)
+                return new IntInit(slot, compileInt(s.exp_));
+            else
+                return new BoolInit(slot, compileBool(s.exp_));
+        }
+
+        public StmNode visit(SReturn s, Object arg) {
+            if (s instanceof Resolver.TailCall && functions.containsKey(((EApp)s.exp_).id_))
+                return new TailCall(expCompiler.invoke((EApp)s.exp_, arg));
+            Object e = s.exp_.accept(expCompiler, arg);
+            if (e instanceof IntNode)
+                return new IntReturn((IntNode)e);
+            else if (e instanceof DoubleNode)
+                return new DoubleReturn((DoubleNode)e);
+            else if (e instanceof BoolNode)
+                return new BoolReturn((BoolNode)e);
+            else
+                return new VoidReturn((VoidNode)e);
+        }
+
+        public StmNode visit(SWhile s, Object arg) {
+            return new While(compileBool(s.exp_), compileStm(s.stm_));
+        }
+
+        public StmNode visit(SBlock s, Object arg) {
+            return compileStms(s.liststm_);
+        }
+
+        public StmNode visit(SIfElse s, Object arg) {
+            return new IfElse(compileBool(s.exp_), compileStm(s.stm_1), compileStm(s.stm_2));
+        }
+    }
+
+    // returns an IntNode, DoubleNode, BoolNode or VoidNode depending on the type of the expression
+    private class ExpCompiler implements Exp.Visitor<Object, Object> {
+        // basic
+        public Object visit(ETrue e, Object arg) { return new BoolConst(true); }
+        public Object visit(EFalse e, Object arg) { return new BoolConst(false); }
+        public Object visit(EInt e, Object arg) { return new IntConst(e.integer_); }
+        public Object visit(EDouble e, Object arg) { return new DoubleConst(e.double_); }
+
+        // var, function
+        public Object visit(EId e, Object arg) {
+            Resolver.Var v = (Resolver.Var)e;
+            if (v.type instanceof Type_double)
+                return new DoubleVar(v.slot);
+            else if (v.type instanceof Type_int)
+                return new IntVar(v.slot);
+            else
+                return new BoolVar(v.slot);
+        }
+
+        public Object visit(EApp e, Object arg) {
+            switch (e.id_) {
+                case "printInt":
+                    return new PrintInt(runtime, compileInt(e.listexp_.getFirst()));
+                case "printDouble":
+                    return new PrintDouble(runtime, compileDouble(e.listexp_.getFirst()));
+                case "readInt":
+                    return new ReadInt(runtime);
+                case "readDouble":
+                    return new ReadDouble(runtime);
+            }
+
+            Invoke call = invoke(e, arg);
+            Type t = call.fn.def.type_;
+            if (t instanceof Type_int)
+                return new IntCall(call);
+            else if (t instanceof Type_double)
+                return new DoubleCall(call);
+            else if (t instanceof Type_bool)
+                return new BoolCall(call);
+            else
+                return new VoidCall(call);
+        }
+
+        Invoke invoke(EApp e, Object arg) {
+            ArgNode[] args = new ArgNode[e.listexp_.size()];
+            int i = 0;
+            for(Exp exp : e.listexp_) {
+                Object node = exp.accept(this, arg);
+                if (node instanceof IntNode)
+                    args[i++] = new IntArg((IntNode)node);
+                else if (node instanceof DoubleNode)
+                    args[i++] = new DoubleArg((DoubleNode)node);
+                else
+                    args[i++] = new BoolArg((BoolNode)node);
+            }
+            return new Invoke(functions.get(e.id_), args);
+        }
+
+        //++ --
+        public Object visit(EPostIncr e, Object arg) {
+            return isDouble(e.exp_) ? new DoublePostAdd(slot(e.exp_), 1.0) : new IntPostAdd(slot(e.exp_), 1);
+        }
+        public Object visit(EPostDecr e, Object arg) {
+            return isDouble(e.exp_) ? new DoublePostAdd(slot(e.exp_), -1.0) : new IntPostAdd(slot(e.exp_), -1);
+        }
+        public Object visit(EPreIncr e, Object arg) {
+            return isDouble(e.exp_) ? new DoublePreAdd(slot(e.exp_), 1.0) : new IntPreAdd(slot(e.exp_), 1);
+        }
+        public Object visit(EPreDecr e, Object arg) {
+            return isDouble(e.exp_) ? new DoublePreAdd(slot(e.exp_), -1.0) : new IntPreAdd(slot(e.exp_), -1);
+        }
+
+        // * / + - assignment
+        public Object visit(ETimes e, Object arg) {
+            if (isDouble(e))
+                return new DoubleTimes(compileDouble(e.exp_1), compileDouble(e.exp_2));
+            return new IntTimes(compileInt(e.exp_1), compileInt(e.exp_2));
+        }
+        public Object visit(EDiv e, Object arg) {
+            if (isDouble(e))
+                return new DoubleDiv(compileDouble(e.exp_1), compileDouble(e.exp_2));
+            return new IntDiv(compileInt(e.exp_1), compileInt(e.exp_2));
+        }
+        public Object visit(EPlus e, Object arg) {
+            if (isDouble(e))
+                return new DoublePlus(compileDouble(e.exp_1), compileDouble(e.exp_2));
+            return new IntPlus(compileInt(e.exp_1), compileInt(e.exp_2));
+        }
+        public Object visit(EMinus e, Object arg) {
+            if (isDouble(e))
+                return new DoubleMinus(compileDouble(e.exp_1), compileDouble(e.exp_2));
+            return new IntMinus(compileInt(e.exp_1), compileInt(e.exp_2));
+        }
+        public Object visit(EAss e, Object arg) {
+            if (isDouble(e))
+                return new DoubleAssign(slot(e.exp_1), compileDouble(e.exp_2));
+            else if (isBool(e))
+                return new BoolAssign(slot(e.exp_1), compileBool(e.exp_2));
+            return new IntAssign(slot(e.exp_1), compileInt(e.exp_2));
+        }
+
+        // < > >= ... && ||, the operands of comparisons have the same type
+        public Object visit(ELt e, Object arg) {
+            if (isDouble(e.exp_1))
+                return new DoubleLt(compileDouble(e.exp_1), compileDouble(e.exp_2));
+            return new IntLt(compileInt(e.exp_1), compileInt(e.exp_2));
+        }
+        public Object visit(EGt e, Object arg) {
+            if (isDouble(e.exp_1))
+                return new DoubleGt(compileDouble(e.exp_1), compileDouble(e.exp_2));
+            return new IntGt(compileInt(e.exp_1), compileInt(e.exp_2));
+        }
+        public Object visit(ELtEq e, Object arg) {
+            if (isDouble(e.exp_1))
+                return new DoubleLtEq(compileDouble(e.exp_1), compileDouble(e.exp_2));
+            return new IntLtEq(compileInt(e.exp_1), compileInt(e.exp_2));
+        }
+        public Object visit(EGtEq e, Object arg) {
+            if (isDouble(e.exp_1))
+                return new DoubleGtEq(compileDouble(e.exp_1), compileDouble(e.exp_2));
+            return new IntGtEq(compileInt(e.exp_1), compileInt(e.exp_2));
+        }
+        public Object visit(EEq e, Object arg) {
+            if (isDouble(e.exp_1))
+                return new DoubleEq(compileDouble(e.exp_1), compileDouble(e.exp_2));
+            else if (isBool(e.exp_1))
+                return new BoolEq(compileBool(e.exp_1), compileBool(e.exp_2));
+            return new IntEq(compileInt(e.exp_1), compileInt(e.exp_2));
+        }
+        public Object visit(ENEq e, Object arg) {
+            if (isDouble(e.exp_1))
+                return new DoubleNEq(compileDouble(e.exp_1), compileDouble(e.exp_2));
+            else if (isBool(e.exp_1))
+                return new BoolNEq(compileBool(e.exp_1), compileBool(e.exp_2));
+            return new IntNEq(compileInt(e.exp_1), compileInt(e.exp_2));
+        }
+        public Object visit(EAnd e, Object arg) { return new And(compileBool(e.exp_1), compileBool(e.exp_2)); }
+        public Object visit(EOr e, Object arg) { return new Or(compileBool(e.exp_1), compileBool(e.exp_2)); }
+    }
+}
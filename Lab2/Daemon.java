@@ -0,0 +1,200 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps one JVM running the jobs of many lab2 invocations, which arrive on a
+ * Unix domain socket, so the front end and the backends stay loaded and
+ * compiled by the JIT from one program to the next.
+ *
+ * A connection carries one job, a line
+ *
+ *     run [mode] path      runs the program in the file at path
+ *     check path           only parses and type checks it
+ *
+ * followed by the standard input of the program up to the end of the
+ * stream. The answer is a series of frames, each a line with a tag and a
+ * byte count followed by that many bytes, "o n" for standard output and
+ * "e n" for standard error, and last a line "x status" with the status lab2
+ * exits with.
+ */
+public class Daemon {
+
+    public static void serve(String socket) throws IOException {
+        Path path = Paths.get(socket);
+        // a socket left behind by a daemon that was killed
+        if (Files.exists(path, LinkOption.NOFOLLOW_LINKS)
+                && Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther())
+            Files.delete(path);
+
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(path));
+        path.toFile().deleteOnExit();
+        System.err.println("lab2 listening on " + path);
+
+        // programs are kept in memory, and in the directory LAB2_CACHE names if it is set
+        String directory = System.getenv("LAB2_CACHE");
+        final ProgramCache cache = new ProgramCache(ProgramCache.CAPACITY, directory == null ? null : new File(directory));
+
+        // jobs wait for the input of their clients, so each needs a thread
+        ExecutorService executor = ProgramRunner.newVirtualThreadExecutor();
+        if (executor == null)
+            executor = Executors.newCachedThreadPool();
+        for (;;) {
+            final SocketChannel client = server.accept();
+            executor.execute(() -> handle(client, cache));
+        }
+    }
+
+    private static void handle(SocketChannel client, ProgramCache cache) {
+        try (SocketChannel c = client) {
+            InputStream in = Channels.newInputStream(c);
+            OutputStream out = Channels.newOutputStream(c);
+            PrintStream stdout = new PrintStream(new BufferedOutputStream(new Frames("o", out)));
+            PrintStream stderr = new PrintStream(new BufferedOutputStream(new Frames("e", out)));
+            int status;
+            try {
+                status = run(readLine(in), cache, in, stdout, stderr);
+            } catch (StackOverflowError | OutOfMemoryError e) {
+                // only the job fails, not the daemon
+                stderr.println(e.toString());
+                status = 1;
+            }
+            stdout.flush();
+            stderr.flush();
+            out.write(("x " + status + "\n").getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            // the client went away
+        }
+    }
+
+    private static int run(String job, ProgramCache cache, InputStream input, PrintStream out, PrintStream err) {
+        String mode = null;
+        String path = null;
+        if (job != null && job.startsWith("check ")) {
+            path = job.substring(6);
+        } else if (job != null && job.startsWith("run ")) {
+            path = job.substring(4);
+            mode = "";
+            if (path.startsWith("-") && path.indexOf(' ') > 0) {
+                mode = path.substring(0, path.indexOf(' '));
+                path = path.substring(mode.length() + 1);
+            }
+        }
+        if (path == null || (mode != null && !ProgramRunner.MODES.contains(mode))) {
+            err.println("invalid job " + job);
+            return 1;
+        }
+
+        String source;
+        try {
+            source = new String(Files.readAllBytes(Paths.get(path)));
+        } catch (IOException e) {
+            err.println(e.toString());
+            return 1;
+        }
+        return ProgramRunner.run(cache, source, mode, input, out, err);
+    }
+
+    // writes everything as frames with the given tag
+    private static class Frames extends OutputStream {
+        private final String tag;
+        private final OutputStream out;
+
+        Frames(String tag, OutputStream out) {
+            this.tag = tag;
+            this.out = out;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return;
+            out.write((tag + " " + len + "\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(b, off, len);
+        }
+    }
+
+    // a line without the newline, read byte by byte so nothing after it is consumed
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0)
+                return line.size() > 0 ? line.toString("UTF-8") : null;
+            line.write(b);
+        }
+        return line.toString("UTF-8");
+    }
+
+    /**
+     * Runs a program in the daemon listening on socket, with the standard
+     * input and output of this process, and returns its status.
+     */
+    public static int connect(String socket, String mode, String file) throws IOException {
+        final SocketChannel c = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        String job = "run " + (mode.equals("") ? "" : mode + " ") + new File(file).getAbsolutePath() + "\n";
+        c.write(ByteBuffer.wrap(job.getBytes(StandardCharsets.UTF_8)));
+
+        // the input goes to the daemon while the output comes back
+        Thread input = new Thread() {
+            public void run() {
+                byte[] buffer = new byte[8192];
+                try {
+                    for (int n = System.in.read(buffer); n >= 0; n = System.in.read(buffer)) {
+                        ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, n);
+                        while (bytes.hasRemaining())
+                            c.write(bytes);
+                    }
+                    c.shutdownOutput();
+                } catch (IOException e) {
+                    // the program finished without reading all of it
+                }
+            }
+        };
+        input.setDaemon(true);
+        input.start();
+
+        InputStream in = new BufferedInputStream(Channels.newInputStream(c));
+        for (;;) {
+            String frame = readLine(in);
+            if (frame == null)
+                throw new IOException("lab2 daemon closed the connection");
+            // the byte count of a frame, or the status at the end
+            int length = Integer.parseInt(frame.substring(2));
+            if (frame.startsWith("x"))
+                return length;
+            byte[] bytes = new byte[length];
+            for (int read = 0; read < length; ) {
+                int n = in.read(bytes, read, length - read);
+                if (n < 0)
+                    throw new IOException("lab2 daemon closed the connection");
+                read += n;
+            }
+            PrintStream to = frame.startsWith("o") ? System.out : System.err;
+            to.write(bytes);
+            to.flush();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import CPP.FoldVisitor;
+import CPP.Absyn.*;
+
+/**
+ * Finds the places in a program where the Interpreter may evaluate operands
+ * in parallel: + - * / and calls whose operands have no effects, read
+ * variables only, and of which at least two call a costly pure function.
+ * A pure function is costly if it is recursive or loops. Operands like these
+ * can't observe each other, so evaluating them at once gives the same
+ * values as evaluating them in order.
+ */
+public class ForkSites {
+
+    private final Purity purity;
+    private final HashSet<String> costly = new HashSet<String>();
+
+    private ForkSites(Program p) {
+        purity = new Purity(p);
+        for (Def f : ((PDefs)p).listdef_) {
+            DFun df = (DFun)f;
+            if (purity.isPure(df.id_) && (purity.isRecursive(df.id_) || df.accept(new Loops(), null)))
+                costly.add(df.id_);
+        }
+    }
+
+    // the operators and calls of p whose operands may be evaluated in parallel, by identity
+    public static Set<Exp> find(Program p) {
+        ForkSites forkSites = new ForkSites(p);
+        Set<Exp> sites = Collections.newSetFromMap(new IdentityHashMap<Exp, Boolean>());
+        for (Def f : ((PDefs)p).listdef_) {
+            f.accept(forkSites.new Sites(), sites);
+        }
+        return sites;
+    }
+
+    private boolean forks(Exp... operands) {
+        int costlyOperands = 0;
+        for (Exp e : operands) {
+            if (!e.accept(new Effectless(), null))
+                return false;
+            if (e.accept(new CallsCostly(), null))
+                costlyOperands++;
+        }
+        return costlyOperands >= 2;
+    }
+
+    private class Sites extends FoldVisitor<Void, Set<Exp>> {
+        public Void leaf(Set<Exp> sites) { return null; }
+        public Void combine(Void x, Void y, Set<Exp> sites) { return null; }
+
+        private Void binary(Exp e, Exp e1, Exp e2, Set<Exp> sites) {
+            if (forks(e1, e2))
+                sites.add(e);
+            e1.accept(this, sites);
+            return e2.accept(this, sites);
+        }
+
+        public Void visit(ETimes e, Set<Exp> sites) { return binary(e, e.exp_1, e.exp_2, sites); }
+        public Void visit(EDiv e, Set<Exp> sites) { return binary(e, e.exp_1, e.exp_2, sites); }
+        public Void visit(EPlus e, Set<Exp> sites) { return binary(e, e.exp_1, e.exp_2, sites); }
+        public Void visit(EMinus e, Set<Exp> sites) { return binary(e, e.exp_1, e.exp_2, sites); }
+
+        public Void visit(EApp e, Set<Exp> sites) {
+            if (forks(e.listexp_.toArray(new Exp[0])))
+                sites.add(e);
+            for (Exp arg : e.listexp_) {
+                arg.accept(this, sites);
+            }
+            return null;
+        }
+    }
+
+    // true if an expression neither assigns nor calls impure functions
+    private class Effectless extends FoldVisitor<Boolean, Void> {
+        public Boolean leaf(Void arg) { return true; }
+        public Boolean combine(Boolean x, Boolean y, Void arg) { return x && y; }
+
+        public Boolean visit(EApp e, Void arg) {
+            return purity.isPure(e.id_) && super.visit(e, arg);
+        }
+        public Boolean visit(EAss e, Void arg) { return false; }
+        public Boolean visit(EPostIncr e, Void arg) { return false; }
+        public Boolean visit(EPostDecr e, Void arg) { return false; }
+        public Boolean visit(EPreIncr e, Void arg) { return false; }
+        public Boolean visit(EPreDecr e, Void arg) { return false; }
+    }
+
+    // true if an expression calls a costly function
+    private class CallsCostly extends FoldVisitor<Boolean, Void> {
+        public Boolean leaf(Void arg) { return false; }
+        public Boolean combine(Boolean x, Boolean y, Void arg) { return x || y; }
+
+        public Boolean visit(EApp e, Void arg) {
+            return costly.contains(e.id_) || super.visit(e, arg);
+        }
+    }
+
+    // true if a function has a loop
+    private static class Loops extends FoldVisitor<Boolean, Void> {
+        public Boolean leaf(Void arg) { return false; }
+        public Boolean combine(Boolean x, Boolean y, Void arg) { return x || y; }
+
+        public Boolean visit(SWhile s, Void arg) { return true; }
+    }
+}
@@ -0,0 +1,26 @@
+/**
+ * Variables of one function call, unboxed. Every slot of the Resolver has an
+ * int and a double cell; int and bool variables (0 or 1) use the first,
+ * double variables the second. The result of the call is left in
+ * {@code intResult} or {@code doubleResult}.
+ *
+ * A call in return position leaves the function it calls in {@code callee}
+ * and the frame of that call in {@code next} instead, and the caller of
+ * this frame runs it in place of this one, so tail calls don't nest.
+ */
+public class Frame {
+    public final int[] ints;
+    public final double[] doubles;
+
+    public int intResult;
+    public double doubleResult;
+
+    // a function of the backend, null unless the call ended in a tail call
+    public Object callee;
+    public Frame next;
+
+    public Frame(int size) {
+        ints = new int[size];
+        doubles = new double[size];
+    }
+}
@@ -0,0 +1,311 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import CPP.ComposVisitor;
+import CPP.Absyn.*;
+
+/**
+ * Moves loop invariant expressions of while loops into temporaries that are
+ * initialized once before the loop. An expression is invariant if it has no
+ * effects and reads only variables that the loop neither assigns nor
+ * declares. Calls count as well if the called function is pure, that is
+ * neither it nor anything it calls uses the built-in functions.
+ *
+ * The first evaluation of the condition happens in any case, so everything
+ * the condition evaluates unconditionally before its first effect is
+ * hoisted. The body may not run at all, so from there, from the right
+ * operand of && and ||, and from after an effect in the condition, only
+ * arithmetic that can't fail is hoisted: no calls, no integer division
+ * unless by a literal, and no variables that may be uninitialized.
+ *
+ * A loop with hoisted expressions becomes a block of the temporaries and the
+ * loop. Temporaries are named $0, $1, ... which can't clash with a CPP
+ * identifier. Inner loops are done first, so their temporaries can move
+ * further out.
+ */
+public class Hoister extends ComposVisitor<Object> {
+
+    private static class Var {
+        final Type type;
+        final boolean initialized;
+
+        Var(Type type, boolean initialized) {
+            this.type = type;
+            this.initialized = initialized;
+        }
+    }
+
+    // return types of all functions, and which of them have no effects
+    private HashMap<String,Type> functions = new HashMap<String,Type>();
+    private Purity purity;
+    // variables of the function being rewritten, innermost block last
+    private LinkedList<HashMap<String,Var>> scopes = new LinkedList<HashMap<String,Var>>();
+    // number of temporaries in the current function
+    private int temporaries;
+
+    public Program hoist(Program p) {
+        for (Def f : ((PDefs)p).listdef_) {
+            functions.put(((DFun)f).id_, ((DFun)f).type_);
+        }
+        purity = new Purity(p);
+        return p.accept(this, null);
+    }
+
+    private void declare(String id, Type type, boolean initialized) {
+        scopes.getLast().put(id, new Var(type, initialized));
+    }
+
+    private Var lookup(String id) {
+        // search from current to earlier blocks
+        ListIterator<HashMap<String,Var>> listIterator = scopes.listIterator(scopes.size());
+
+        while(listIterator.hasPrevious()) {
+            HashMap<String,Var> scope = listIterator.previous();
+            if (scope.containsKey(id))
+                return scope.get(id);
+        }
+        throw new RuntimeException("Var " + id + " could not be resolved.");
+    }
+
+    private Stm block(Stm s, Object arg) {
+        scopes.add(new HashMap<String,Var>());
+        Stm stm = s.accept(this, arg);
+        scopes.pollLast();
+        return stm;
+    }
+
+    /* Def */
+    public Def visit(DFun df, Object arg) {
+        scopes.clear();
+        scopes.add(new HashMap<String,Var>());
+        temporaries = 0;
+
+        for (Arg a : df.listarg_) {
+            declare(((ADecl)a).id_, ((ADecl)a).type_, true);
+        }
+        ListStm stms = new ListStm();
+        for (Stm stm : df.liststm_) {
+            stms.add(stm.accept(this, arg));
+        }
+        return new DFun(df.type_, df.id_, df.listarg_, stms);
+    }
+
+    /* Stm */
+    public Stm visit(SDecls s, Object arg) {
+        for (String id : s.listid_) {
+            declare(id, s.type_, false);
+        }
+        return s;
+    }
+
+    public Stm visit(SInit s, Object arg) {
+        declare(s.id_, s.type_, true);
+        return s;
+    }
+
+    public Stm visit(SBlock s, Object arg) {
+        scopes.add(new HashMap<String,Var>());
+        ListStm stms = new ListStm();
+        for (Stm stm : s.liststm_) {
+            stms.add(stm.accept(this, arg));
+        }
+        scopes.pollLast();
+        return new SBlock(stms);
+    }
+
+    public Stm visit(SIfElse s, Object arg) {
+        return new SIfElse(s.exp_, block(s.stm_1, arg), block(s.stm_2, arg));
+    }
+
+    public Stm visit(SWhile s, Object arg) {
+        Stm body = block(s.stm_, arg);
+
+        HashSet<String> variant = new HashSet<String>();
+        s.exp_.accept(new Variant(), variant);
+        body.accept(new Variant(), variant);
+
+        Rewriter rewriter = new Rewriter(variant);
+        Exp exp = rewriter.exp(s.exp_, false);
+        body = body.accept(rewriter, true);
+        if (rewriter.hoisted.isEmpty())
+            return new SWhile(exp, body);
+
+        ListStm stms = new ListStm();
+        for (int i = 0; i < rewriter.hoisted.size(); i++) {
+            Exp e = rewriter.hoisted.get(i);
+            stms.add(new SInit(typeOf(e), rewriter.names.get(i), e));
+        }
+        stms.add(new SWhile(exp, body));
+        return new SBlock(stms);
+    }
+
+    // type of an expression over variables visible at the loop
+    private Type typeOf(Exp e) {
+        if (e instanceof EInt) return new Type_int();
+        if (e instanceof EDouble) return new Type_double();
+        if (e instanceof EId) return lookup(((EId)e).id_).type;
+        if (e instanceof EApp) return functions.get(((EApp)e).id_);
+        if (e instanceof ETimes) return typeOf(((ETimes)e).exp_1);
+        if (e instanceof EDiv) return typeOf(((EDiv)e).exp_1);
+        if (e instanceof EPlus) return typeOf(((EPlus)e).exp_1);
+        if (e instanceof EMinus) return typeOf(((EMinus)e).exp_1);
+        // comparisons, && and ||
+        return new Type_bool();
+    }
+
+    // Replaces the invariant expressions of one loop by temporaries. The
+    // argument of the visits tells whether the code may not run at all.
+    private class Rewriter extends ComposVisitor<Boolean> {
+        final HashSet<String> variant;
+        final ArrayList<Exp> hoisted = new ArrayList<Exp>();
+        final ArrayList<String> names = new ArrayList<String>();
+        // whether an effect was evaluated, from which on failing can't move before the loop
+        boolean effects = false;
+
+        final Invariant invariant = new Invariant();
+        final Rebuild rebuild = new Rebuild();
+
+        Rewriter(HashSet<String> variant) {
+            this.variant = variant;
+        }
+
+        Exp exp(Exp e, boolean speculative) {
+            speculative |= effects;
+            if (!(e instanceof EInt || e instanceof EDouble || e instanceof ETrue || e instanceof EFalse
+                    || e instanceof EId) && e.accept(invariant, speculative))
+                return temporary(e);
+            return e.accept(rebuild, speculative);
+        }
+
+        // the same expression hoisted twice shares its temporary
+        private Exp temporary(Exp e) {
+            int i = hoisted.indexOf(e);
+            if (i < 0) {
+                i = hoisted.size();
+                hoisted.add(e);
+                names.add("$" + temporaries++);
+            }
+            return new EId(names.get(i));
+        }
+
+        /* Stm */
+        public Stm visit(SExp s, Boolean speculative) { return new SExp(exp(s.exp_, speculative)); }
+        public Stm visit(SInit s, Boolean speculative) { return new SInit(s.type_, s.id_, exp(s.exp_, speculative)); }
+        public Stm visit(SReturn s, Boolean speculative) { return new SReturn(exp(s.exp_, speculative)); }
+        public Stm visit(SWhile s, Boolean speculative) { return new SWhile(exp(s.exp_, speculative), s.stm_.accept(this, speculative)); }
+        public Stm visit(SIfElse s, Boolean speculative) {
+            return new SIfElse(exp(s.exp_, speculative), s.stm_1.accept(this, speculative), s.stm_2.accept(this, speculative));
+        }
+
+        // true if an expression is invariant and may be evaluated before the loop
+        private class Invariant implements Exp.Visitor<Boolean, Boolean> {
+            // basic
+            public Boolean visit(ETrue e, Boolean speculative) { return true; }
+            public Boolean visit(EFalse e, Boolean speculative) { return true; }
+            public Boolean visit(EInt e, Boolean speculative) { return true; }
+            public Boolean visit(EDouble e, Boolean speculative) { return true; }
+
+            // var, function
+            public Boolean visit(EId e, Boolean speculative) {
+                return !variant.contains(e.id_) && (!speculative || lookup(e.id_).initialized);
+            }
+            public Boolean visit(EApp e, Boolean speculative) {
+                if (speculative || !purity.isPure(e.id_))
+                    return false;
+                for (Exp arg : e.listexp_) {
+                    if (!arg.accept(this, speculative))
+                        return false;
+                }
+                return true;
+            }
+
+            //++ --
+            public Boolean visit(EPostIncr e, Boolean speculative) { return false; }
+            public Boolean visit(EPostDecr e, Boolean speculative) { return false; }
+            public Boolean visit(EPreIncr e, Boolean speculative) { return false; }
+            public Boolean visit(EPreDecr e, Boolean speculative) { return false; }
+
+            // * / + - assignment
+            public Boolean visit(ETimes e, Boolean s) { return e.exp_1.accept(this, s) && e.exp_2.accept(this, s); }
+            public Boolean visit(EDiv e, Boolean s) {
+                if (!e.exp_1.accept(this, s) || !e.exp_2.accept(this, s))
+                    return false;
+                // integer division by zero fails
+                return !s || typeOf(e.exp_2) instanceof Type_double
+                    || (e.exp_2 instanceof EInt && ((EInt)e.exp_2).integer_ != 0);
+            }
+            public Boolean visit(EPlus e, Boolean s) { return e.exp_1.accept(this, s) && e.exp_2.accept(this, s); }
+            public Boolean visit(EMinus e, Boolean s) { return e.exp_1.accept(this, s) && e.exp_2.accept(this, s); }
+            public Boolean visit(EAss e, Boolean s) { return false; }
+
+            // < > >= ... && ||
+            public Boolean visit(ELt e, Boolean s) { return e.exp_1.accept(this, s) && e.exp_2.accept(this, s); }
+            public Boolean visit(EGt e, Boolean s) { return e.exp_1.accept(this, s) && e.exp_2.accept(this, s); }
+            public Boolean visit(ELtEq e, Boolean s) { return e.exp_1.accept(this, s) && e.exp_2.accept(this, s); }
+            public Boolean visit(EGtEq e, Boolean s) { return e.exp_1.accept(this, s) && e.exp_2.accept(this, s); }
+            public Boolean visit(EEq e, Boolean s) { return e.exp_1.accept(this, s) && e.exp_2.accept(this, s); }
+            public Boolean visit(ENEq e, Boolean s) { return e.exp_1.accept(this, s) && e.exp_2.accept(this, s); }
+            public Boolean visit(EAnd e, Boolean s) { return e.exp_1.accept(this, s) && e.exp_2.accept(this, true); }
+            public Boolean visit(EOr e, Boolean s) { return e.exp_1.accept(this, s) && e.exp_2.accept(this, true); }
+        }
+
+        // rebuilds an expression that isn't hoisted as a whole from its rewritten operands
+        private class Rebuild implements Exp.Visitor<Exp, Boolean> {
+            // basic
+            public Exp visit(ETrue e, Boolean s) { return e; }
+            public Exp visit(EFalse e, Boolean s) { return e; }
+            public Exp visit(EInt e, Boolean s) { return e; }
+            public Exp visit(EDouble e, Boolean s) { return e; }
+
+            // var, function
+            public Exp visit(EId e, Boolean s) { return e; }
+            public Exp visit(EApp e, Boolean s) {
+                ListExp args = new ListExp();
+                for (Exp arg : e.listexp_) {
+                    args.add(exp(arg, s));
+                }
+                effects |= !purity.isPure(e.id_);
+                return new EApp(e.id_, args);
+            }
+
+            //++ --
+            public Exp visit(EPostIncr e, Boolean s) { effects = true; return e; }
+            public Exp visit(EPostDecr e, Boolean s) { effects = true; return e; }
+            public Exp visit(EPreIncr e, Boolean s) { effects = true; return e; }
+            public Exp visit(EPreDecr e, Boolean s) { effects = true; return e; }
+
+            // * / + - assignment
+            public Exp visit(ETimes e, Boolean s) { return new ETimes(exp(e.exp_1, s), exp(e.exp_2, s)); }
+            public Exp visit(EDiv e, Boolean s) { return new EDiv(exp(e.exp_1, s), exp(e.exp_2, s)); }
+            public Exp visit(EPlus e, Boolean s) { return new EPlus(exp(e.exp_1, s), exp(e.exp_2, s)); }
+            public Exp visit(EMinus e, Boolean s) { return new EMinus(exp(e.exp_1, s), exp(e.exp_2, s)); }
+            public Exp visit(EAss e, Boolean s) {
+                Exp exp = exp(e.exp_2, s);
+                effects = true;
+                return new EAss(e.exp_1, exp);
+            }
+
+            // < > >= ... && ||
+            public Exp visit(ELt e, Boolean s) { return new ELt(exp(e.exp_1, s), exp(e.exp_2, s)); }
+            public Exp visit(EGt e, Boolean s) { return new EGt(exp(e.exp_1, s), exp(e.exp_2, s)); }
+            public Exp visit(ELtEq e, Boolean s) { return new ELtEq(exp(e.exp_1, s), exp(e.exp_2, s)); }
+            public Exp visit(EGtEq e, Boolean s) { return new EGtEq(exp(e.exp_1, s), exp(e.exp_2, s)); }
+            public Exp visit(EEq e, Boolean s) { return new EEq(exp(e.exp_1, s), exp(e.exp_2, s)); }
+            public Exp visit(ENEq e, Boolean s) { return new ENEq(exp(e.exp_1, s), exp(e.exp_2, s)); }
+            public Exp visit(EAnd e, Boolean s) { return new EAnd(exp(e.exp_1, s), exp(e.exp_2, true)); }
+            public Exp visit(EOr e, Boolean s) { return new EOr(exp(e.exp_1, s), exp(e.exp_2, true)); }
+        }
+    }
+
+    // collects the variables a loop assigns, increments or declares
+    private static class Variant extends Optimizer.Assigned {
+        public Void visit(SDecls s, HashSet<String> ids) { ids.addAll(s.listid_); return null; }
+        public Void visit(SInit s, HashSet<String> ids) {
+            ids.add(s.id_);
+            return s.exp_.accept(this, ids);
+        }
+    }
+}
@@ -1,108 +1,222 @@
+import java.lang.invoke.MethodHandle;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.ListIterator;
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
-
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.IntBinaryOperator;
+
+import CPP.FoldVisitor;
 import CPP.PrettyPrinter;
 import CPP.Absyn.*;
 
 public class Interpreter {
 
-    private BufferedReader input = new BufferedReader(new InputStreamReader(System.in));
+    private Runtime runtime;
 
-    private static class Env {
-        // functions
-        public HashMap<String, DFun> signatures = new HashMap<String, DFun>();
-        // current variables for Interpreter
-        private LinkedList<HashMap<String,Object>> contexts = new LinkedList<HashMap<String,Object>>();
+    // environment with all declared functions, which all others share
+    private Env baseEnv;
+
+    // calls plus loop iterations after which a function is compiled
+    private static final int JIT_THRESHOLD = 1000;
+
+    // iterations after which a running loop continues compiled
+    private static final int OSR_THRESHOLD = 1000;
+
+    // compiles hot functions to JVM bytecode, null when not tiered
+    private JvmCompiler jit;
+    // compiles hot loops, null when not tiered
+    private ClosureCompiler loops;
+    // the code that compiled code may stand in for, null when not tiered
+    private DefiniteAssignment assignment;
+    private boolean tiered;
+
+    // results kept per memoized function
+    private static final int MEMO_CAPACITY = 1 << 16;
+
+    // caches of the pure recursive functions when memoizing, null otherwise
+    private HashMap<DFun, Memo> memos;
+    private boolean memoize;
+
+    public Interpreter() {
+        this(false);
+    }
 
-        // base environment with all declared functions. used as singleton.
-        private static Env baseEnv = null;
+    public Interpreter(boolean tiered) {
+        this(tiered, false);
+    }
+
+    // operators and calls whose operands are evaluated in parallel, by
+    // identity, null when sequential
+    private Set<Exp> forkSites;
+    private boolean parallel;
+    // forks nest this deep at most, a few tasks per core are enough
+    private final int maxForkDepth = 34 - Integer.numberOfLeadingZeros(ForkJoinPool.getCommonPoolParallelism());
 
-        private Env() { }
+    public Interpreter(boolean tiered, boolean memoize) {
+        this(tiered, memoize, false);
+    }
+
+    public Interpreter(boolean tiered, boolean memoize, boolean parallel) {
+        this(new Runtime(), tiered, memoize, parallel);
+    }
+
+    // the caches of memoize aren't shared between threads, so it can't be parallel
+    public Interpreter(Runtime runtime, boolean tiered, boolean memoize, boolean parallel) {
+        if (parallel && (tiered || memoize))
+            throw new IllegalArgumentException("parallel evaluation is only possible without jit and memoization");
+        this.runtime = runtime;
+        this.tiered = tiered;
+        this.memoize = memoize;
+        this.parallel = parallel;
+    }
+
+    // The results of a function by its arguments, least recently used first.
+    // Arguments compare with equals, so NaN matches NaN and 0.0 isn't -0.0.
+    // Never serialized.
+    @SuppressWarnings("serial")
+    private static class Memo extends LinkedHashMap<List<Object>, Object> {
+        final String function;
+        long hits, misses;
+
+        Memo(String function) {
+            super(16, 0.75f, true);
+            this.function = function;
+        }
+
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, Object> eldest) {
+            return size() > MEMO_CAPACITY;
+        }
+    }
+
+    private static class Env {
+        // functions, shared by all environments
+        public HashMap<String, DFun> signatures;
+        // current variables for Interpreter, indexed by the slots of the Resolver
+        private Object[] vars;
+        // function the variables belong to
+        private Resolver.Function function;
+        // frame left by the last tail call, reused by the next one
+        private Object[] spare;
+        // number of forks the evaluation in this environment is nested in
+        private int forkDepth;
+        // of the innermost of them, null outside of forks
+        private Cancellation cancellation;
+
+        private Env() {
+            this.signatures = new HashMap<String, DFun>();
+        }
 
         private Env(Env env) {
-            this.signatures = new HashMap(env.signatures);
-            this.contexts = new LinkedList();
+            this.signatures = env.signatures;
         }
 
-        public static Env empty() {
-            Env env;
-            if (baseEnv==null)
-                env = new Env();
-            else
-                env = new Env(baseEnv);
-            env.newBlock();
+        // an environment for a call, with the functions of this one
+        public Env empty(int frameSize) {
+            Env env = new Env(this);
+            env.vars = new Object[frameSize];
             return env;
         }
 
-        public static void setAsBaseEnv(Env env) {
-            baseEnv = env;
+        // an environment for one operand of a fork, which only reads the variables
+        public Env fork(Cancellation cancellation) {
+            Env env = new Env(this);
+            env.vars = vars;
+            env.function = function;
+            env.forkDepth = forkDepth + 1;
+            env.cancellation = cancellation;
+            return env;
         }
 
         public DFun lookupFunction(String id) {
             return signatures.get(id);
         }
 
-        public Object lookupVar(String id) {
-        	// search from current to earlier contexts
-            ListIterator<HashMap<String, Object>> listIterator = contexts.listIterator(contexts.size());
-
-            while(listIterator.hasPrevious()) {
-                HashMap<String, Object> context = listIterator.previous();
-                if (context.containsKey(id))
-                    return context.get(id);
-            }
-            return null;
+        public Object lookupVar(int slot) {
+            return vars[slot];
         }
 
-        public void updateVar(String id, Object varValue) {
-        	// search from current to earlier contexts
-            ListIterator<HashMap<String, Object>> listIterator = contexts.listIterator(contexts.size());
-
-            while(listIterator.hasPrevious()) {
-                HashMap<String, Object> context = listIterator.previous();
-                if (context.containsKey(id)) {
-                    context.put(id, varValue);
-                    break;
-                }
-            }
+        public void updateVar(int slot, Object varValue) {
+            vars[slot] = varValue;
         }
 
-        public void declareVar(String id, Object varValue) {
-        	contexts.getLast().put(id, varValue);
+        public void declareVar(int slot, Object varValue) {
+            vars[slot] = varValue;
         }
 
         public void declareFunction(String id, DFun f) {
            	signatures.put(id, f);
         }
-
-        public void newBlock() {
-            contexts.add(new HashMap<String,Object>());
-        }
-
-        public void exitBlock() {
-            contexts.pollLast();
-        }
     }
 
     public void interpret(Program p) {
     	PDefs defs = (PDefs)p;
-        Env baseEnv = Env.empty();
+        baseEnv = new Env();
 
         // Iterate over all function declarations
         for(Def f: defs.listdef_) {
             DFun df = (DFun)f;
 	    baseEnv.declareFunction(df.id_, df);
         }
-        Env.setAsBaseEnv(baseEnv);
+        if (tiered) {
+            jit = new JvmCompiler(baseEnv.signatures);
+            loops = new ClosureCompiler(runtime);
+            loops.compile(p);
+            assignment = new DefiniteAssignment(p);
+        }
+        // on a single processor the tasks would only take turns
+        if (parallel && java.lang.Runtime.getRuntime().availableProcessors() > 1) {
+            forkSites = ForkSites.find(p);
+            // call targets are cached before threads can race on them
+            p.accept(new CallTargets(), baseEnv);
+        }
+        if (memoize) {
+            // only recursive functions repeat calls often enough to pay for the cache
+            Purity purity = new Purity(p);
+            memos = new HashMap<DFun, Memo>();
+            for(Def f: defs.listdef_) {
+                DFun df = (DFun)f;
+                if (purity.isPure(df.id_) && purity.isRecursive(df.id_) && !(df.type_ instanceof Type_void))
+                    memos.put(df, new Memo(df.id_));
+            }
+        }
 
         // interpret function main()
-        Env env = Env.empty();
-        DFun f = env.lookupFunction("main");
-        f.accept(new FunctionInterpreter(), env);
+        Resolver.Function f = (Resolver.Function)baseEnv.lookupFunction("main");
+        Env env = baseEnv.empty(f.frameSize);
+        env.function = f;
+        try {
+            run(env);
+        } finally {
+            if (memos != null)
+                reportMemos();
+        }
+    }
+
+    private void reportMemos() {
+        for(Memo memo : memos.values()) {
+            if (memo.hits + memo.misses > 0)
+                runtime.report("memo " + memo.function + ": " + memo.hits + " hits, " + memo.misses + " misses, "
+                    + memo.size() + " cached");
+        }
+    }
+
+    // returned by a tail call, after which env holds the frame of the callee
+    private static final Object TAIL_CALL = new Object();
+
+    // runs env.function and every function it tail calls in the same env
+    private Object run(Env env) {
+        Object ret;
+        do {
+            checkCancelled(env);
+            ret = env.function.accept(new FunctionInterpreter(), env);
+        } while (ret == TAIL_CALL);
+        return ret;
     }
 
     private class FunctionInterpreter implements Def.Visitor<Object, Env> {
@@ -124,60 +238,119 @@ public class Interpreter {
         }
 
         public Object visit(SDecls df, Env env) {
-            for(String id:df.listid_) {
-                env.declareVar(id,null);
+            for(int slot:((Resolver.Decls)df).slots) {
+                env.declareVar(slot,null);
             }
             return null;
         }
 
         public Object visit(SInit df, Env env) {
         	Object varValue = df.exp_.accept(new ExpEval(), env);
-        	env.declareVar(df.id_, varValue);
+        	env.declareVar(((Resolver.Init)df).slot, varValue);
             return null;
         }
 
         public Object visit(SReturn df, Env env) {
+        	if (df instanceof Resolver.TailCall)
+        	    return new ExpEval().tailCall((Resolver.Call) df.exp_, env);
         	return df.exp_.accept(new ExpEval(), env);
         }
 
         public Object visit(SWhile df, Env env) {
+       	    Resolver.While loop = (Resolver.While) df;
        	    Object ret = null;
-       	    env.newBlock();
        	    while ((boolean) df.exp_.accept(new ExpEval(), env)) {
+       	        checkCancelled(env);
+       	        env.function.hotness++;
+       	        if (loops != null && ++loop.iterations > OSR_THRESHOLD && canContinueCompiled(loop, env))
+       	            return continueCompiled(loop, env);
        	        ret = df.stm_.accept(new StmEval(), env);
        	        if (ret!= null)
        	            break;
        	    }
-       	    env.exitBlock();
        	    return ret;
         }
 
         public Object visit(SBlock df, Env env) {
         	Object ret = null;
-        	env.newBlock();
         	for(Stm stm : df.liststm_) {
                 ret = stm.accept(new StmEval(), env);
                 if (ret!= null)
                     break;
             }
-        	env.exitBlock();
             return ret;
         }
 
 
         public Object visit(SIfElse df, Env env) {
         	Object ret;
-        	env.newBlock();
         	if ((boolean) df.exp_.accept(new ExpEval(), env)) {
         		ret = df.stm_1.accept(new StmEval(), env);
         	} else {
         		ret = df.stm_2.accept(new StmEval(), env);
         	}
-        	env.exitBlock();
             return ret;
         }
     }
 
+    // operand shapes of binary operators, see specialize
+    private static final int UNINITIALIZED = 0;
+    private static final int INT = 1;
+    private static final int DOUBLE = 2;
+    private static final int BOOL = 3;
+    private static final int GENERIC = 4;
+
+    // Binary operators specialize themselves on the operands of their first
+    // execution and from then on only check for that shape, through one
+    // helper per family of operators taking the int and double operation.
+    // Once other operands turn up the operator falls back to GENERIC, which
+    // tests the operand types as before.
+    private static int specialize(Object v1, Object v2) {
+        if ((v1 instanceof Integer) && (v2 instanceof Integer)) return INT;
+        else if ((v1 instanceof Double) && (v2 instanceof Double)) return DOUBLE;
+        else if ((v1 instanceof Boolean) && (v2 instanceof Boolean)) return BOOL;
+        return GENERIC;
+    }
+
+    private interface IntComparison { boolean test(int a, int b); }
+    private interface DoubleComparison { boolean test(double a, double b); }
+
+    // * / + -, with ints for int operands and doubles otherwise
+    private static Object arithmetic(Resolver.Shape shape, Object v1, Object v2, IntBinaryOperator ints, DoubleBinaryOperator doubles) {
+        int value = shape.value;
+        if (value == INT && (v1 instanceof Integer) && (v2 instanceof Integer))
+            return ints.applyAsInt((int)v1, (int)v2);
+        if (value == DOUBLE && (v1 instanceof Double) && (v2 instanceof Double))
+            return doubles.applyAsDouble((double)v1, (double)v2);
+        return genericArithmetic(shape, v1, v2, ints, doubles);
+    }
+
+    // the first execution, and operands of another shape than that
+    private static Object genericArithmetic(Resolver.Shape shape, Object v1, Object v2, IntBinaryOperator ints, DoubleBinaryOperator doubles) {
+        shape.value = shape.value == UNINITIALIZED ? specialize(v1, v2) : GENERIC;
+        if ((v1 instanceof Integer) && (v2 instanceof Integer)) return ints.applyAsInt((int)v1, (int)v2);
+        return doubles.applyAsDouble(((Number)v1).doubleValue(), ((Number)v2).doubleValue());
+    }
+
+    // < > <= >= == !=, booleans compare as 0 and 1
+    private static boolean compare(Resolver.Shape shape, Object v1, Object v2, IntComparison ints, DoubleComparison doubles) {
+        int value = shape.value;
+        if (value == INT && (v1 instanceof Integer) && (v2 instanceof Integer))
+            return ints.test((int)v1, (int)v2);
+        if (value == DOUBLE && (v1 instanceof Double) && (v2 instanceof Double))
+            return doubles.test((double)v1, (double)v2);
+        if (value == BOOL && (v1 instanceof Boolean) && (v2 instanceof Boolean))
+            return ints.test((boolean)v1 ? 1 : 0, (boolean)v2 ? 1 : 0);
+        return genericCompare(shape, v1, v2, ints, doubles);
+    }
+
+    private static boolean genericCompare(Resolver.Shape shape, Object v1, Object v2, IntComparison ints, DoubleComparison doubles) {
+        shape.value = shape.value == UNINITIALIZED ? specialize(v1, v2) : GENERIC;
+        if ((v1 instanceof Integer) && (v2 instanceof Integer)) return ints.test((int)v1, (int)v2);
+        else if ((v1 instanceof Boolean) && (v2 instanceof Boolean)) return ints.test((boolean)v1 ? 1 : 0, (boolean)v2 ? 1 : 0);
+        return doubles.test(((Number)v1).doubleValue(), ((Number)v2).doubleValue());
+    }
+
     private class ExpEval implements Exp.Visitor<Object, Env> {
         // basic
         public Boolean visit(ETrue e, Env env) { return true; }
@@ -187,7 +360,7 @@ public class Interpreter {
 
         // var, function
         public Object visit(EId e, Env env) {
-            Object v = env.lookupVar(e.id_);
+            Object v = env.lookupVar(((Resolver.Var) e).slot);
             if (v==null) {
                 throw new RuntimeException(e.id_ + " was used uninitialized!");
             }
@@ -197,7 +370,7 @@ public class Interpreter {
 
         //++ --
         public Object visit(EPostIncr e, Env env) {
-        	String var = ((EId) e.exp_).id_;
+        	int var = ((Resolver.Var) e.exp_).slot;
         	Object oldValue = env.lookupVar(var);
         	if (oldValue instanceof Integer) {
         		env.updateVar(var, ((Integer) oldValue).intValue() + 1);
@@ -207,7 +380,7 @@ public class Interpreter {
         	return oldValue;
         }
         public Object visit(EPostDecr e, Env env) {
-        	String var = ((EId) e.exp_).id_;
+        	int var = ((Resolver.Var) e.exp_).slot;
         	Object oldValue = env.lookupVar(var);
         	if (oldValue instanceof Integer) {
         		env.updateVar(var, ((Integer) oldValue).intValue() - 1);
@@ -218,7 +391,7 @@ public class Interpreter {
         	return oldValue;
         }
         public Object visit(EPreIncr e, Env env) {
-        	String var = ((EId) e.exp_).id_;
+        	int var = ((Resolver.Var) e.exp_).slot;
         	Object oldValue = env.lookupVar(var);
         	if (oldValue instanceof Integer) {
         		Integer newValue = ((Integer) oldValue).intValue() + 1;
@@ -231,7 +404,7 @@ public class Interpreter {
         	} else return null;
         }
         public Object visit(EPreDecr e, Env env) {
-        	String var = ((EId) e.exp_).id_;
+        	int var = ((Resolver.Var) e.exp_).slot;
         	Object oldValue = env.lookupVar(var);
         	if (oldValue instanceof Integer) {
         		Integer newValue = ((Integer) oldValue).intValue() - 1;
@@ -246,43 +419,55 @@ public class Interpreter {
 
         // * / + - assignment
         public Object visit(ETimes e, Env env) {
-        	Object v1 = e.exp_1.accept(this, env);
-        	Object v2 = e.exp_2.accept(this, env);
-
-        	if ((v1 instanceof Integer) && (v2 instanceof Integer)) return ((int)v1) * ((int)v2);
-        	else if ((v1 instanceof Integer) && (v2 instanceof Double)) return ((int)v1) * ((double)v2);
-        	else if ((v1 instanceof Double) && (v2 instanceof Integer)) return ((double)v1) * ((int)v2);
-        	return ((double)v1) * ((double)v2);
-        }
-        public Object visit(EDiv e, Env env) { 
-        	Object v1 = e.exp_1.accept(this, env);
-        	Object v2 = e.exp_2.accept(this, env);
-
-        	if ((v1 instanceof Integer) && (v2 instanceof Integer)) return ((int)v1) / ((int)v2);
-        	else if ((v1 instanceof Integer) && (v2 instanceof Double)) return ((int)v1) / ((double)v2);
-        	else if ((v1 instanceof Double) && (v2 instanceof Integer)) return ((double)v1) / ((int)v2);
-        	return ((double)v1) / ((double)v2);
-        }
-        public Object visit(EPlus e, Env env) { 
-        	Object v1 = e.exp_1.accept(this, env);
-        	Object v2 = e.exp_2.accept(this, env);
-
-        	if ((v1 instanceof Integer) && (v2 instanceof Integer)) return ((int)v1) + ((int)v2);
-        	else if ((v1 instanceof Integer) && (v2 instanceof Double)) return ((int)v1) + ((double)v2);
-        	else if ((v1 instanceof Double) && (v2 instanceof Integer)) return ((double)v1) + ((int)v2);
-        	return ((double)v1) + ((double)v2);
+        	Object v1, v2;
+        	Object[] forked = forkedOperands(e, e.exp_1, e.exp_2, env);
+        	if (forked == null) {
+        	    v1 = e.exp_1.accept(this, env);
+        	    v2 = e.exp_2.accept(this, env);
+        	} else {
+        	    v1 = forked[0];
+        	    v2 = forked[1];
+        	}
+        	return arithmetic(((Resolver.Times) e).shape, v1, v2, (a, b) -> a * b, (a, b) -> a * b);
+        }
+        public Object visit(EDiv e, Env env) {
+        	Object v1, v2;
+        	Object[] forked = forkedOperands(e, e.exp_1, e.exp_2, env);
+        	if (forked == null) {
+        	    v1 = e.exp_1.accept(this, env);
+        	    v2 = e.exp_2.accept(this, env);
+        	} else {
+        	    v1 = forked[0];
+        	    v2 = forked[1];
+        	}
+        	return arithmetic(((Resolver.Div) e).shape, v1, v2, (a, b) -> a / b, (a, b) -> a / b);
+        }
+        public Object visit(EPlus e, Env env) {
+        	Object v1, v2;
+        	Object[] forked = forkedOperands(e, e.exp_1, e.exp_2, env);
+        	if (forked == null) {
+        	    v1 = e.exp_1.accept(this, env);
+        	    v2 = e.exp_2.accept(this, env);
+        	} else {
+        	    v1 = forked[0];
+        	    v2 = forked[1];
+        	}
+        	return arithmetic(((Resolver.Plus) e).shape, v1, v2, (a, b) -> a + b, (a, b) -> a + b);
         }
         public Object visit(EMinus e, Env env) {
-        	Object v1 = e.exp_1.accept(this, env);
-        	Object v2 = e.exp_2.accept(this, env);
-
-        	if ((v1 instanceof Integer) && (v2 instanceof Integer)) return ((int)v1) - ((int)v2);
-        	else if ((v1 instanceof Integer) && (v2 instanceof Double)) return ((int)v1) - ((double)v2);
-        	else if ((v1 instanceof Double) && (v2 instanceof Integer)) return ((double)v1) - ((int)v2);
-        	return ((double)v1) - ((double)v2);
+        	Object v1, v2;
+        	Object[] forked = forkedOperands(e, e.exp_1, e.exp_2, env);
+        	if (forked == null) {
+        	    v1 = e.exp_1.accept(this, env);
+        	    v2 = e.exp_2.accept(this, env);
+        	} else {
+        	    v1 = forked[0];
+        	    v2 = forked[1];
+        	}
+        	return arithmetic(((Resolver.Minus) e).shape, v1, v2, (a, b) -> a - b, (a, b) -> a - b);
         }
         public Object visit(EAss e, Env env) {
-        	String id = ((EId) e.exp_1).id_;
+        	int id = ((Resolver.Var) e.exp_1).slot;
         	Object v2 = e.exp_2.accept(this, env);
         	env.updateVar(id, v2);
         	return v2;
@@ -290,60 +475,28 @@ public class Interpreter {
 
         // < > >= ... && ||
         public Boolean visit(ELt e, Env env) {
-        	Object v1 = e.exp_1.accept(this, env);
-        	Object v2 = e.exp_2.accept(this, env);
-        	
-        	if ((v1 instanceof Integer) && (v2 instanceof Integer)) return ((int)v1) < ((int)v2);
-        	else if ((v1 instanceof Integer) && (v2 instanceof Double)) return ((int)v1) < ((double)v2);
-        	else if ((v1 instanceof Double) && (v2 instanceof Integer)) return ((double)v1) < ((int)v2);
-        	return ((double)v1) < ((double)v2);
+        	return compare(((Resolver.Lt) e).shape, e.exp_1.accept(this, env), e.exp_2.accept(this, env),
+        			(a, b) -> a < b, (a, b) -> a < b);
         }
         public Boolean visit(EGt e, Env env) {
-        	Object v1 = e.exp_1.accept(this, env);
-        	Object v2 = e.exp_2.accept(this, env);
-        	
-        	if ((v1 instanceof Integer) && (v2 instanceof Integer)) return ((int)v1) > ((int)v2);
-        	else if ((v1 instanceof Integer) && (v2 instanceof Double)) return ((int)v1) > ((double)v2);
-        	else if ((v1 instanceof Double) && (v2 instanceof Integer)) return ((double)v1) > ((int)v2);
-        	return ((double)v1) > ((double)v2);
+        	return compare(((Resolver.Gt) e).shape, e.exp_1.accept(this, env), e.exp_2.accept(this, env),
+        			(a, b) -> a > b, (a, b) -> a > b);
         }
         public Boolean visit(ELtEq e, Env env) {
-        	Object v1 = e.exp_1.accept(this, env);
-        	Object v2 = e.exp_2.accept(this, env);
-        	
-        	if ((v1 instanceof Integer) && (v2 instanceof Integer)) return ((int)v1) <= ((int)v2);
-        	else if ((v1 instanceof Integer) && (v2 instanceof Double)) return ((int)v1) <= ((double)v2);
-        	else if ((v1 instanceof Double) && (v2 instanceof Integer)) return ((double)v1) <= ((int)v2);
-        	return ((double)v1) <= ((double)v2);
+        	return compare(((Resolver.LtEq) e).shape, e.exp_1.accept(this, env), e.exp_2.accept(this, env),
+        			(a, b) -> a <= b, (a, b) -> a <= b);
         }
         public Boolean visit(EGtEq e, Env env) {
-        	Object v1 = e.exp_1.accept(this, env);
-        	Object v2 = e.exp_2.accept(this, env);
-        	
-        	if ((v1 instanceof Integer) && (v2 instanceof Integer)) return ((int)v1) >= ((int)v2);
-        	else if ((v1 instanceof Integer) && (v2 instanceof Double)) return ((int)v1) >= ((double)v2);
-        	else if ((v1 instanceof Double) && (v2 instanceof Integer)) return ((double)v1) >= ((int)v2);
-        	return ((double)v1) >= ((double)v2);
+        	return compare(((Resolver.GtEq) e).shape, e.exp_1.accept(this, env), e.exp_2.accept(this, env),
+        			(a, b) -> a >= b, (a, b) -> a >= b);
         }
         public Boolean visit(EEq e, Env env) {
-        	Object v1 = e.exp_1.accept(this, env);
-        	Object v2 = e.exp_2.accept(this, env);
-        	
-        	if ((v1 instanceof Integer) && (v2 instanceof Integer)) { return ((int)v1) == ((int)v2); }
-        	else if ((v1 instanceof Double) && (v2 instanceof Double)) return ((double)v1) == ((double)v2);
-        	else if ((v1 instanceof Boolean) && (v2 instanceof Boolean)) return ((boolean)v1) == ((boolean)v2);
-        	// TODO: Which other types may be compared for equality
-        	else throw new RuntimeException("You cannot compare two objects of different types for equality.");
+        	return compare(((Resolver.Eq) e).shape, e.exp_1.accept(this, env), e.exp_2.accept(this, env),
+        			(a, b) -> a == b, (a, b) -> a == b);
         }
         public Boolean visit(ENEq e, Env env) {
-        	Object v1 = e.exp_1.accept(this, env);
-        	Object v2 = e.exp_2.accept(this, env);
-        	
-        	if ((v1 instanceof Integer) && (v2 instanceof Integer)) return ((int)v1) != ((int)v2);
-        	else if ((v1 instanceof Double) && (v2 instanceof Double)) return ((double)v1) != ((double)v2);
-           	else if ((v1 instanceof Boolean) && (v2 instanceof Boolean)) return ((boolean)v1) != ((boolean)v2);
-        	// TODO: Which other types may be compared for inequality
-        	else throw new RuntimeException("You cannot compare two objects of different types for inequality.");
+        	return compare(((Resolver.NEq) e).shape, e.exp_1.accept(this, env), e.exp_2.accept(this, env),
+        			(a, b) -> a != b, (a, b) -> a != b);
         }
         public Boolean visit(EAnd e, Env env) { 
         	Object v1 = e.exp_1.accept(this, env);
@@ -379,59 +532,317 @@ public class Interpreter {
         }
         		
         private Object evaluateFunction(EApp e, Env env) {
-        	// Evaluate the arguments
-        	LinkedList<Object> argVals = new LinkedList<Object>();
-        	for (Exp exp: e.listexp_) {
-        		argVals.add(exp.accept(this, env));
-        	}
+        	Resolver.Call call = (Resolver.Call) e;
+        	if (call.target == NOT_CACHED)
+        	    cacheTarget(call, env);
 
         	//// built-in methods
-        	switch (e.id_) {
-            	case "printInt": {
-            		Integer i = (Integer) argVals.getFirst();
-            		System.out.println(i);
+        	switch (call.target) {
+            	case PRINT_INT:
+            		runtime.printInt((Integer) e.listexp_.getFirst().accept(this, env));
             		return null;
-            	}
-            	case "printDouble": {
-            		Double d = (Double) argVals.getFirst();
-            		System.out.println(d);
+            	case PRINT_DOUBLE:
+            		runtime.printDouble((Double) e.listexp_.getFirst().accept(this, env));
             		return null;
-            	}
-
-            	case "readInt":
-            	case "readDouble": {
-            		String line = null;
-            		try {
-            				line = input.readLine();
-				    } catch (IOException e1) {
-					    System.err.println("There was a problem readin a line from stdin");
-					    System.err.println(e1.getMessage());
-					    throw new RuntimeException("Input Error.");
-				    }
-            		if (line != null) {
-            			if (e.id_ == "readInt") {
-            				return Integer.parseInt(line);
-            			} else {
-            				return Double.parseDouble(line);
-            			}
-            		} else {
-				        throw new RuntimeException("Could not read the number from standard-input, the string was \"null\"");
-            		}
-            	}
+            	case READ_INT:
+            		return runtime.readInt();
+            	case READ_DOUBLE:
+            		return runtime.readDouble();
             }
         	//// handle program-specific functions
-        	DFun df = env.lookupFunction(e.id_);
-
-        	// create new env with args
-        	Env newEnv = Env.empty();
-            ListIterator<Arg> argIds = df.listarg_.listIterator();
-        	for(Object argVal:argVals) {
-                ADecl ad = (ADecl)argIds.next();
-        	    newEnv.declareVar(ad.id_,argVal);
+        	Resolver.Function df = call.function;
+        	if (memos != null && memos.containsKey(df))
+        	    return evaluateMemoized(e, env, memos.get(df));
+        	if (isCompiled(df))
+        	    return invokeCompiled(df.compiled, evaluateArgs(e, env, new Object[e.listexp_.size()]));
+
+        	// evaluate the args right into the new env, they take the first slots
+        	Env newEnv = baseEnv.empty(df.frameSize);
+        	newEnv.function = df;
+        	newEnv.forkDepth = env.forkDepth;
+        	newEnv.cancellation = env.cancellation;
+        	evaluateArgs(e, env, newEnv.vars);
+
+        	return run(newEnv);
+        }
+
+        // A pure function returns what it returned for the same arguments
+        // before. Failing calls aren't cached and fail again, and tail calls
+        // stay tail calls without the cache.
+        private Object evaluateMemoized(EApp e, Env env, Memo memo) {
+        	Object[] args = evaluateArgs(e, env, new Object[e.listexp_.size()]);
+        	List<Object> key = Arrays.asList(args);
+        	Object result = memo.get(key);
+        	if (result != null) {
+        	    memo.hits++;
+        	    return result;
+        	}
+        	memo.misses++;
+
+        	Resolver.Function df = ((Resolver.Call)e).function;
+        	Env newEnv = baseEnv.empty(df.frameSize);
+        	newEnv.function = df;
+        	newEnv.cancellation = env.cancellation;
+        	System.arraycopy(args, 0, newEnv.vars, 0, args.length);
+        	result = run(newEnv);
+        	memo.put(key, result);
+        	return result;
+        }
+
+        // Calls in return position don't nest: the args go into the spare
+        // frame of env, which then becomes the frame of the callee, and run
+        // calls the callee once the caller returned TAIL_CALL.
+        private Object tailCall(Resolver.Call call, Env env) {
+        	if (call.target == NOT_CACHED)
+        	    cacheTarget(call, env);
+        	if (call.target != FUNCTION || isCompiled(call.function))
+        	    return evaluateFunction(call, env);
+
+        	Resolver.Function df = call.function;
+        	Object[] vars = env.spare;
+        	if (vars == null || vars.length < df.frameSize)
+        	    vars = new Object[df.frameSize];
+        	evaluateArgs(call, env, vars);
+
+        	env.spare = env.vars;
+        	env.vars = vars;
+        	env.function = df;
+        	return TAIL_CALL;
+        }
+
+        private boolean isForkSite(Exp e, Env env) {
+        	return forkSites != null && forkSites.contains(e) && env.forkDepth < maxForkDepth;
+        }
+
+        // Both operands of e evaluated in parallel if e is a fork site, null
+        // otherwise. Operators then evaluate them in order themselves, so each
+        // keeps calls of accept of its own, which the JVM inlines by the types
+        // it saw there. Calls shared by all operators would see every type.
+        private Object[] forkedOperands(Exp e, Exp e1, Exp e2, Env env) {
+        	return isForkSite(e, env) ? evaluateForked(env, e1, e2) : null;
+        }
+
+        private Object[] evaluateArgs(EApp e, Env env, Object[] vars) {
+        	if (isForkSite(e, env)) {
+        	    Object[] v = evaluateForked(env, e.listexp_.toArray(new Exp[0]));
+        	    System.arraycopy(v, 0, vars, 0, v.length);
+        	    return vars;
+        	}
+        	int slot = 0;
+        	for (Exp exp : e.listexp_) {
+        	    vars[slot++] = exp.accept(this, env);
         	}
+        	return vars;
+        }
+    }
 
-        	return df.accept(new FunctionInterpreter(), newEnv);
+    // Evaluates the first operand in this thread and the others as tasks of
+    // the common pool. The operands have no effects, so only failures could
+    // tell the order apart, and the first failing operand in order fails.
+    // The operands left running then are cancelled, which they notice on the
+    // next loop iteration or call.
+    private Object[] evaluateForked(Env env, Exp... operands) {
+        Cancellation cancellation = new Cancellation(env.cancellation);
+        Operand[] tasks = new Operand[operands.length];
+        for (int i = operands.length - 1; i > 0; i--) {
+            tasks[i] = new Operand(operands[i], env.fork(cancellation));
+            tasks[i].fork();
+        }
+        Object[] values = new Object[operands.length];
+        try {
+            values[0] = operands[0].accept(new ExpEval(), env.fork(cancellation));
+            for (int i = 1; i < tasks.length; i++) {
+                values[i] = tasks[i].join();
+                if (tasks[i].failure instanceof RuntimeException)
+                    throw (RuntimeException) tasks[i].failure;
+                if (tasks[i].failure instanceof Error)
+                    throw (Error) tasks[i].failure;
+            }
+        } catch (RuntimeException | Error ex) {
+            cancellation.set = true;
+            for (int i = 1; i < tasks.length; i++) {
+                tasks[i].cancel(false);
+            }
+            throw ex;
         }
+        return values;
+    }
+
+    // Set once the operands of a fork are no longer needed. Forks nested in
+    // the operands are cancelled with it.
+    private static class Cancellation {
+        final Cancellation outer;
+        volatile boolean set;
+
+        Cancellation(Cancellation outer) {
+            this.outer = outer;
+        }
+
+        boolean isSet() {
+            for (Cancellation c = this; c != null; c = c.outer) {
+                if (c.set)
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    private static void checkCancelled(Env env) {
+        if (env.cancellation != null && env.cancellation.isSet())
+            throw new CancellationException();
     }
-}
 
+    // a task is never serialized
+    @SuppressWarnings("serial")
+    private class Operand extends RecursiveTask<Object> {
+        final Exp exp;
+        final Env env;
+        // what the evaluation threw, rethrown as is by the thread that joins
+        Throwable failure;
+
+        Operand(Exp exp, Env env) {
+            this.exp = exp;
+            this.env = env;
+        }
+
+        protected Object compute() {
+            try {
+                return exp.accept(new ExpEval(), env);
+            } catch (RuntimeException | Error ex) {
+                failure = ex;
+                return null;
+            }
+        }
+    }
+
+    // caches the target of every call up front
+    private static class CallTargets extends FoldVisitor<Void, Env> {
+        public Void leaf(Env env) { return null; }
+        public Void combine(Void x, Void y, Env env) { return null; }
+
+        public Void visit(EApp e, Env env) {
+            cacheTarget((Resolver.Call) e, env);
+            return super.visit(e, env);
+        }
+    }
+
+    // call targets cached in Resolver.Call
+    private static final int NOT_CACHED = 0;
+    private static final int PRINT_INT = 1;
+    private static final int PRINT_DOUBLE = 2;
+    private static final int READ_INT = 3;
+    private static final int READ_DOUBLE = 4;
+    private static final int FUNCTION = 5;
+
+    private static void cacheTarget(Resolver.Call call, Env env) {
+        switch (call.id_) {
+            case "printInt": call.target = PRINT_INT; break;
+            case "printDouble": call.target = PRINT_DOUBLE; break;
+            case "readInt": call.target = READ_INT; break;
+            case "readDouble": call.target = READ_DOUBLE; break;
+            default:
+                call.function = (Resolver.Function)env.lookupFunction(call.id_);
+                call.target = FUNCTION;
+        }
+    }
+
+    // counts a call of df when tiered, true if it runs compiled
+    private boolean isCompiled(Resolver.Function df) {
+        if (jit == null)
+            return false;
+        if (df.compiled == null && ++df.hotness > JIT_THRESHOLD)
+            compile(df);
+        return df.compiled != null;
+    }
+
+    // compiles df together with its callees and installs the code for all of them,
+    // unless one of them may read a variable before assigning it, which only
+    // the Interpreter reports
+    private void compile(Resolver.Function df) {
+        if (!assignment.isSafe(df.id_)) {
+            df.hotness = Integer.MIN_VALUE;
+            return;
+        }
+        try {
+            HashMap<String, MethodHandle> handles = jit.compile(df);
+            for(String id : handles.keySet()) {
+                Resolver.Function f = (Resolver.Function)baseEnv.lookupFunction(id);
+                if (f.compiled == null)
+                    f.compiled = handles.get(id);
+            }
+        } catch (ReflectiveOperationException | LinkageError ex) {
+            // stay interpreted
+            df.hotness = Integer.MIN_VALUE;
+        }
+    }
+
+    private Object invokeCompiled(MethodHandle mh, Object[] args) {
+        try {
+            return (Object) mh.invokeExact(runtime, args);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    // Compiled code has no unassigned variables, so a loop only continues
+    // compiled if all variables in scope are assigned and neither the loop nor
+    // what it calls can read one of its own before assigning it.
+    private boolean canContinueCompiled(Resolver.While loop, Env env) {
+        if (loop.compiledLoop == null && !assignment.isSafe(loop)) {
+            // stay interpreted
+            loop.iterations = Integer.MIN_VALUE;
+            return false;
+        }
+        for(int slot = 0; slot < loop.scope.length; slot++) {
+            if (loop.scope[slot] != null && env.vars[slot] == null) {
+                // try again later
+                loop.iterations = 0;
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Continues a running loop in compiled form. The condition was just
+    // evaluated, so the compiled code starts with the body and then runs the
+    // whole loop. The variables in scope move into a Frame and back after.
+    private Object continueCompiled(Resolver.While loop, Env env) {
+        if (loop.compiledLoop == null) {
+            loop.compiledBody = loops.compileStm(loop.stm_);
+            loop.compiledLoop = loops.compileStm(loop);
+        }
+
+        Frame frame = new Frame(env.vars.length);
+        for(int slot = 0; slot < loop.scope.length; slot++) {
+            Object v = env.vars[slot];
+            if (v instanceof Integer)
+                frame.ints[slot] = (Integer) v;
+            else if (v instanceof Double)
+                frame.doubles[slot] = (Double) v;
+            else if (v instanceof Boolean)
+                frame.ints[slot] = (Boolean) v ? 1 : 0;
+        }
+
+        boolean returned = loop.compiledBody.exec(frame) || loop.compiledLoop.exec(frame);
+
+        for(int slot = 0; slot < loop.scope.length; slot++) {
+            Type t = loop.scope[slot];
+            if (t != null)
+                env.vars[slot] = box(t, frame.ints[slot], frame.doubles[slot]);
+        }
+        if (!returned)
+            return null;
+        // the result of the calls the loop returned with, if any
+        frame = ClosureCompiler.complete(frame);
+        return box(env.function.type_, frame.intResult, frame.doubleResult);
+    }
+
+    private static Object box(Type t, int i, double d) {
+        if (t instanceof Type_int) return i;
+        if (t instanceof Type_double) return d;
+        if (t instanceof Type_bool) return i != 0;
+        return null;
+    }
+}
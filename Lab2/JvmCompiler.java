@@ -0,0 +1,753 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+import CPP.FoldVisitor;
+import CPP.Absyn.*;
+
+/**
+ * Compiles hot functions of the Interpreter to JVM bytecode in memory. A
+ * function is compiled together with every function it can call into one
+ * hidden class, with a static method per CPP function that takes the Runtime
+ * as additional first argument.
+ *
+ * The class files have version 49, which the JVM verifies by type inference,
+ * so no StackMapTable has to be computed. Declared variables start out as
+ * zero, so compiled code can't detect reads of uninitialized variables; the
+ * Interpreter only compiles functions that can't make one, see
+ * {@link DefiniteAssignment}.
+ */
+public class JvmCompiler {
+
+    private static final String RUNTIME = "Runtime";
+    private static final String CLASS = "CompiledFunctions";
+
+    // functions by name, to find the callees of a function
+    private final HashMap<String, DFun> functions;
+    private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+    public JvmCompiler(HashMap<String, DFun> functions) {
+        this.functions = functions;
+    }
+
+    /**
+     * Compiles f and every function reachable from it. Returns for each of them
+     * a handle of type (Runtime, Object[])Object that unboxes the arguments and
+     * boxes the result.
+     */
+    public HashMap<String, MethodHandle> compile(Resolver.Function f) throws ReflectiveOperationException {
+        LinkedHashSet<String> group = new LinkedHashSet<String>();
+        reachable(f.id_, group);
+
+        ClassWriter cw = new ClassWriter();
+        for(String id : group) {
+            cw.method((Resolver.Function)functions.get(id));
+        }
+        Class<?> c = lookup.defineHiddenClass(cw.toByteArray(), true).lookupClass();
+
+        HashMap<String, MethodHandle> handles = new HashMap<String, MethodHandle>();
+        MethodType entry = MethodType.methodType(Object.class, Runtime.class, Object[].class);
+        for(String id : group) {
+            DFun df = functions.get(id);
+            MethodHandle mh = lookup.in(c).findStatic(c, id, methodType(df));
+            handles.put(id, mh.asSpreader(Object[].class, df.listarg_.size()).asType(entry));
+        }
+        return handles;
+    }
+
+    private void reachable(String id, LinkedHashSet<String> group) {
+        if (!group.add(id))
+            return;
+        LinkedHashSet<String> callees = new LinkedHashSet<String>();
+        functions.get(id).accept(new Callees(), callees);
+        for(String callee : callees) {
+            reachable(callee, group);
+        }
+    }
+
+    // collects the names of the non built-in functions that are called
+    private static class Callees extends FoldVisitor<Void, LinkedHashSet<String>> {
+        public Void leaf(LinkedHashSet<String> callees) { return null; }
+        public Void combine(Void x, Void y, LinkedHashSet<String> callees) { return null; }
+
+        public Void visit(EApp e, LinkedHashSet<String> callees) {
+            if (e instanceof Resolver.Call && !isBuiltin(e.id_))
+                callees.add(e.id_);
+            return super.visit(e, callees);
+        }
+    }
+
+    private static boolean isBuiltin(String id) {
+        return id.equals("printInt") || id.equals("printDouble") || id.equals("readInt") || id.equals("readDouble");
+    }
+
+    private MethodType methodType(DFun df) {
+        Class<?>[] params = new Class<?>[df.listarg_.size() + 1];
+        params[0] = Runtime.class;
+        int i = 1;
+        for(Arg arg : df.listarg_) {
+            params[i++] = javaType(((ADecl)arg).type_);
+        }
+        return MethodType.methodType(javaType(df.type_), params);
+    }
+
+    private static Class<?> javaType(Type t) {
+        if (t instanceof Type_int) return int.class;
+        if (t instanceof Type_double) return double.class;
+        if (t instanceof Type_bool) return boolean.class;
+        return void.class;
+    }
+
+    private static String descriptor(Type t) {
+        if (t instanceof Type_int) return "I";
+        if (t instanceof Type_double) return "D";
+        if (t instanceof Type_bool) return "Z";
+        return "V";
+    }
+
+    private static String descriptor(DFun df) {
+        StringBuilder sb = new StringBuilder("(L" + RUNTIME + ";");
+        for(Arg arg : df.listarg_) {
+            sb.append(descriptor(((ADecl)arg).type_));
+        }
+        return sb.append(")").append(descriptor(df.type_)).toString();
+    }
+
+    /* class file */
+
+    private static class Bytes {
+        byte[] data = new byte[256];
+        int length = 0;
+
+        void u1(int b) {
+            if (length == data.length)
+                data = Arrays.copyOf(data, 2 * data.length);
+            data[length++] = (byte)b;
+        }
+        void u2(int s) { u1(s >> 8); u1(s); }
+        void u4(int i) { u2(i >> 16); u2(i); }
+        void u8(long l) { u4((int)(l >> 32)); u4((int)l); }
+        void bytes(Bytes b) {
+            for(int i = 0; i < b.length; i++) {
+                u1(b.data[i]);
+            }
+        }
+    }
+
+    private static class ClassWriter {
+        private final Bytes pool = new Bytes();
+        private final HashMap<String, Integer> entries = new HashMap<String, Integer>();
+        private int poolSize = 1;
+
+        private final Bytes methods = new Bytes();
+        private int methodCount = 0;
+
+        private final int thisClass = classRef(CLASS);
+        private final int superClass = classRef("java/lang/Object");
+        private final int codeName = utf8("Code");
+
+        int utf8(String s) {
+            Integer index = entries.get("U" + s);
+            if (index == null) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                pool.u1(1);
+                pool.u2(b.length);
+                for(byte x : b) {
+                    pool.u1(x);
+                }
+                index = add("U" + s, 1);
+            }
+            return index;
+        }
+
+        int classRef(String name) {
+            Integer index = entries.get("C" + name);
+            if (index == null) {
+                int n = utf8(name);
+                pool.u1(7);
+                pool.u2(n);
+                index = add("C" + name, 1);
+            }
+            return index;
+        }
+
+        int methodRef(String owner, String name, String desc) {
+            String key = "M" + owner + "." + name + desc;
+            Integer index = entries.get(key);
+            if (index == null) {
+                int c = classRef(owner);
+                int n = utf8(name), d = utf8(desc);
+                pool.u1(12);
+                pool.u2(n);
+                pool.u2(d);
+                int nameAndType = add("N" + name + desc, 1);
+                pool.u1(10);
+                pool.u2(c);
+                pool.u2(nameAndType);
+                index = add(key, 1);
+            }
+            return index;
+        }
+
+        int integer(int i) {
+            Integer index = entries.get("I" + i);
+            if (index == null) {
+                pool.u1(3);
+                pool.u4(i);
+                index = add("I" + i, 1);
+            }
+            return index;
+        }
+
+        // doubles take two entries of the constant pool
+        int doubleConstant(double d) {
+            long bits = Double.doubleToRawLongBits(d);
+            Integer index = entries.get("D" + bits);
+            if (index == null) {
+                pool.u1(6);
+                pool.u8(bits);
+                index = add("D" + bits, 2);
+            }
+            return index;
+        }
+
+        private int add(String key, int size) {
+            int index = poolSize;
+            entries.put(key, index);
+            poolSize += size;
+            return index;
+        }
+
+        void method(Resolver.Function df) {
+            MethodCompiler mc = new MethodCompiler(this, df);
+            mc.compile();
+
+            methodCount++;
+            methods.u2(0x0009);                  // public static
+            methods.u2(utf8(df.id_));
+            methods.u2(utf8(descriptor(df)));
+            methods.u2(1);
+            methods.u2(codeName);
+            methods.u4(12 + mc.code.length);
+            methods.u2(mc.maxStack);
+            methods.u2(mc.maxLocals);
+            methods.u4(mc.code.length);
+            methods.bytes(mc.code);
+            methods.u2(0);                       // exception table
+            methods.u2(0);                       // attributes
+        }
+
+        byte[] toByteArray() {
+            Bytes b = new Bytes();
+            b.u4(0xCAFEBABE);
+            b.u2(0);
+            b.u2(49);
+            b.u2(poolSize);
+            b.bytes(pool);
+            b.u2(0x0031);                        // public final super
+            b.u2(thisClass);
+            b.u2(superClass);
+            b.u2(0);                             // interfaces
+            b.u2(0);                             // fields
+            b.u2(methodCount);
+            b.bytes(methods);
+            b.u2(0);                             // attributes
+            return Arrays.copyOf(b.data, b.length);
+        }
+    }
+
+    /* method bodies */
+
+    // JVM opcodes
+    private static final int ICONST_0 = 0x03, DCONST_0 = 0x0e, DCONST_1 = 0x0f;
+    private static final int BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LDC2_W = 0x14;
+    private static final int ILOAD = 0x15, DLOAD = 0x18, ALOAD_0 = 0x2a, ISTORE = 0x36, DSTORE = 0x39;
+    private static final int POP = 0x57, POP2 = 0x58, DUP = 0x59, DUP2 = 0x5c;
+    private static final int IADD = 0x60, DADD = 0x63, ISUB = 0x64, DSUB = 0x67;
+    private static final int IMUL = 0x68, DMUL = 0x6b, IDIV = 0x6c, DDIV = 0x6f, IINC = 0x84;
+    private static final int DCMPL = 0x97, DCMPG = 0x98;
+    private static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+    private static final int IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, IF_ICMPLT = 0xa1, IF_ICMPGE = 0xa2, IF_ICMPGT = 0xa3, IF_ICMPLE = 0xa4;
+    private static final int GOTO = 0xa7, IRETURN = 0xac, DRETURN = 0xaf, RETURN = 0xb1;
+    private static final int INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8, WIDE = 0xc4;
+
+    // comparisons in the order < > <= >= == !=
+    private static final int LT = 0, GT = 1, LE = 2, GE = 3, EQ = 4, NE = 5;
+    private static final int[] INT_JUMP = { IF_ICMPLT, IF_ICMPGT, IF_ICMPLE, IF_ICMPGE, IF_ICMPEQ, IF_ICMPNE };
+    private static final int[] INT_JUMP_NOT = { IF_ICMPGE, IF_ICMPLE, IF_ICMPGT, IF_ICMPLT, IF_ICMPNE, IF_ICMPEQ };
+    // dcmpg for < and <=, dcmpl for the others, so that comparisons with NaN are false
+    private static final int[] DOUBLE_CMP = { DCMPG, DCMPL, DCMPG, DCMPL, DCMPL, DCMPL };
+    private static final int[] DOUBLE_JUMP = { IFLT, IFGT, IFLE, IFGE, IFEQ, IFNE };
+    private static final int[] DOUBLE_JUMP_NOT = { IFGE, IFLE, IFGT, IFLT, IFNE, IFEQ };
+
+    private static class Label {
+        int position = -1;
+        // pairs of the position of a jump instruction and its offset
+        ArrayList<Integer> fixups = new ArrayList<Integer>();
+    }
+
+    private static class MethodCompiler {
+        final ClassWriter cw;
+        final Resolver.Function df;
+        final Bytes code = new Bytes();
+        int stack = 0, maxStack = 0, maxLocals;
+
+        // start of the method, where self tail calls jump back to
+        private final Label start = new Label();
+
+        // JVM local of every slot of the Resolver. Arguments keep their place,
+        // every other slot gets two words so it can hold a double.
+        private final int[] locals;
+
+        MethodCompiler(ClassWriter cw, Resolver.Function df) {
+            this.cw = cw;
+            this.df = df;
+            locals = new int[df.frameSize];
+            int local = 1;
+            int slot = 0;
+            for(Arg arg : df.listarg_) {
+                locals[slot++] = local;
+                local += ((ADecl)arg).type_ instanceof Type_double ? 2 : 1;
+            }
+            for(; slot < df.frameSize; slot++) {
+                locals[slot] = local;
+                local += 2;
+            }
+            maxLocals = local;
+        }
+
+        void compile() {
+            place(start);
+            for(Stm s : df.liststm_) {
+                s.accept(stmCompiler, null);
+            }
+            // falling off the end of a function
+            if (df.type_ instanceof Type_double) {
+                op(DCONST_0, 2);
+                op(DRETURN, -2);
+            } else if (df.type_ instanceof Type_void) {
+                op(RETURN, 0);
+            } else {
+                op(ICONST_0, 1);
+                op(IRETURN, -1);
+            }
+        }
+
+        /* emitting */
+
+        private void op(int opcode, int delta) {
+            code.u1(opcode);
+            stack += delta;
+            if (stack > maxStack)
+                maxStack = stack;
+        }
+
+        private void local(int opcode, int slot, int delta) {
+            int local = locals[slot];
+            if (local > 255) {
+                code.u1(WIDE);
+                op(opcode, delta);
+                code.u2(local);
+            } else {
+                op(opcode, delta);
+                code.u1(local);
+            }
+        }
+
+        private void iinc(int slot, int delta) {
+            int local = locals[slot];
+            if (local > 255) {
+                code.u1(WIDE);
+                code.u1(IINC);
+                code.u2(local);
+                code.u2(delta);
+            } else {
+                code.u1(IINC);
+                code.u1(local);
+                code.u1(delta);
+            }
+        }
+
+        private void intConstant(int i) {
+            if (i >= -1 && i <= 5) {
+                op(ICONST_0 + i, 1);
+            } else if (i >= Byte.MIN_VALUE && i <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                code.u1(i);
+            } else if (i >= Short.MIN_VALUE && i <= Short.MAX_VALUE) {
+                op(SIPUSH, 1);
+                code.u2(i);
+            } else {
+                op(LDC_W, 1);
+                code.u2(cw.integer(i));
+            }
+        }
+
+        private void doubleConstant(double d) {
+            if (Double.doubleToRawLongBits(d) == 0L) {
+                op(DCONST_0, 2);
+            } else if (d == 1.0) {
+                op(DCONST_1, 2);
+            } else {
+                op(LDC2_W, 2);
+                code.u2(cw.doubleConstant(d));
+            }
+        }
+
+        private void jump(int opcode, int delta, Label l) {
+            int at = code.length;
+            op(opcode, delta);
+            if (l.position >= 0) {
+                code.u2(l.position - at);
+            } else {
+                l.fixups.add(at);
+                l.fixups.add(code.length);
+                code.u2(0);
+            }
+        }
+
+        private void place(Label l) {
+            l.position = code.length;
+            for(int i = 0; i < l.fixups.size(); i += 2) {
+                int offset = l.position - l.fixups.get(i);
+                int at = l.fixups.get(i + 1);
+                code.data[at] = (byte)(offset >> 8);
+                code.data[at + 1] = (byte)offset;
+            }
+        }
+
+        private void invoke(int opcode, String owner, String name, String desc, int delta) {
+            op(opcode, delta);
+            code.u2(cw.methodRef(owner, name, desc));
+        }
+
+        /* statements */
+
+        private final StmCompiler stmCompiler = new StmCompiler();
+        private final ExpCompiler expCompiler = new ExpCompiler();
+
+        private void exp(Exp e) {
+            e.accept(expCompiler, null);
+        }
+
+        private static int words(Type t) {
+            if (t instanceof Type_double) return 2;
+            if (t instanceof Type_void) return 0;
+            return 1;
+        }
+
+        private static boolean isDouble(Exp e) {
+            return Resolver.typeOf(e) instanceof Type_double;
+        }
+
+        private void load(Exp var) {
+            if (isDouble(var))
+                local(DLOAD, ((Resolver.Var)var).slot, 2);
+            else
+                local(ILOAD, ((Resolver.Var)var).slot, 1);
+        }
+
+        private void store(Exp var) {
+            if (isDouble(var))
+                local(DSTORE, ((Resolver.Var)var).slot, -2);
+            else
+                local(ISTORE, ((Resolver.Var)var).slot, -1);
+        }
+
+        private void dup(Exp e) {
+            if (isDouble(e))
+                op(DUP2, 2);
+            else
+                op(DUP, 1);
+        }
+
+        // adds delta to a variable, leaving nothing on the stack
+        private void increment(Exp var, int delta) {
+            if (isDouble(var)) {
+                load(var);
+                op(DCONST_1, 2);
+                op(delta > 0 ? DADD : DSUB, -2);
+                store(var);
+            } else {
+                iinc(((Resolver.Var)var).slot, delta);
+            }
+        }
+
+        private class StmCompiler implements Stm.Visitor<Void, Object> {
+            public Void visit(SExp s, Object arg) {
+                Exp e = s.exp_;
+                // values that are dropped right away are not computed
+                if (e instanceof EPostIncr) increment(((EPostIncr)e).exp_, 1);
+                else if (e instanceof EPreIncr) increment(((EPreIncr)e).exp_, 1);
+                else if (e instanceof EPostDecr) increment(((EPostDecr)e).exp_, -1);
+                else if (e instanceof EPreDecr) increment(((EPreDecr)e).exp_, -1);
+                else if (e instanceof EAss) {
+                    exp(((EAss)e).exp_2);
+                    store(((EAss)e).exp_1);
+                } else {
+                    Type t = Resolver.typeOf(e);
+                    exp(e);
+                    if (words(t) == 2)
+                        op(POP2, -2);
+                    else if (words(t) == 1)
+                        op(POP, -1);
+                }
+                return null;
+            }
+
+            public Void visit(SDecls s, Object arg) {
+                for(int slot : ((Resolver.Decls)s).slots) {
+                    if (s.type_ instanceof Type_double) {
+                        op(DCONST_0, 2);
+                        local(DSTORE, slot, -2);
+                    } else {
+                        op(ICONST_0, 1);
+                        local(ISTORE, slot, -1);
+                    }
+                }
+                return null;
+            }
+
+            public Void visit(SInit s, Object arg) {
+                exp(s.exp_);
+                int slot = ((Resolver.Init)s).slot;
+                if (s.type_ instanceof Type_double)
+                    local(DSTORE, slot, -2);
+                else
+                    local(ISTORE, slot, -1);
+                return null;
+            }
+
+            public Void visit(SReturn s, Object arg) {
+                if (s instanceof Resolver.TailCall && ((EApp)s.exp_).id_.equals(df.id_)) {
+                    // the new args replace the old ones, then the function starts over
+                    ListExp args = ((EApp)s.exp_).listexp_;
+                    for(Exp x : args) {
+                        exp(x);
+                    }
+                    for(int slot = args.size() - 1; slot >= 0; slot--) {
+                        if (isDouble(args.get(slot)))
+                            local(DSTORE, slot, -2);
+                        else
+                            local(ISTORE, slot, -1);
+                    }
+                    jump(GOTO, 0, start);
+                    return null;
+                }
+                Type t = Resolver.typeOf(s.exp_);
+                exp(s.exp_);
+                if (t instanceof Type_double)
+                    op(DRETURN, -2);
+                else if (t instanceof Type_void)
+                    op(RETURN, 0);
+                else
+                    op(IRETURN, -1);
+                return null;
+            }
+
+            public Void visit(SWhile s, Object arg) {
+                Label cond = new Label(), body = new Label();
+                jump(GOTO, 0, cond);
+                place(body);
+                s.stm_.accept(this, arg);
+                place(cond);
+                branch(s.exp_, true, body);
+                return null;
+            }
+
+            public Void visit(SBlock s, Object arg) {
+                for(Stm stm : s.liststm_) {
+                    stm.accept(this, arg);
+                }
+                return null;
+            }
+
+            public Void visit(SIfElse s, Object arg) {
+                Label otherwise = new Label(), end = new Label();
+                branch(s.exp_, false, otherwise);
+                s.stm_1.accept(this, arg);
+                jump(GOTO, 0, end);
+                place(otherwise);
+                s.stm_2.accept(this, arg);
+                place(end);
+                return null;
+            }
+        }
+
+        /* expressions */
+
+        // jumps to l if e evaluates to when, falls through otherwise
+        private void branch(Exp e, boolean when, Label l) {
+            if (e instanceof ETrue || e instanceof EFalse) {
+                if ((e instanceof ETrue) == when)
+                    jump(GOTO, 0, l);
+            } else if (e instanceof EAnd || e instanceof EOr) {
+                boolean isAnd = e instanceof EAnd;
+                Exp e1 = isAnd ? ((EAnd)e).exp_1 : ((EOr)e).exp_1;
+                Exp e2 = isAnd ? ((EAnd)e).exp_2 : ((EOr)e).exp_2;
+                if (isAnd != when) {
+                    // false && _ is false, true || _ is true
+                    branch(e1, when, l);
+                    branch(e2, when, l);
+                } else {
+                    Label skip = new Label();
+                    branch(e1, !when, skip);
+                    branch(e2, when, l);
+                    place(skip);
+                }
+            } else if (comparison(e) >= 0) {
+                int c = comparison(e);
+                Exp e1 = left(e), e2 = right(e);
+                exp(e1);
+                exp(e2);
+                if (isDouble(e1)) {
+                    op(DOUBLE_CMP[c], -3);
+                    jump(when ? DOUBLE_JUMP[c] : DOUBLE_JUMP_NOT[c], -1, l);
+                } else {
+                    jump(when ? INT_JUMP[c] : INT_JUMP_NOT[c], -2, l);
+                }
+            } else {
+                exp(e);
+                jump(when ? IFNE : IFEQ, -1, l);
+            }
+        }
+
+        private static int comparison(Exp e) {
+            if (e instanceof ELt) return LT;
+            if (e instanceof EGt) return GT;
+            if (e instanceof ELtEq) return LE;
+            if (e instanceof EGtEq) return GE;
+            if (e instanceof EEq) return EQ;
+            if (e instanceof ENEq) return NE;
+            return -1;
+        }
+
+        private static Exp left(Exp e) {
+            if (e instanceof ELt) return ((ELt)e).exp_1;
+            if (e instanceof EGt) return ((EGt)e).exp_1;
+            if (e instanceof ELtEq) return ((ELtEq)e).exp_1;
+            if (e instanceof EGtEq) return ((EGtEq)e).exp_1;
+            if (e instanceof EEq) return ((EEq)e).exp_1;
+            return ((ENEq)e).exp_1;
+        }
+
+        private static Exp right(Exp e) {
+            if (e instanceof ELt) return ((ELt)e).exp_2;
+            if (e instanceof EGt) return ((EGt)e).exp_2;
+            if (e instanceof ELtEq) return ((ELtEq)e).exp_2;
+            if (e instanceof EGtEq) return ((EGtEq)e).exp_2;
+            if (e instanceof EEq) return ((EEq)e).exp_2;
+            return ((ENEq)e).exp_2;
+        }
+
+        // pushes 1 or 0 for a condition
+        private void condition(Exp e) {
+            Label otherwise = new Label(), end = new Label();
+            branch(e, false, otherwise);
+            op(ICONST_0 + 1, 1);
+            jump(GOTO, 0, end);
+            stack--;
+            place(otherwise);
+            op(ICONST_0, 1);
+            place(end);
+        }
+
+        private void arithmetic(Exp e1, Exp e2, int intOp, int doubleOp) {
+            exp(e1);
+            exp(e2);
+            if (isDouble(e1))
+                op(doubleOp, -2);
+            else
+                op(intOp, -1);
+        }
+
+        private class ExpCompiler implements Exp.Visitor<Void, Object> {
+            // basic
+            public Void visit(ETrue e, Object arg) { intConstant(1); return null; }
+            public Void visit(EFalse e, Object arg) { intConstant(0); return null; }
+            public Void visit(EInt e, Object arg) { intConstant(e.integer_); return null; }
+            public Void visit(EDouble e, Object arg) { doubleConstant(e.double_); return null; }
+
+            // var, function
+            public Void visit(EId e, Object arg) { load(e); return null; }
+
+            public Void visit(EApp e, Object arg) {
+                switch (e.id_) {
+                    case "printInt":
+                        op(ALOAD_0, 1);
+                        exp(e.listexp_.getFirst());
+                        invoke(INVOKEVIRTUAL, RUNTIME, "printInt", "(I)V", -2);
+                        return null;
+                    case "printDouble":
+                        op(ALOAD_0, 1);
+                        exp(e.listexp_.getFirst());
+                        invoke(INVOKEVIRTUAL, RUNTIME, "printDouble", "(D)V", -3);
+                        return null;
+                    case "readInt":
+                        op(ALOAD_0, 1);
+                        invoke(INVOKEVIRTUAL, RUNTIME, "readInt", "()I", 0);
+                        return null;
+                    case "readDouble":
+                        op(ALOAD_0, 1);
+                        invoke(INVOKEVIRTUAL, RUNTIME, "readDouble", "()D", 1);
+                        return null;
+                }
+                Type t = ((Resolver.Call)e).type;
+                StringBuilder desc = new StringBuilder("(L" + RUNTIME + ";");
+                op(ALOAD_0, 1);
+                int words = 1;
+                for(Exp x : e.listexp_) {
+                    exp(x);
+                    words += words(Resolver.typeOf(x));
+                    desc.append(descriptor(Resolver.typeOf(x)));
+                }
+                desc.append(")").append(descriptor(t));
+                invoke(INVOKESTATIC, CLASS, e.id_, desc.toString(), words(t) - words);
+                return null;
+            }
+
+            //++ --
+            public Void visit(EPostIncr e, Object arg) { post(e.exp_, 1); return null; }
+            public Void visit(EPostDecr e, Object arg) { post(e.exp_, -1); return null; }
+            public Void visit(EPreIncr e, Object arg) { pre(e.exp_, 1); return null; }
+            public Void visit(EPreDecr e, Object arg) { pre(e.exp_, -1); return null; }
+
+            private void post(Exp var, int delta) {
+                load(var);
+                increment(var, delta);
+            }
+
+            private void pre(Exp var, int delta) {
+                increment(var, delta);
+                load(var);
+            }
+
+            // * / + - assignment
+            public Void visit(ETimes e, Object arg) { arithmetic(e.exp_1, e.exp_2, IMUL, DMUL); return null; }
+            public Void visit(EDiv e, Object arg) { arithmetic(e.exp_1, e.exp_2, IDIV, DDIV); return null; }
+            public Void visit(EPlus e, Object arg) { arithmetic(e.exp_1, e.exp_2, IADD, DADD); return null; }
+            public Void visit(EMinus e, Object arg) { arithmetic(e.exp_1, e.exp_2, ISUB, DSUB); return null; }
+            public Void visit(EAss e, Object arg) {
+                exp(e.exp_2);
+                dup(e.exp_1);
+                store(e.exp_1);
+                return null;
+            }
+
+            // < > >= ... && ||
+            public Void visit(ELt e, Object arg) { condition(e); return null; }
+            public Void visit(EGt e, Object arg) { condition(e); return null; }
+            public Void visit(ELtEq e, Object arg) { condition(e); return null; }
+            public Void visit(EGtEq e, Object arg) { condition(e); return null; }
+            public Void visit(EEq e, Object arg) { condition(e); return null; }
+            public Void visit(ENEq e, Object arg) { condition(e); return null; }
+            public Void visit(EAnd e, Object arg) { condition(e); return null; }
+            public Void visit(EOr e, Object arg) { condition(e); return null; }
+        }
+    }
+}
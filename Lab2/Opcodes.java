@@ -0,0 +1,75 @@
+/**
+ * Instruction set of the register VM. Every instruction is an opcode
+ * followed by its operands in the int[] code of a function. Operands named
+ * d, a, b are registers, int/bool ones in the int register file and double
+ * ones in the double file, i is an immediate int, k the index of a double
+ * in the constants of the function and t the code index of a jump target.
+ * Comparisons leave 0 or 1 in an int register.
+ */
+public interface Opcodes {
+    int ICONST = 0;     // d i
+    int DCONST = 1;     // d k
+    int IMOV = 2;       // d a
+    int DMOV = 3;       // d a
+
+    int IADD_RR = 4;    // d a b
+    int ISUB_RR = 5;
+    int IMUL_RR = 6;
+    int IDIV_RR = 7;
+    int IADD_RI = 8;    // d a i
+    int ISUB_RI = 9;
+    int IMUL_RI = 10;
+    int IDIV_RI = 11;
+
+    int DADD_RR = 12;   // d a b
+    int DSUB_RR = 13;
+    int DMUL_RR = 14;
+    int DDIV_RR = 15;
+    int DADD_RI = 16;   // d a k
+    int DSUB_RI = 17;
+    int DMUL_RI = 18;
+    int DDIV_RI = 19;
+
+    int ILT_RR = 20;    // d a b
+    int IGT_RR = 21;
+    int ILE_RR = 22;
+    int IGE_RR = 23;
+    int IEQ_RR = 24;
+    int INE_RR = 25;
+    int ILT_RI = 26;    // d a i
+    int IGT_RI = 27;
+    int ILE_RI = 28;
+    int IGE_RI = 29;
+    int IEQ_RI = 30;
+    int INE_RI = 31;
+
+    int DLT_RR = 32;    // d a b
+    int DGT_RR = 33;
+    int DLE_RR = 34;
+    int DGE_RR = 35;
+    int DEQ_RR = 36;
+    int DNE_RR = 37;
+    int DLT_RI = 38;    // d a k
+    int DGT_RI = 39;
+    int DLE_RI = 40;
+    int DGE_RI = 41;
+    int DEQ_RI = 42;
+    int DNE_RI = 43;
+
+    int JMP = 44;       // t
+    int JMPF = 45;      // a t
+    int JMPT = 46;      // a t
+
+    // the n arguments are registers in the file of the respective parameter
+    int CALL_I = 47;    // d f n a1 .. an
+    int CALL_D = 48;    // d f n a1 .. an
+    int CALL_V = 49;    // f n a1 .. an
+    int RET_I = 50;     // a
+    int RET_D = 51;     // a
+    int RET_V = 52;
+
+    int PRINTI = 53;    // a
+    int PRINTD = 54;    // a
+    int READI = 55;     // d
+    int READD = 56;     // d
+}
@@ -0,0 +1,103 @@
+import java.io.InputStream;
+import java.io.PrintStream;
+
+import CPP.Absyn.*;
+
+/**
+ * A program type checked, optimized and resolved once, which then runs any
+ * number of times, each time with input and output of its own, from any
+ * number of threads at once.
+ *
+ * Most backends only read the trees. The Interpreter caches call targets,
+ * operand shapes and compiled code in the nodes of the resolved tree, so it
+ * gets a tree of its own every run, resolved again from the optimized one.
+ *
+ * The register code of the VM is compiled on the first run that needs it
+ * and kept for all later ones.
+ *
+ * Backends that start variables out as zero can't report a variable read
+ * before it is assigned, so programs where {@link DefiniteAssignment} finds
+ * such a read possible run on the Interpreter instead.
+ */
+public class PreparedProgram {
+
+    // the program as it type checked, before any optimization
+    private final Program checked;
+    private final Program optimized;
+    private final Program resolved;
+    // no variable can be read before it is assigned
+    private final boolean definitelyAssigned;
+    // code for the VM straight from the tree and by way of SSA form, null until first run
+    private volatile VM.Function[] vmCode;
+    private volatile VM.Function[] ssaCode;
+
+    // throws TypeException if the program doesn't type check
+    public PreparedProgram(Program parseTree) {
+        this(parseTree, true);
+    }
+
+    private PreparedProgram(Program tree, boolean typecheck) {
+        if (typecheck)
+            new TypeChecker().typecheck(tree);
+        checked = tree;
+        optimized = new Hoister().hoist(new Optimizer().optimize(new Inliner().inline(tree)));
+        resolved = new Resolver().resolve(optimized);
+        definitelyAssigned = new DefiniteAssignment(optimized).isSafe("main");
+    }
+
+    // a program from the type checked tree of one prepared before, as kept by the ProgramCache
+    static PreparedProgram fromChecked(Program checked) {
+        return new PreparedProgram(checked, false);
+    }
+
+    Program checked() {
+        return checked;
+    }
+
+    public void execute(String mode, InputStream input, PrintStream output, PrintStream errors) {
+        execute(mode, new Runtime(input, output, errors));
+    }
+
+    public void execute(String mode, Runtime runtime) {
+        if (mode.equals("-unboxed") && definitelyAssigned)
+            new UnboxedInterpreter(runtime).interpret(resolved);
+        else if (mode.equals("-closure") && definitelyAssigned)
+            new ClosureCompiler(runtime).interpret(resolved);
+        else if (mode.equals("-vm") && definitelyAssigned)
+            new VM(runtime, false).run(vmCode());
+        else if (mode.equals("-ssa") && definitelyAssigned)
+            new VM(runtime, true).run(ssaCode());
+        else if (mode.equals("-jit"))
+            new Interpreter(runtime, true, false, false).interpret(new Resolver().resolve(optimized));
+        else if (mode.equals("-memo"))
+            new Interpreter(runtime, false, true, false).interpret(new Resolver().resolve(optimized));
+        else if (mode.equals("-parallel"))
+            new Interpreter(runtime, false, false, true).interpret(new Resolver().resolve(optimized));
+        else
+            new Interpreter(runtime, false, false, false).interpret(new Resolver().resolve(optimized));
+    }
+
+    private VM.Function[] vmCode() {
+        VM.Function[] code = vmCode;
+        if (code == null) {
+            synchronized (this) {
+                code = vmCode;
+                if (code == null)
+                    vmCode = code = VM.compile(resolved, false);
+            }
+        }
+        return code;
+    }
+
+    private VM.Function[] ssaCode() {
+        VM.Function[] code = ssaCode;
+        if (code == null) {
+            synchronized (this) {
+                code = ssaCode;
+                if (code == null)
+                    ssaCode = code = VM.compile(optimized, true);
+            }
+        }
+        return code;
+    }
+}
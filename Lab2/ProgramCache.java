@@ -0,0 +1,123 @@
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Prepared programs by their source, so that running a program again skips
+ * the lexer, the parser, the type checker and the optimizations before the
+ * Resolver. In memory the least recently used programs give way first.
+ *
+ * Optionally a directory keeps the programs for other processes as well, a
+ * file per program named by a hash of the source. A file holds the source,
+ * which is compared on every hit so that collisions only miss, and the type
+ * checked tree in the form of the {@link ProgramCodec}. The optimizations run
+ * again on loading, so a file stays valid whatever they become. Files are
+ * written whole and renamed into place, so processes sharing the directory
+ * never see half of one, and a file that doesn't decode is a miss.
+ */
+public class ProgramCache {
+
+    // programs the runners keep in memory
+    public static final int CAPACITY = 1024;
+
+    // the first int of every file, to be bumped whenever the grammar or the ProgramCodec change
+    private static final int FORMAT = 0x43505002;
+
+    private final File directory;
+    private final LinkedHashMap<String, PreparedProgram> programs;
+
+    // directory may be null to keep programs in memory only
+    public ProgramCache(final int capacity, File directory) {
+        this.directory = directory;
+        this.programs = new LinkedHashMap<String, PreparedProgram>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedProgram> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // the program prepared from source before, null if there is none
+    public PreparedProgram get(String source) {
+        synchronized (programs) {
+            PreparedProgram program = programs.get(source);
+            if (program != null || directory == null)
+                return program;
+        }
+        PreparedProgram program = load(source);
+        if (program != null) {
+            synchronized (programs) {
+                programs.put(source, program);
+            }
+        }
+        return program;
+    }
+
+    public void put(String source, PreparedProgram program) {
+        synchronized (programs) {
+            programs.put(source, program);
+        }
+        if (directory != null)
+            store(source, program);
+    }
+
+    // FNV-1a, a cryptographic hash would cost more than parsing to set up
+    private File file(byte[] source) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : source) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return new File(directory, Long.toHexString(hash) + ".ast");
+    }
+
+    private PreparedProgram load(String source) {
+        byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+        File file = file(bytes);
+        if (!file.exists())
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Files.readAllBytes(file.toPath())));
+            if (in.readInt() != FORMAT)
+                return null;
+            // a different length can't hold this source, and mustn't size the buffer
+            if (in.readInt() != bytes.length)
+                return null;
+            byte[] cached = new byte[bytes.length];
+            in.readFully(cached);
+            if (!Arrays.equals(cached, bytes))
+                return null;
+            return PreparedProgram.fromChecked(ProgramCodec.decode(in));
+        } catch (IOException | RuntimeException | OutOfMemoryError | StackOverflowError e) {
+            // unreadable or damaged, as if it wasn't there
+            return null;
+        }
+    }
+
+    private void store(String source, PreparedProgram program) {
+        byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+        File file = file(bytes);
+        // unique among the processes and threads writing at the same time
+        File temporary = new File(directory, file.getName() + "." + ProcessHandle.current().pid()
+            + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temporary))) {
+                out.writeInt(FORMAT);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                out.write(ProgramCodec.encode(program.checked()));
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the program just isn't kept
+            temporary.delete();
+        }
+    }
+}
@@ -0,0 +1,336 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import CPP.Absyn.*;
+
+/**
+ * A compact binary form of program trees. Every node is a tag byte followed
+ * by its fields in the order of the grammar. Lists start with their length,
+ * numbers and lengths are variable length, and every identifier is written
+ * once and then referred to by its index.
+ */
+public class ProgramCodec {
+
+    // tags of the expressions and statements, in the order of the grammar
+    private static final int TRUE = 0, FALSE = 1, INT = 2, DOUBLE = 3, ID = 4, APP = 5;
+    private static final int POST_INCR = 6, POST_DECR = 7, PRE_INCR = 8, PRE_DECR = 9;
+    private static final int TIMES = 10, DIV = 11, PLUS = 12, MINUS = 13;
+    private static final int LT = 14, GT = 15, LT_EQ = 16, GT_EQ = 17, EQ = 18, NEQ = 19;
+    private static final int AND = 20, OR = 21, ASS = 22;
+
+    private static final int EXP = 0, DECLS = 1, INIT = 2, RETURN = 3, WHILE = 4, BLOCK = 5, IF_ELSE = 6;
+
+    private static final int BOOL_TYPE = 0, INT_TYPE = 1, DOUBLE_TYPE = 2, VOID_TYPE = 3;
+
+    public static byte[] encode(Program p) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer w = new Writer(new DataOutputStream(bytes));
+        ListDef defs = ((PDefs)p).listdef_;
+        w.number(defs.size());
+        for (Def d : defs) {
+            DFun df = (DFun)d;
+            w.type(df.type_);
+            w.id(df.id_);
+            w.number(df.listarg_.size());
+            for (Arg a : df.listarg_) {
+                w.type(((ADecl)a).type_);
+                w.id(((ADecl)a).id_);
+            }
+            w.stms(df.liststm_);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static Program decode(DataInputStream in) throws IOException {
+        Reader r = new Reader(in);
+        ListDef defs = new ListDef();
+        for (int n = r.number(); n > 0; n--) {
+            Type type = r.type();
+            String id = r.id();
+            ListArg args = new ListArg();
+            for (int m = r.number(); m > 0; m--) {
+                Type argType = r.type();
+                args.add(new ADecl(argType, r.id()));
+            }
+            defs.add(new DFun(type, id, args, r.stms()));
+        }
+        return new PDefs(defs);
+    }
+
+    private static class Writer implements Stm.Visitor<Void, Object>, Exp.Visitor<Void, Object> {
+        private final DataOutputStream out;
+        private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        // a DataOutputStream on a ByteArrayOutputStream doesn't fail
+        void number(long n) {
+            try {
+                while ((n & ~0x7fL) != 0) {
+                    out.writeByte((int)(n & 0x7f) | 0x80);
+                    n >>>= 7;
+                }
+                out.writeByte((int)n);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void tag(int tag) {
+            number(tag);
+        }
+
+        void id(String id) {
+            Integer index = ids.get(id);
+            if (index != null) {
+                number(index);
+                return;
+            }
+            number(ids.size());
+            ids.put(id, ids.size());
+            try {
+                out.writeUTF(id);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void type(Type t) {
+            if (t instanceof Type_bool)
+                tag(BOOL_TYPE);
+            else if (t instanceof Type_int)
+                tag(INT_TYPE);
+            else if (t instanceof Type_double)
+                tag(DOUBLE_TYPE);
+            else
+                tag(VOID_TYPE);
+        }
+
+        void stms(ListStm stms) {
+            number(stms.size());
+            for (Stm s : stms) {
+                s.accept(this, null);
+            }
+        }
+
+        private Void unary(int tag, Exp e) {
+            tag(tag);
+            return e.accept(this, null);
+        }
+
+        private Void binary(int tag, Exp e1, Exp e2) {
+            tag(tag);
+            e1.accept(this, null);
+            return e2.accept(this, null);
+        }
+
+        public Void visit(SExp s, Object arg) { return unary(EXP, s.exp_); }
+        public Void visit(SDecls s, Object arg) {
+            tag(DECLS);
+            type(s.type_);
+            number(s.listid_.size());
+            for (String id : s.listid_) {
+                id(id);
+            }
+            return null;
+        }
+        public Void visit(SInit s, Object arg) {
+            tag(INIT);
+            type(s.type_);
+            id(s.id_);
+            return s.exp_.accept(this, null);
+        }
+        public Void visit(SReturn s, Object arg) { return unary(RETURN, s.exp_); }
+        public Void visit(SWhile s, Object arg) {
+            unary(WHILE, s.exp_);
+            return s.stm_.accept(this, null);
+        }
+        public Void visit(SBlock s, Object arg) {
+            tag(BLOCK);
+            stms(s.liststm_);
+            return null;
+        }
+        public Void visit(SIfElse s, Object arg) {
+            unary(IF_ELSE, s.exp_);
+            s.stm_1.accept(this, null);
+            return s.stm_2.accept(this, null);
+        }
+
+        public Void visit(ETrue e, Object arg) { tag(TRUE); return null; }
+        public Void visit(EFalse e, Object arg) { tag(FALSE); return null; }
+        public Void visit(EInt e, Object arg) {
+            tag(INT);
+            // zigzag, so that small negative numbers stay short
+            number(((e.integer_ << 1) ^ (e.integer_ >> 31)) & 0xffffffffL);
+            return null;
+        }
+        public Void visit(EDouble e, Object arg) {
+            tag(DOUBLE);
+            try {
+                out.writeDouble(e.double_);
+            } catch (IOException ex) {
+                throw new RuntimeException(ex);
+            }
+            return null;
+        }
+        public Void visit(EId e, Object arg) {
+            tag(ID);
+            id(e.id_);
+            return null;
+        }
+        public Void visit(EApp e, Object arg) {
+            tag(APP);
+            id(e.id_);
+            number(e.listexp_.size());
+            for (Exp a : e.listexp_) {
+                a.accept(this, null);
+            }
+            return null;
+        }
+        public Void visit(EPostIncr e, Object arg) { return unary(POST_INCR, e.exp_); }
+        public Void visit(EPostDecr e, Object arg) { return unary(POST_DECR, e.exp_); }
+        public Void visit(EPreIncr e, Object arg) { return unary(PRE_INCR, e.exp_); }
+        public Void visit(EPreDecr e, Object arg) { return unary(PRE_DECR, e.exp_); }
+        public Void visit(ETimes e, Object arg) { return binary(TIMES, e.exp_1, e.exp_2); }
+        public Void visit(EDiv e, Object arg) { return binary(DIV, e.exp_1, e.exp_2); }
+        public Void visit(EPlus e, Object arg) { return binary(PLUS, e.exp_1, e.exp_2); }
+        public Void visit(EMinus e, Object arg) { return binary(MINUS, e.exp_1, e.exp_2); }
+        public Void visit(ELt e, Object arg) { return binary(LT, e.exp_1, e.exp_2); }
+        public Void visit(EGt e, Object arg) { return binary(GT, e.exp_1, e.exp_2); }
+        public Void visit(ELtEq e, Object arg) { return binary(LT_EQ, e.exp_1, e.exp_2); }
+        public Void visit(EGtEq e, Object arg) { return binary(GT_EQ, e.exp_1, e.exp_2); }
+        public Void visit(EEq e, Object arg) { return binary(EQ, e.exp_1, e.exp_2); }
+        public Void visit(ENEq e, Object arg) { return binary(NEQ, e.exp_1, e.exp_2); }
+        public Void visit(EAnd e, Object arg) { return binary(AND, e.exp_1, e.exp_2); }
+        public Void visit(EOr e, Object arg) { return binary(OR, e.exp_1, e.exp_2); }
+        public Void visit(EAss e, Object arg) { return binary(ASS, e.exp_1, e.exp_2); }
+    }
+
+    private static class Reader {
+        private final DataInputStream in;
+        private final ArrayList<String> ids = new ArrayList<String>();
+
+        Reader(DataInputStream in) {
+            this.in = in;
+        }
+
+        int number() throws IOException {
+            long n = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.readUnsignedByte();
+                n |= (long)(b & 0x7f) << shift;
+                if ((b & 0x80) == 0)
+                    return (int)n;
+            }
+        }
+
+        String id() throws IOException {
+            int index = number();
+            if (index < ids.size())
+                return ids.get(index);
+            String id = in.readUTF();
+            ids.add(id);
+            return id;
+        }
+
+        Type type() throws IOException {
+            switch (number()) {
+                case BOOL_TYPE: return new Type_bool();
+                case INT_TYPE: return new Type_int();
+                case DOUBLE_TYPE: return new Type_double();
+                default: return new Type_void();
+            }
+        }
+
+        ListStm stms() throws IOException {
+            ListStm stms = new ListStm();
+            for (int n = number(); n > 0; n--) {
+                stms.add(stm());
+            }
+            return stms;
+        }
+
+        Stm stm() throws IOException {
+            int tag = number();
+            switch (tag) {
+                case EXP: return new SExp(exp());
+                case DECLS: {
+                    Type type = type();
+                    ListId ids = new ListId();
+                    for (int n = number(); n > 0; n--) {
+                        ids.add(id());
+                    }
+                    return new SDecls(type, ids);
+                }
+                case INIT: {
+                    Type type = type();
+                    String id = id();
+                    return new SInit(type, id, exp());
+                }
+                case RETURN: return new SReturn(exp());
+                case WHILE: {
+                    Exp e = exp();
+                    return new SWhile(e, stm());
+                }
+                case BLOCK: return new SBlock(stms());
+                case IF_ELSE: {
+                    Exp e = exp();
+                    Stm s1 = stm();
+                    return new SIfElse(e, s1, stm());
+                }
+            }
+            throw new IOException("invalid statement tag " + tag);
+        }
+
+        Exp exp() throws IOException {
+            int tag = number();
+            switch (tag) {
+                case TRUE: return new ETrue();
+                case FALSE: return new EFalse();
+                case INT: {
+                    int n = number();
+                    return new EInt((n >>> 1) ^ -(n & 1));
+                }
+                case DOUBLE: return new EDouble(in.readDouble());
+                case ID: return new EId(id());
+                case APP: {
+                    String id = id();
+                    ListExp args = new ListExp();
+                    for (int n = number(); n > 0; n--) {
+                        args.add(exp());
+                    }
+                    return new EApp(id, args);
+                }
+                case POST_INCR: return new EPostIncr(exp());
+                case POST_DECR: return new EPostDecr(exp());
+                case PRE_INCR: return new EPreIncr(exp());
+                case PRE_DECR: return new EPreDecr(exp());
+            }
+            if (tag < TIMES || tag > ASS)
+                throw new IOException("invalid expression tag " + tag);
+            // the binary operators, operands left to right
+            Exp e1 = exp(), e2 = exp();
+            switch (tag) {
+                case TIMES: return new ETimes(e1, e2);
+                case DIV: return new EDiv(e1, e2);
+                case PLUS: return new EPlus(e1, e2);
+                case MINUS: return new EMinus(e1, e2);
+                case LT: return new ELt(e1, e2);
+                case GT: return new EGt(e1, e2);
+                case LT_EQ: return new ELtEq(e1, e2);
+                case GT_EQ: return new EGtEq(e1, e2);
+                case EQ: return new EEq(e1, e2);
+                case NEQ: return new ENEq(e1, e2);
+                case AND: return new EAnd(e1, e2);
+                case OR: return new EOr(e1, e2);
+                default: return new EAss(e1, e2);
+            }
+        }
+    }
+}
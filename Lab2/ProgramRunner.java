@@ -0,0 +1,221 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import CPP.*;
+import CPP.Absyn.*;
+
+/**
+ * Runs CPP programs in one JVM, any number of them at the same time, from
+ * source or {@link PreparedProgram}s. Every run reads and prints through a
+ * {@link Runtime} of its own. Each run takes a thread, a virtual one where
+ * the JVM has them.
+ */
+public class ProgramRunner implements AutoCloseable {
+
+    public static final List<String> MODES = Arrays.asList(
+        "", "-unboxed", "-closure", "-vm", "-ssa", "-jit", "-memo", "-parallel");
+
+    /**
+     * What a run printed to standard output and error, and the status lab2
+     * exits with for the same program and input. Errors that lab2 reports as
+     * syntax errors while a program runs, like a stack overflow, fail the
+     * run instead.
+     */
+    public static final class Result {
+        public final String output;
+        public final String errors;
+        public final int status;
+
+        Result(String output, String errors, int status) {
+            this.output = output;
+            this.errors = errors;
+            this.status = status;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final ProgramCache cache;
+
+    public ProgramRunner() {
+        this(newExecutor());
+    }
+
+    public ProgramRunner(ExecutorService executor) {
+        this(executor, new ProgramCache(ProgramCache.CAPACITY, null));
+    }
+
+    public ProgramRunner(ExecutorService executor, ProgramCache cache) {
+        this.executor = executor;
+        this.cache = cache;
+    }
+
+    // a virtual thread per run from JDK 21 on, before that a thread per processor
+    private static ExecutorService newExecutor() {
+        ExecutorService virtual = newVirtualThreadExecutor();
+        if (virtual != null)
+            return virtual;
+        return Executors.newFixedThreadPool(java.lang.Runtime.getRuntime().availableProcessors());
+    }
+
+    // an executor starting a virtual thread per task, null before JDK 21
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method virtual = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) virtual.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    public Future<Result> submit(final String source, final String mode, final InputStream input) {
+        if (!MODES.contains(mode))
+            throw new IllegalArgumentException("unknown mode " + mode);
+        return executor.submit(() -> run(cache, source, mode, input));
+    }
+
+    public Future<Result> submit(final PreparedProgram program, final String mode, final InputStream input) {
+        if (!MODES.contains(mode))
+            throw new IllegalArgumentException("unknown mode " + mode);
+        return executor.submit(() -> run(program, mode, input));
+    }
+
+    // waits for the runs already submitted. An interrupt returns early and
+    // leaves the thread interrupted, the runs go on
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Runs a program on the calling thread, reporting errors the way lab2 does. */
+    public static Result run(String source, String mode, InputStream input) {
+        return run(null, source, mode, input);
+    }
+
+    public static Result run(ProgramCache cache, String source, String mode, InputStream input) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output);
+        PrintStream err = new PrintStream(errors);
+        int status = run(cache, source, mode, input, out, err);
+        out.flush();
+        err.flush();
+        return new Result(output.toString(), errors.toString(), status);
+    }
+
+    /** Runs a prepared program on the calling thread. */
+    public static Result run(PreparedProgram program, String mode, InputStream input) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteArrayOutputStream errors = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(output);
+        PrintStream err = new PrintStream(errors);
+        int status = run(program, mode, input, out, err);
+        out.flush();
+        err.flush();
+        return new Result(output.toString(), errors.toString(), status);
+    }
+
+    /**
+     * Runs a program printing to the given streams, and returns the status
+     * lab2 exits with. With a null mode the program is only checked.
+     */
+    public static int run(String source, String mode, InputStream input, PrintStream out, PrintStream err) {
+        return run(null, source, mode, input, out, err);
+    }
+
+    // prepares the program only if it isn't in the cache, which may be null
+    public static int run(ProgramCache cache, String source, String mode, InputStream input, PrintStream out, PrintStream err) {
+        PreparedProgram program = cache == null ? null : cache.get(source);
+        if (program != null)
+            return mode == null ? 0 : run(program, mode, input, out, err);
+
+        Yylex l = new Yylex(new StringReader(source));
+        try {
+            parser p = new parser(l);
+            program = new PreparedProgram(p.pProgram());
+            if (cache != null)
+                cache.put(source, program);
+        } catch (TypeException e) {
+            out.println("TYPE ERROR");
+            err.println(e.toString());
+            return 1;
+        } catch (RuntimeException e) {
+            err.println(e.toString());
+            return -1;
+        } catch (Throwable e) {
+            out.println("SYNTAX ERROR");
+            out.println("At line " + String.valueOf(l.line_num())
+                       + ", near \"" + l.buff() + "\" :");
+            out.println("     " + e.getMessage());
+            return 1;
+        }
+        return mode == null ? 0 : run(program, mode, input, out, err);
+    }
+
+    public static int run(PreparedProgram program, String mode, InputStream input, PrintStream out, PrintStream err) {
+        try {
+            program.execute(mode, input, out, err);
+            return 0;
+        } catch (RuntimeException e) {
+            err.println(e.toString());
+            return -1;
+        }
+    }
+
+    /**
+     * Runs all given programs at once and prints their output in the order
+     * given. A program reads the file named like it with .input appended, if
+     * there is one.
+     */
+    public static void main(String args[]) throws Exception {
+        String mode = args.length > 0 && args[0].startsWith("-") ? args[0] : "";
+        int first = mode.equals("") ? 0 : 1;
+        if (args.length == first || !MODES.contains(mode)) {
+            System.err.println("Usage: ProgramRunner [-unboxed|-closure|-vm|-ssa|-jit|-memo|-parallel] <SourceFile>...");
+            System.exit(1);
+        }
+
+        ProgramRunner runner = new ProgramRunner();
+        List<Future<Result>> results = new ArrayList<Future<Result>>();
+        for (int i = first; i < args.length; i++) {
+            String source = new String(Files.readAllBytes(new File(args[i]).toPath()));
+            File inputFile = new File(args[i] + ".input");
+            InputStream input = inputFile.exists()
+                ? new ByteArrayInputStream(Files.readAllBytes(inputFile.toPath()))
+                : new ByteArrayInputStream(new byte[0]);
+            results.add(runner.submit(source, mode, input));
+        }
+        runner.close();
+
+        for (int i = first; i < args.length; i++) {
+            Future<Result> future = results.get(i - first);
+            System.out.println("==> " + args[i] + " <==");
+            try {
+                Result result = future.get();
+                System.out.print(result.output);
+                System.err.print(result.errors);
+                if (result.status != 0)
+                    System.out.println("(exit " + result.status + ")");
+            } catch (ExecutionException e) {
+                System.out.println("(failed: " + e.getCause() + ")");
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.HashMap;
+import java.util.HashSet;
+
+import CPP.FoldVisitor;
+import CPP.Absyn.*;
+
+/**
+ * Finds the pure functions of a program. A function is pure if neither it
+ * nor anything it calls uses the built-in functions. Functions can't reach
+ * any state but their arguments, so a pure function always returns the same
+ * result for the same arguments and has no effects besides possibly failing
+ * or not terminating.
+ */
+public class Purity {
+
+    // functions each function calls directly, built-ins included
+    private HashMap<String,HashSet<String>> callees = new HashMap<String,HashSet<String>>();
+    private HashSet<String> pure = new HashSet<String>();
+
+    public Purity(Program p) {
+        for (Def f : ((PDefs)p).listdef_) {
+            DFun df = (DFun)f;
+            HashSet<String> ids = new HashSet<String>();
+            df.accept(new Callees(), ids);
+            callees.put(df.id_, ids);
+            pure.add(df.id_);
+        }
+
+        // a function calling a built-in or an impure function is impure
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (String id : callees.keySet()) {
+                if (!pure.contains(id))
+                    continue;
+                for (String callee : callees.get(id)) {
+                    if (!pure.contains(callee)) {
+                        pure.remove(id);
+                        changed = true;
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    public boolean isPure(String id) {
+        return pure.contains(id);
+    }
+
+    // true if id can call itself, directly or through other functions
+    public boolean isRecursive(String id) {
+        return reaches(id, id, new HashSet<String>());
+    }
+
+    private boolean reaches(String from, String to, HashSet<String> seen) {
+        if (!callees.containsKey(from) || !seen.add(from))
+            return false;
+        for (String callee : callees.get(from)) {
+            if (callee.equals(to) || reaches(callee, to, seen))
+                return true;
+        }
+        return false;
+    }
+
+    private static class Callees extends FoldVisitor<Void, HashSet<String>> {
+        public Void leaf(HashSet<String> ids) { return null; }
+        public Void combine(Void x, Void y, HashSet<String> ids) { return null; }
+
+        public Void visit(EApp e, HashSet<String> ids) {
+            ids.add(e.id_);
+            for (Exp arg : e.listexp_) {
+                arg.accept(this, ids);
+            }
+            return null;
+        }
+    }
+}
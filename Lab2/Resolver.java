@@ -0,0 +1,351 @@
+import java.lang.invoke.MethodHandle;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import CPP.ComposVisitor;
+import CPP.Absyn.*;
+
+/**
+ * Assigns every variable of a type checked program a fixed slot in the frame
+ * of its function. The returned tree is a copy of the input in which all
+ * variable occurrences, declarations and functions carry their slot numbers,
+ * so the interpreter can keep its variables in an array. Variables and calls
+ * also carry their types, which makes the type of every expression available
+ * through {@link #typeOf(Exp)}. Binary operators, expression statements and
+ * returns keep the type of their operands, so evaluators can dispatch on it
+ * without inferring it again. Binary operators also get a mutable shape,
+ * which the Interpreter uses to specialize them on their first execution.
+ * Returns of a call are marked as tail calls.
+ *
+ * Slots are numbered per function: the arguments get 0..n-1 in declaration
+ * order, locals follow. A slot is reused once the block declaring it is left.
+ */
+// the nodes below are Serializable like all of Absyn, but never serialized
+@SuppressWarnings("serial")
+public class Resolver extends ComposVisitor<Object> {
+
+    public static class Function extends DFun {
+        // number of slots a frame of this function needs
+        public final int frameSize;
+
+        // calls and loop iterations so far, and the compiled code once hot.
+        // used by the tiered Interpreter
+        public int hotness;
+        public MethodHandle compiled;
+
+        public Function(DFun df, ListArg args, ListStm stms, int frameSize) {
+            super(df.type_, df.id_, args, stms);
+            this.frameSize = frameSize;
+        }
+    }
+
+    public static class Var extends EId {
+        public final int slot;
+        public final Type type;
+
+        public Var(String id, int slot, Type type) {
+            super(id);
+            this.slot = slot;
+            this.type = type;
+        }
+    }
+
+    public static class Call extends EApp {
+        // return type of the called function
+        public final Type type;
+
+        // what is called, cached by the Interpreter on the first call
+        public int target;
+        public Function function;
+
+        public Call(String id, ListExp args, Type type) {
+            super(id, args);
+            this.type = type;
+        }
+    }
+
+    public static class Init extends SInit {
+        public final int slot;
+
+        public Init(Type type, String id, Exp exp, int slot) {
+            super(type, id, exp);
+            this.slot = slot;
+        }
+    }
+
+    public static class Decls extends SDecls {
+        public final int[] slots;
+
+        public Decls(Type type, ListId ids, int[] slots) {
+            super(type, ids);
+            this.slots = slots;
+        }
+    }
+
+    public static class While extends SWhile {
+        // types of the variables in scope at the loop, by slot
+        public final Type[] scope;
+
+        // iterations so far, and the loop compiled once hot. used by the tiered Interpreter
+        public int iterations;
+        public ClosureCompiler.StmNode compiledBody, compiledLoop;
+
+        public While(Exp exp, Stm stm, Type[] scope) {
+            super(exp, stm);
+            this.scope = scope;
+        }
+    }
+
+    // expression statement, type is that of its expression
+    public static class Expression extends SExp {
+        public final Type type;
+
+        public Expression(Exp exp) {
+            super(exp);
+            this.type = typeOf(exp);
+        }
+    }
+
+    public static class Return extends SReturn {
+        public final Type type;
+
+        public Return(Exp exp) {
+            super(exp);
+            this.type = typeOf(exp);
+        }
+    }
+
+    // return of a call, which the Interpreter runs in the frame of the caller
+    public static class TailCall extends Return {
+        public TailCall(Call call) {
+            super(call);
+        }
+    }
+
+    // operand shape of a binary operator, 0 until the Interpreter executed it
+    public static class Shape {
+        public int value;
+    }
+
+    // binary operators, type is that of the operands, which both have the same
+    public static class Times extends ETimes { public final Shape shape = new Shape(); public final Type type = typeOf(exp_1); public Times(Exp e1, Exp e2) { super(e1, e2); } }
+    public static class Div extends EDiv { public final Shape shape = new Shape(); public final Type type = typeOf(exp_1); public Div(Exp e1, Exp e2) { super(e1, e2); } }
+    public static class Plus extends EPlus { public final Shape shape = new Shape(); public final Type type = typeOf(exp_1); public Plus(Exp e1, Exp e2) { super(e1, e2); } }
+    public static class Minus extends EMinus { public final Shape shape = new Shape(); public final Type type = typeOf(exp_1); public Minus(Exp e1, Exp e2) { super(e1, e2); } }
+    public static class Lt extends ELt { public final Shape shape = new Shape(); public final Type type = typeOf(exp_1); public Lt(Exp e1, Exp e2) { super(e1, e2); } }
+    public static class Gt extends EGt { public final Shape shape = new Shape(); public final Type type = typeOf(exp_1); public Gt(Exp e1, Exp e2) { super(e1, e2); } }
+    public static class LtEq extends ELtEq { public final Shape shape = new Shape(); public final Type type = typeOf(exp_1); public LtEq(Exp e1, Exp e2) { super(e1, e2); } }
+    public static class GtEq extends EGtEq { public final Shape shape = new Shape(); public final Type type = typeOf(exp_1); public GtEq(Exp e1, Exp e2) { super(e1, e2); } }
+    public static class Eq extends EEq { public final Shape shape = new Shape(); public final Type type = typeOf(exp_1); public Eq(Exp e1, Exp e2) { super(e1, e2); } }
+    public static class NEq extends ENEq { public final Shape shape = new Shape(); public final Type type = typeOf(exp_1); public NEq(Exp e1, Exp e2) { super(e1, e2); } }
+
+    // return types of all functions
+    private HashMap<String,Type> functions = new HashMap<String,Type>();
+    // variables of the function being resolved, innermost block last
+    private LinkedList<HashMap<String,Var>> scopes = new LinkedList<HashMap<String,Var>>();
+    // first slot not taken by a visible variable
+    private int nextSlot;
+    // highest slot count seen in the current function
+    private int frameSize;
+
+    public Program resolve(Program p) {
+        functions.put("readInt", TypeOf.INT);
+        functions.put("readDouble", TypeOf.DOUBLE);
+        functions.put("printInt", TypeOf.VOID);
+        functions.put("printDouble", TypeOf.VOID);
+        for (Def f : ((PDefs)p).listdef_) {
+            DFun df = (DFun)f;
+            functions.put(df.id_, df.type_);
+        }
+        return p.accept(this, null);
+    }
+
+    public static Type typeOf(Exp e) {
+        return e.accept(TypeOf.instance, null);
+    }
+
+    private int declare(String id, Type type) {
+        int slot = nextSlot++;
+        scopes.getLast().put(id, new Var(id, slot, type));
+        if (nextSlot > frameSize)
+            frameSize = nextSlot;
+        return slot;
+    }
+
+    private Var lookup(String id) {
+        // search from current to earlier blocks
+        ListIterator<HashMap<String,Var>> listIterator = scopes.listIterator(scopes.size());
+
+        while(listIterator.hasPrevious()) {
+            HashMap<String,Var> scope = listIterator.previous();
+            if (scope.containsKey(id))
+                return scope.get(id);
+        }
+        throw new RuntimeException("Var " + id + " could not be resolved.");
+    }
+
+    private Type[] visibleTypes() {
+        Type[] types = new Type[nextSlot];
+        for(HashMap<String,Var> scope : scopes) {
+            for(Var v : scope.values()) {
+                types[v.slot] = v.type;
+            }
+        }
+        return types;
+    }
+
+    private int newBlock() {
+        scopes.add(new HashMap<String,Var>());
+        return nextSlot;
+    }
+
+    private void exitBlock(int firstSlot) {
+        scopes.pollLast();
+        nextSlot = firstSlot;
+    }
+
+    /* Def */
+    public Def visit(DFun df, Object arg) {
+        scopes.clear();
+        nextSlot = 0;
+        frameSize = 0;
+        newBlock();
+
+        ListArg args = new ListArg();
+        for (Arg a : df.listarg_) {
+            ADecl decl = (ADecl)a;
+            declare(decl.id_, decl.type_);
+            args.add(decl);
+        }
+        ListStm stms = new ListStm();
+        for (Stm stm : df.liststm_) {
+            stms.add(stm.accept(this, arg));
+        }
+        return new Function(df, args, stms, frameSize);
+    }
+
+    /* Stm */
+    public Stm visit(SDecls s, Object arg) {
+        int[] slots = new int[s.listid_.size()];
+        int i = 0;
+        for (String id : s.listid_) {
+            slots[i++] = declare(id, s.type_);
+        }
+        return new Decls(s.type_, s.listid_, slots);
+    }
+
+    public Stm visit(SInit s, Object arg) {
+        // the initializer can't see the variable it initializes
+        Exp exp = s.exp_.accept(this, arg);
+        return new Init(s.type_, s.id_, exp, declare(s.id_, s.type_));
+    }
+
+    public Stm visit(SExp s, Object arg) {
+        return new Expression(s.exp_.accept(this, arg));
+    }
+
+    public Stm visit(SReturn s, Object arg) {
+        Exp exp = s.exp_.accept(this, arg);
+        if (exp instanceof Call)
+            return new TailCall((Call) exp);
+        return new Return(exp);
+    }
+
+    public Stm visit(SWhile s, Object arg) {
+        Exp exp = s.exp_.accept(this, arg);
+        int block = newBlock();
+        Stm stm = s.stm_.accept(this, arg);
+        exitBlock(block);
+        return new While(exp, stm, visibleTypes());
+    }
+
+    public Stm visit(SBlock s, Object arg) {
+        int block = newBlock();
+        ListStm stms = new ListStm();
+        for (Stm stm : s.liststm_) {
+            stms.add(stm.accept(this, arg));
+        }
+        exitBlock(block);
+        return new SBlock(stms);
+    }
+
+    public Stm visit(SIfElse s, Object arg) {
+        Exp exp = s.exp_.accept(this, arg);
+        int block = newBlock();
+        Stm stm1 = s.stm_1.accept(this, arg);
+        exitBlock(block);
+        block = newBlock();
+        Stm stm2 = s.stm_2.accept(this, arg);
+        exitBlock(block);
+        return new SIfElse(exp, stm1, stm2);
+    }
+
+    /* Exp */
+    public Exp visit(EId e, Object arg) {
+        Var v = lookup(e.id_);
+        return new Var(e.id_, v.slot, v.type);
+    }
+
+    public Exp visit(EApp e, Object arg) {
+        ListExp args = new ListExp();
+        for (Exp exp : e.listexp_) {
+            args.add(exp.accept(this, arg));
+        }
+        return new Call(e.id_, args, functions.get(e.id_));
+    }
+
+    public Exp visit(ETimes e, Object arg) { return new Times(e.exp_1.accept(this, arg), e.exp_2.accept(this, arg)); }
+    public Exp visit(EDiv e, Object arg) { return new Div(e.exp_1.accept(this, arg), e.exp_2.accept(this, arg)); }
+    public Exp visit(EPlus e, Object arg) { return new Plus(e.exp_1.accept(this, arg), e.exp_2.accept(this, arg)); }
+    public Exp visit(EMinus e, Object arg) { return new Minus(e.exp_1.accept(this, arg), e.exp_2.accept(this, arg)); }
+    public Exp visit(ELt e, Object arg) { return new Lt(e.exp_1.accept(this, arg), e.exp_2.accept(this, arg)); }
+    public Exp visit(EGt e, Object arg) { return new Gt(e.exp_1.accept(this, arg), e.exp_2.accept(this, arg)); }
+    public Exp visit(ELtEq e, Object arg) { return new LtEq(e.exp_1.accept(this, arg), e.exp_2.accept(this, arg)); }
+    public Exp visit(EGtEq e, Object arg) { return new GtEq(e.exp_1.accept(this, arg), e.exp_2.accept(this, arg)); }
+    public Exp visit(EEq e, Object arg) { return new Eq(e.exp_1.accept(this, arg), e.exp_2.accept(this, arg)); }
+    public Exp visit(ENEq e, Object arg) { return new NEq(e.exp_1.accept(this, arg), e.exp_2.accept(this, arg)); }
+
+    // infers the type of a resolved expression, which is already type checked
+    private static class TypeOf implements Exp.Visitor<Type, Object> {
+        static final Type VOID = new Type_void();
+        static final Type INT = new Type_int();
+        static final Type DOUBLE = new Type_double();
+        static final Type BOOL = new Type_bool();
+
+        static final TypeOf instance = new TypeOf();
+
+        // basic
+        public Type visit(ETrue e, Object arg) { return BOOL; }
+        public Type visit(EFalse e, Object arg) { return BOOL; }
+        public Type visit(EInt e, Object arg) { return INT; }
+        public Type visit(EDouble e, Object arg) { return DOUBLE; }
+
+        // var, function
+        public Type visit(EId e, Object arg) { return ((Var) e).type; }
+        public Type visit(EApp e, Object arg) { return ((Call) e).type; }
+
+        //++ --
+        public Type visit(EPostIncr e, Object arg) { return e.exp_.accept(this, arg); }
+        public Type visit(EPostDecr e, Object arg) { return e.exp_.accept(this, arg); }
+        public Type visit(EPreIncr e, Object arg) { return e.exp_.accept(this, arg); }
+        public Type visit(EPreDecr e, Object arg) { return e.exp_.accept(this, arg); }
+
+        // * / + -, both operands have the same type
+        public Type visit(ETimes e, Object arg) { return ((Times) e).type; }
+        public Type visit(EDiv e, Object arg) { return ((Div) e).type; }
+        public Type visit(EPlus e, Object arg) { return ((Plus) e).type; }
+        public Type visit(EMinus e, Object arg) { return ((Minus) e).type; }
+        public Type visit(EAss e, Object arg) { return e.exp_1.accept(this, arg); }
+
+        // < > >= ... && ||
+        public Type visit(ELt e, Object arg) { return BOOL; }
+        public Type visit(EGt e, Object arg) { return BOOL; }
+        public Type visit(ELtEq e, Object arg) { return BOOL; }
+        public Type visit(EGtEq e, Object arg) { return BOOL; }
+        public Type visit(EEq e, Object arg) { return BOOL; }
+        public Type visit(ENEq e, Object arg) { return BOOL; }
+        public Type visit(EAnd e, Object arg) { return BOOL; }
+        public Type visit(EOr e, Object arg) { return BOOL; }
+    }
+}
@@ -0,0 +1,63 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+
+/**
+ * The built-in functions of CPP, shared by all ways of running a program.
+ * Each run of a program has a Runtime of its own, which binds its input,
+ * output and the stream for messages about the run.
+ */
+public class Runtime {
+
+    private BufferedReader input;
+    private PrintStream output;
+    private PrintStream errors;
+
+    public Runtime() {
+        this(System.in, System.out, System.err);
+    }
+
+    public Runtime(InputStream input, PrintStream output, PrintStream errors) {
+        this.input = new BufferedReader(new InputStreamReader(input));
+        this.output = output;
+        this.errors = errors;
+    }
+
+    // a message about the run, not part of the program's output
+    public void report(String message) {
+        errors.println(message);
+    }
+
+    public void printInt(int n) {
+        output.println(n);
+    }
+
+    public void printDouble(double x) {
+        output.println(x);
+    }
+
+    public int readInt() {
+        return Integer.parseInt(readLine());
+    }
+
+    public double readDouble() {
+        return Double.parseDouble(readLine());
+    }
+
+    private String readLine() {
+        String line = null;
+        try {
+            line = input.readLine();
+        } catch (IOException e) {
+            errors.println("There was a problem readin a line from stdin");
+            errors.println(e.getMessage());
+            throw new RuntimeException("Input Error.");
+        }
+        if (line == null) {
+            throw new RuntimeException("Could not read the number from standard-input, the string was \"null\"");
+        }
+        return line;
+    }
+}
@@ -0,0 +1,317 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import CPP.Absyn.*;
+
+/**
+ * Compiles a type checked program to register code for the {@link VM} by way
+ * of {@link SSA} form, which the {@link SSAOptimizer} simplifies first.
+ *
+ * Values get their registers from the {@link RegisterAllocator}, parameters
+ * the ones the VM passes them in. Constants are loaded once on entry, unless
+ * they are only used as immediate operands. Phis become copies at the end of their predecessors,
+ * after critical edges are split so that every copy has a block of its own.
+ */
+public class SSALowering implements Opcodes {
+
+    private HashMap<String, Integer> functionIndex = new HashMap<String, Integer>();
+
+    // function being compiled
+    private int[] code;
+    private int length;
+    private ArrayList<Double> constants;
+    private int[] register;
+    private int nextInt, nextDouble;
+
+    public VM.Function[] compile(Program p) {
+        ArrayList<SSA.Function> fns = new SSABuilder().build(p);
+        new SSAOptimizer().optimize(fns);
+
+        for (SSA.Function fn : fns) {
+            functionIndex.put(fn.name, functionIndex.size());
+        }
+        VM.Function[] functions = new VM.Function[fns.size()];
+        for (int i = 0; i < functions.length; i++) {
+            functions[i] = compileFunction(fns.get(i));
+        }
+        return functions;
+    }
+
+    private VM.Function compileFunction(SSA.Function fn) {
+        code = new int[64];
+        length = 0;
+        constants = new ArrayList<Double>();
+
+        fn.splitCriticalEdges();
+        // constants that are loaded into a register, the others are immediates
+        HashSet<SSA.Value> loaded = loadConstantsOnEntry(fn);
+        RegisterAllocator registers = new RegisterAllocator(fn, loaded);
+        register = registers.register;
+        nextInt = registers.ints;
+        nextDouble = registers.doubles;
+        for (SSA.Value v : loaded) {
+            if (v.type == SSA.DOUBLE)
+                emit(DCONST, register[v.id], constant(v.doubleConstant));
+            else
+                emit(ICONST, register[v.id], v.intConstant);
+        }
+
+        // code index of every block, and the jumps to patch with it
+        HashMap<SSA.Block, Integer> start = new HashMap<SSA.Block, Integer>();
+        HashMap<Integer, SSA.Block> patches = new HashMap<Integer, SSA.Block>();
+        for (int i = 0; i < fn.blocks.size(); i++) {
+            SSA.Block b = fn.blocks.get(i);
+            SSA.Block next = i + 1 < fn.blocks.size() ? fn.blocks.get(i + 1) : null;
+            start.put(b, length);
+            for (SSA.Value v : b.code) {
+                if (v.op != SSA.CONST && v.op != SSA.PARAM)
+                    compileValue(v);
+            }
+            switch (b.end) {
+                case SSA.JUMP: {
+                    SSA.Block to = b.succs[0];
+                    copyPhis(b, to);
+                    if (to == next)
+                        break;
+                    if (isSmallTest(to)) {
+                        // rather than jumping back to the test of a loop, test again here
+                        for (SSA.Value v : to.code) {
+                            if (v.op != SSA.CONST)
+                                compileValue(v);
+                        }
+                        branch(register[to.operand.id], to.succs[0], to.succs[1], next, patches);
+                    } else {
+                        emit(JMP, -1);
+                        patches.put(length - 1, to);
+                    }
+                    break;
+                }
+                case SSA.BRANCH:
+                    branch(register[b.operand.id], b.succs[0], b.succs[1], next, patches);
+                    break;
+                default:
+                    if (b.operand == null)
+                        emit(RET_V);
+                    else
+                        emit(b.operand.type == SSA.DOUBLE ? RET_D : RET_I, register[b.operand.id]);
+            }
+        }
+        for (int at : patches.keySet()) {
+            code[at] = start.get(patches.get(at));
+        }
+
+        boolean[] doubleParams = new boolean[fn.paramTypes.length];
+        for (int i = 0; i < doubleParams.length; i++) {
+            doubleParams[i] = fn.paramTypes[i] == SSA.DOUBLE;
+        }
+        double[] k = new double[constants.size()];
+        for (int i = 0; i < k.length; i++) {
+            k[i] = constants.get(i);
+        }
+        return new VM.Function(fn.name, Arrays.copyOf(code, length), k, nextInt, nextDouble, doubleParams);
+    }
+
+    // jumps to t if register r is true and to f otherwise, falling through to next
+    private void branch(int r, SSA.Block t, SSA.Block f, SSA.Block next, HashMap<Integer, SSA.Block> patches) {
+        if (t == next) {
+            emit(JMPF, r, -1);
+            patches.put(length - 1, f);
+        } else {
+            emit(JMPT, r, -1);
+            patches.put(length - 1, t);
+            if (f != next) {
+                emit(JMP, -1);
+                patches.put(length - 1, f);
+            }
+        }
+    }
+
+    // a block that only computes a condition from a few operations and branches on it
+    private static boolean isSmallTest(SSA.Block b) {
+        if (b.end != SSA.BRANCH)
+            return false;
+        int n = 0;
+        for (SSA.Value v : b.code) {
+            if (v.op == SSA.CALL)
+                return false;
+            if (v.op != SSA.CONST)
+                n++;
+        }
+        return n <= 3;
+    }
+
+    /* code buffer */
+
+    private void emit(int... words) {
+        if (length + words.length > code.length)
+            code = Arrays.copyOf(code, 2 * code.length + words.length);
+        for (int w : words) {
+            code[length++] = w;
+        }
+    }
+
+    private int constant(double d) {
+        int k = constants.indexOf(d);
+        if (k < 0) {
+            k = constants.size();
+            constants.add(d);
+        }
+        return k;
+    }
+
+    /* registers */
+
+    // moves the constants that need a register to the entry, after the
+    // parameters, and returns them
+    private static HashSet<SSA.Value> loadConstantsOnEntry(SSA.Function fn) {
+        HashSet<SSA.Value> used = new HashSet<SSA.Value>();
+        for (SSA.Block b : fn.blocks) {
+            for (SSA.Value v : b.phis) {
+                used.addAll(Arrays.asList(v.args));
+            }
+            for (SSA.Value v : b.code) {
+                if (v.op == SSA.CALL)
+                    used.addAll(Arrays.asList(v.args));
+                else if (v.args.length == 2)
+                    used.add(immediateFirst(v) ? v.args[1] : v.args[0]);
+            }
+            if (b.operand != null)
+                used.add(b.operand);
+        }
+
+        HashSet<SSA.Value> loaded = new HashSet<SSA.Value>();
+        ArrayList<SSA.Value> params = new ArrayList<SSA.Value>();
+        for (SSA.Block b : fn.blocks) {
+            for (int i = 0; i < b.code.size(); i++) {
+                SSA.Value v = b.code.get(i);
+                if (v.op == SSA.PARAM) {
+                    params.add(v);
+                    b.code.remove(i--);
+                } else if (v.isConstant() && used.contains(v)) {
+                    loaded.add(v);
+                    b.code.remove(i--);
+                }
+            }
+        }
+        // the entry dominates every use
+        SSA.Block entry = fn.entry();
+        entry.code.addAll(0, loaded);
+        entry.code.addAll(0, params);
+        for (SSA.Value v : loaded) {
+            v.block = entry;
+        }
+        return loaded;
+    }
+
+    private int newRegister(int type) {
+        return type == SSA.DOUBLE ? nextDouble++ : nextInt++;
+    }
+
+    // a constant left operand can be the immediate when the operands are swapped
+    private static boolean immediateFirst(SSA.Value v) {
+        return v.args[0].isConstant() && !v.args[1].isConstant() && v.op != SSA.SUB && v.op != SSA.DIV;
+    }
+
+    /* values */
+
+    private void compileValue(SSA.Value v) {
+        int d = register[v.id];
+        if (v.op == SSA.CALL) {
+            compileCall(v, d);
+            return;
+        }
+
+        SSA.Value a = v.args[0], b = v.args[1];
+        int op = v.op;
+        if (immediateFirst(v)) {
+            a = v.args[1];
+            b = v.args[0];
+            // x < y is y > x
+            switch (op) {
+                case SSA.LT: op = SSA.GT; break;
+                case SSA.GT: op = SSA.LT; break;
+                case SSA.LE: op = SSA.GE; break;
+                case SSA.GE: op = SSA.LE; break;
+            }
+        }
+        boolean isDouble = a.type == SSA.DOUBLE;
+        int opcode;
+        if (op <= SSA.DIV)
+            opcode = (isDouble ? DADD_RR : IADD_RR) + op - SSA.ADD;
+        else
+            opcode = (isDouble ? DLT_RR : ILT_RR) + op - SSA.LT;
+        if (b.isConstant()) {
+            // the _RI forms follow the _RR forms in the same order
+            opcode += op <= SSA.DIV ? 4 : 6;
+            emit(opcode, d, register[a.id], isDouble ? constant(b.doubleConstant) : b.intConstant);
+        } else {
+            emit(opcode, d, register[a.id], register[b.id]);
+        }
+    }
+
+    private void compileCall(SSA.Value v, int d) {
+        if (v.function.equals("printInt")) {
+            emit(PRINTI, register[v.args[0].id]);
+        } else if (v.function.equals("printDouble")) {
+            emit(PRINTD, register[v.args[0].id]);
+        } else if (v.function.equals("readInt")) {
+            emit(READI, d);
+        } else if (v.function.equals("readDouble")) {
+            emit(READD, d);
+        } else {
+            if (v.type == SSA.VOID)
+                emit(CALL_V);
+            else
+                emit(v.type == SSA.DOUBLE ? CALL_D : CALL_I, d);
+            emit(functionIndex.get(v.function), v.args.length);
+            for (SSA.Value arg : v.args) {
+                emit(register[arg.id]);
+            }
+        }
+    }
+
+    // the phis of to take their arguments from b all at once
+    private void copyPhis(SSA.Block b, SSA.Block to) {
+        if (to.phis.isEmpty())
+            return;
+        int k = to.preds.indexOf(b);
+        // pending copies from source to destination, registers of both files
+        // told apart by the lowest bit
+        ArrayList<Integer> dsts = new ArrayList<Integer>(), srcs = new ArrayList<Integer>();
+        for (SSA.Value phi : to.phis) {
+            int bit = phi.type == SSA.DOUBLE ? 1 : 0;
+            int dst = 2 * register[phi.id] + bit, src = 2 * register[phi.args[k].id] + bit;
+            if (dst != src) {
+                dsts.add(dst);
+                srcs.add(src);
+            }
+        }
+        while (!dsts.isEmpty()) {
+            boolean progress = false;
+            for (int i = 0; i < dsts.size(); i++) {
+                // a destination that no pending copy still reads can be written
+                if (!srcs.contains(dsts.get(i))) {
+                    move(dsts.remove(i), srcs.remove(i));
+                    i--;
+                    progress = true;
+                }
+            }
+            if (!progress) {
+                // only cycles are left, break one by saving a source in a new register
+                int src = srcs.get(0);
+                int temp = 2 * newRegister(src % 2 == 1 ? SSA.DOUBLE : SSA.INT) + src % 2;
+                move(temp, src);
+                for (int i = 0; i < srcs.size(); i++) {
+                    if (srcs.get(i) == src)
+                        srcs.set(i, temp);
+                }
+            }
+        }
+    }
+
+    private void move(int dst, int src) {
+        emit(dst % 2 == 1 ? DMOV : IMOV, dst / 2, src / 2);
+    }
+}
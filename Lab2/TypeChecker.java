@@ -250,7 +250,10 @@ public class TypeChecker {
         public Type visit(EDiv e, Env env) { return intDoubleType(e.exp_1, e.exp_2, env, "/"); }
         public Type visit(EPlus e, Env env) { return intDoubleType(e.exp_1, e.exp_2, env, "+"); }
         public Type visit(EMinus e, Env env) { return intDoubleType(e.exp_1, e.exp_2, env, "-"); }
-        public Type visit(EAss e, Env env) { return sameType(e.exp_1, e.exp_2, env, "assignment"); }
+        public Type visit(EAss e, Env env) {
+            variable(e.exp_1, "assignment");
+            return sameType(e.exp_1, e.exp_2, env, "assignment");
+        }
 
         // < > >= ... && ||
         public Type visit(ELt e, Env env) { return boolType(e.exp_1, e.exp_2, env, "<"); }
@@ -262,7 +265,15 @@ public class TypeChecker {
         public Type visit(EAnd e, Env env) { return boolType(e.exp_1, e.exp_2, env, "&&"); }
         public Type visit(EOr e, Env env) { return boolType(e.exp_1, e.exp_2, env, "||"); }
 
+        // the parser accepts any expression where only a variable makes sense
+        private void variable(Exp e, String symbol) {
+            if (!(e instanceof EId)) {
+                throw new TypeException("Couldn't apply " + symbol + " to an expression that isn't a variable.");
+            }
+        }
+
         private Type numberType(Exp e, Env env, String symbol) {
+            variable(e, symbol);
             Type type = e.accept(this, env);
             if(type.equals(d) || type.equals(i)) {
                 return type;
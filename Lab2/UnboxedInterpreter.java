@@ -0,0 +1,347 @@
+import java.util.HashMap;
+import java.util.Iterator;
+
+import CPP.Absyn.*;
+
+/**
+ * Interpreter keeping all values unboxed in {@link Frame}s. Every expression
+ * is evaluated by evalInt, evalDouble or evalBool, chosen by its static type,
+ * so arithmetic neither allocates nor tests the class of its operands.
+ * Works on programs processed by the Resolver.
+ *
+ * Frames have no room to mark a variable as unassigned, so declared variables
+ * start out as zero. Only programs where {@link DefiniteAssignment} rules out
+ * reading a variable before assigning it run here, others go to the
+ * Interpreter, which reports that read.
+ */
+public class UnboxedInterpreter {
+
+    private Runtime runtime;
+
+    private HashMap<String, Resolver.Function> functions = new HashMap<String, Resolver.Function>();
+
+    // the visitors hold no state besides their result, so one of each is enough
+    private final StmExec stmExec = new StmExec();
+    private final IntEval intEval = new IntEval();
+    private final DoubleEval doubleEval = new DoubleEval();
+    private final BoolEval boolEval = new BoolEval();
+
+    public UnboxedInterpreter() {
+        this(new Runtime());
+    }
+
+    public UnboxedInterpreter(Runtime runtime) {
+        this.runtime = runtime;
+    }
+
+    public void interpret(Program p) {
+        PDefs defs = (PDefs)p;
+
+        for(Def f: defs.listdef_) {
+            Resolver.Function df = (Resolver.Function)f;
+            functions.put(df.id_, df);
+        }
+
+        Resolver.Function main = functions.get("main");
+        execute(main, new Frame(main.frameSize));
+    }
+
+    // runs df in frame, then the calls it ends in, and returns the frame of the last
+    private Frame execute(Resolver.Function df, Frame frame) {
+        for (;;) {
+            for(Stm stm : df.liststm_) {
+                if (stm.accept(stmExec, frame))
+                    break;
+            }
+            if (frame.next == null)
+                return frame;
+            df = (Resolver.Function)frame.callee;
+            frame = frame.next;
+        }
+    }
+
+    private Frame call(EApp e, Frame caller) {
+        Resolver.Function df = functions.get(e.id_);
+        return execute(df, enter(df, e, caller));
+    }
+
+    // the frame of a call of df, the arguments take the first slots
+    private Frame enter(Resolver.Function df, EApp e, Frame caller) {
+        Frame frame = new Frame(df.frameSize);
+        Iterator<Arg> params = df.listarg_.iterator();
+        int slot = 0;
+        for(Exp arg : e.listexp_) {
+            store(((ADecl)params.next()).type_, arg, caller, frame, slot++);
+        }
+        return frame;
+    }
+
+    // evaluate e in frame f and store it in a slot of type t of target
+    private void store(Type t, Exp e, Frame f, Frame target, int slot) {
+        if (t instanceof Type_double)
+            target.doubles[slot] = evalDouble(e, f);
+        else if (t instanceof Type_int)
+            target.ints[slot] = evalInt(e, f);
+        else
+            target.ints[slot] = evalBool(e, f) ? 1 : 0;
+    }
+
+    private int evalInt(Exp e, Frame f) {
+        e.accept(intEval, f);
+        return intEval.value;
+    }
+
+    private double evalDouble(Exp e, Frame f) {
+        e.accept(doubleEval, f);
+        return doubleEval.value;
+    }
+
+    private boolean evalBool(Exp e, Frame f) {
+        e.accept(boolEval, f);
+        return boolEval.value;
+    }
+
+    // evaluate e of type t for its side effects only
+    private void evalAny(Type t, Exp e, Frame f) {
+        if (t instanceof Type_int)
+            evalInt(e, f);
+        else if (t instanceof Type_double)
+            evalDouble(e, f);
+        else if (t instanceof Type_bool)
+            evalBool(e, f);
+        else
+            evalVoid((EApp)e, f);
+    }
+
+    private void evalVoid(EApp e, Frame f) {
+        switch (e.id_) {
+            case "printInt":
+                runtime.printInt(evalInt(e.listexp_.getFirst(), f));
+                break;
+            case "printDouble":
+                runtime.printDouble(evalDouble(e.listexp_.getFirst(), f));
+                break;
+            default:
+                call(e, f);
+        }
+    }
+
+    private static int slot(Exp e) {
+        return ((Resolver.Var) e).slot;
+    }
+
+    // statements return true once the function returned
+    private class StmExec implements Stm.Visitor<Boolean, Frame> {
+        public Boolean visit(SExp s, Frame f) {
+            evalAny(((Resolver.Expression)s).type, s.exp_, f);
+            return false;
+        }
+
+        public Boolean visit(SDecls s, Frame f) {
+            // declared variables start out as zero
+            for(int slot : ((Resolver.Decls)s).slots) {
+                f.ints[slot] = 0;
+                f.doubles[slot] = 0.0;
+            }
+            return false;
+        }
+
+        public Boolean visit(SInit s, Frame f) {
+            store(s.type_, s.exp_, f, f, ((Resolver.Init)s).slot);
+            return false;
+        }
+
+        public Boolean visit(SReturn s, Frame f) {
+            if (s instanceof Resolver.TailCall && functions.containsKey(((EApp)s.exp_).id_)) {
+                Resolver.Function df = functions.get(((EApp)s.exp_).id_);
+                f.next = enter(df, (EApp)s.exp_, f);
+                f.callee = df;
+                return true;
+            }
+            Type t = ((Resolver.Return)s).type;
+            if (t instanceof Type_double)
+                f.doubleResult = evalDouble(s.exp_, f);
+            else if (t instanceof Type_int)
+                f.intResult = evalInt(s.exp_, f);
+            else if (t instanceof Type_bool)
+                f.intResult = evalBool(s.exp_, f) ? 1 : 0;
+            else
+                evalVoid((EApp)s.exp_, f);
+            return true;
+        }
+
+        public Boolean visit(SWhile s, Frame f) {
+            while (evalBool(s.exp_, f)) {
+                if (s.stm_.accept(this, f))
+                    return true;
+            }
+            return false;
+        }
+
+        public Boolean visit(SBlock s, Frame f) {
+            for(Stm stm : s.liststm_) {
+                if (stm.accept(this, f))
+                    return true;
+            }
+            return false;
+        }
+
+        public Boolean visit(SIfElse s, Frame f) {
+            if (evalBool(s.exp_, f))
+                return s.stm_1.accept(this, f);
+            else
+                return s.stm_2.accept(this, f);
+        }
+    }
+
+    // evaluators for one type each, they leave their result in value
+    private abstract class Eval implements Exp.Visitor<Void, Frame> {
+        public Void visit(ETrue e, Frame f) { return wrongType(e); }
+        public Void visit(EFalse e, Frame f) { return wrongType(e); }
+        public Void visit(EInt e, Frame f) { return wrongType(e); }
+        public Void visit(EDouble e, Frame f) { return wrongType(e); }
+        public Void visit(EId e, Frame f) { return wrongType(e); }
+        public Void visit(EApp e, Frame f) { return wrongType(e); }
+        public Void visit(EPostIncr e, Frame f) { return wrongType(e); }
+        public Void visit(EPostDecr e, Frame f) { return wrongType(e); }
+        public Void visit(EPreIncr e, Frame f) { return wrongType(e); }
+        public Void visit(EPreDecr e, Frame f) { return wrongType(e); }
+        public Void visit(ETimes e, Frame f) { return wrongType(e); }
+        public Void visit(EDiv e, Frame f) { return wrongType(e); }
+        public Void visit(EPlus e, Frame f) { return wrongType(e); }
+        public Void visit(EMinus e, Frame f) { return wrongType(e); }
+        public Void visit(ELt e, Frame f) { return wrongType(e); }
+        public Void visit(EGt e, Frame f) { return wrongType(e); }
+        public Void visit(ELtEq e, Frame f) { return wrongType(e); }
+        public Void visit(EGtEq e, Frame f) { return wrongType(e); }
+        public Void visit(EEq e, Frame f) { return wrongType(e); }
+        public Void visit(ENEq e, Frame f) { return wrongType(e); }
+        public Void visit(EAnd e, Frame f) { return wrongType(e); }
+        public Void visit(EOr e, Frame f) { return wrongType(e); }
+        public Void visit(EAss e, Frame f) { return wrongType(e); }
+
+        private Void wrongType(Exp e) {
+            throw new RuntimeException(getClass().getSimpleName() + " can't evaluate " + e.getClass().getSimpleName());
+        }
+    }
+
+    private class IntEval extends Eval {
+        int value;
+
+        public Void visit(EInt e, Frame f) { value = e.integer_; return null; }
+        public Void visit(EId e, Frame f) { value = f.ints[slot(e)]; return null; }
+        public Void visit(EApp e, Frame f) {
+            if (e.id_.equals("readInt"))
+                value = runtime.readInt();
+            else
+                value = call(e, f).intResult;
+            return null;
+        }
+
+        //++ --
+        public Void visit(EPostIncr e, Frame f) { value = f.ints[slot(e.exp_)]++; return null; }
+        public Void visit(EPostDecr e, Frame f) { value = f.ints[slot(e.exp_)]--; return null; }
+        public Void visit(EPreIncr e, Frame f) { value = ++f.ints[slot(e.exp_)]; return null; }
+        public Void visit(EPreDecr e, Frame f) { value = --f.ints[slot(e.exp_)]; return null; }
+
+        // * / + - assignment
+        public Void visit(ETimes e, Frame f) { int v1 = evalInt(e.exp_1, f); value = v1 * evalInt(e.exp_2, f); return null; }
+        public Void visit(EDiv e, Frame f) { int v1 = evalInt(e.exp_1, f); value = v1 / evalInt(e.exp_2, f); return null; }
+        public Void visit(EPlus e, Frame f) { int v1 = evalInt(e.exp_1, f); value = v1 + evalInt(e.exp_2, f); return null; }
+        public Void visit(EMinus e, Frame f) { int v1 = evalInt(e.exp_1, f); value = v1 - evalInt(e.exp_2, f); return null; }
+        public Void visit(EAss e, Frame f) { value = f.ints[slot(e.exp_1)] = evalInt(e.exp_2, f); return null; }
+    }
+
+    private class DoubleEval extends Eval {
+        double value;
+
+        public Void visit(EDouble e, Frame f) { value = e.double_; return null; }
+        public Void visit(EId e, Frame f) { value = f.doubles[slot(e)]; return null; }
+        public Void visit(EApp e, Frame f) {
+            if (e.id_.equals("readDouble"))
+                value = runtime.readDouble();
+            else
+                value = call(e, f).doubleResult;
+            return null;
+        }
+
+        //++ --
+        public Void visit(EPostIncr e, Frame f) { value = f.doubles[slot(e.exp_)]++; return null; }
+        public Void visit(EPostDecr e, Frame f) { value = f.doubles[slot(e.exp_)]--; return null; }
+        public Void visit(EPreIncr e, Frame f) { value = ++f.doubles[slot(e.exp_)]; return null; }
+        public Void visit(EPreDecr e, Frame f) { value = --f.doubles[slot(e.exp_)]; return null; }
+
+        // * / + - assignment
+        public Void visit(ETimes e, Frame f) { double v1 = evalDouble(e.exp_1, f); value = v1 * evalDouble(e.exp_2, f); return null; }
+        public Void visit(EDiv e, Frame f) { double v1 = evalDouble(e.exp_1, f); value = v1 / evalDouble(e.exp_2, f); return null; }
+        public Void visit(EPlus e, Frame f) { double v1 = evalDouble(e.exp_1, f); value = v1 + evalDouble(e.exp_2, f); return null; }
+        public Void visit(EMinus e, Frame f) { double v1 = evalDouble(e.exp_1, f); value = v1 - evalDouble(e.exp_2, f); return null; }
+        public Void visit(EAss e, Frame f) { value = f.doubles[slot(e.exp_1)] = evalDouble(e.exp_2, f); return null; }
+    }
+
+    private class BoolEval extends Eval {
+        boolean value;
+
+        public Void visit(ETrue e, Frame f) { value = true; return null; }
+        public Void visit(EFalse e, Frame f) { value = false; return null; }
+        public Void visit(EId e, Frame f) { value = f.ints[slot(e)] != 0; return null; }
+        public Void visit(EApp e, Frame f) { value = call(e, f).intResult != 0; return null; }
+        public Void visit(EAss e, Frame f) {
+            value = evalBool(e.exp_2, f);
+            f.ints[slot(e.exp_1)] = value ? 1 : 0;
+            return null;
+        }
+
+        // < > >= ... && ||, the operands of comparisons have the same type
+        public Void visit(ELt e, Frame f) {
+            if (((Resolver.Lt)e).type instanceof Type_double)
+                value = evalDouble(e.exp_1, f) < evalDouble(e.exp_2, f);
+            else
+                value = evalInt(e.exp_1, f) < evalInt(e.exp_2, f);
+            return null;
+        }
+        public Void visit(EGt e, Frame f) {
+            if (((Resolver.Gt)e).type instanceof Type_double)
+                value = evalDouble(e.exp_1, f) > evalDouble(e.exp_2, f);
+            else
+                value = evalInt(e.exp_1, f) > evalInt(e.exp_2, f);
+            return null;
+        }
+        public Void visit(ELtEq e, Frame f) {
+            if (((Resolver.LtEq)e).type instanceof Type_double)
+                value = evalDouble(e.exp_1, f) <= evalDouble(e.exp_2, f);
+            else
+                value = evalInt(e.exp_1, f) <= evalInt(e.exp_2, f);
+            return null;
+        }
+        public Void visit(EGtEq e, Frame f) {
+            if (((Resolver.GtEq)e).type instanceof Type_double)
+                value = evalDouble(e.exp_1, f) >= evalDouble(e.exp_2, f);
+            else
+                value = evalInt(e.exp_1, f) >= evalInt(e.exp_2, f);
+            return null;
+        }
+        public Void visit(EEq e, Frame f) {
+            Type t = ((Resolver.Eq)e).type;
+            if (t instanceof Type_double)
+                value = evalDouble(e.exp_1, f) == evalDouble(e.exp_2, f);
+            else if (t instanceof Type_int)
+                value = evalInt(e.exp_1, f) == evalInt(e.exp_2, f);
+            else
+                value = evalBool(e.exp_1, f) == evalBool(e.exp_2, f);
+            return null;
+        }
+        public Void visit(ENEq e, Frame f) {
+            Type t = ((Resolver.NEq)e).type;
+            if (t instanceof Type_double)
+                value = evalDouble(e.exp_1, f) != evalDouble(e.exp_2, f);
+            else if (t instanceof Type_int)
+                value = evalInt(e.exp_1, f) != evalInt(e.exp_2, f);
+            else
+                value = evalBool(e.exp_1, f) != evalBool(e.exp_2, f);
+            return null;
+        }
+        public Void visit(EAnd e, Frame f) { value = evalBool(e.exp_1, f) && evalBool(e.exp_2, f); return null; }
+        public Void visit(EOr e, Frame f) { value = evalBool(e.exp_1, f) || evalBool(e.exp_2, f); return null; }
+    }
+}
@@ -0,0 +1,216 @@
+import java.util.Arrays;
+
+import CPP.Absyn.*;
+
+/**
+ * Executes the register code of the {@link BytecodeCompiler} or the
+ * {@link SSALowering}. The dispatch loop is one switch over the opcodes of
+ * {@link Opcodes}.
+ *
+ * Calls don't use the Java stack. The registers of all active calls lie in
+ * one growable int and one double stack, each call owning a window of
+ * intRegs and doubleRegs cells above the window of its caller. A call stack
+ * of functions and return addresses remembers where to continue, so the
+ * recursion depth of a program is only bounded by the heap, and each call
+ * costs its registers plus one entry on the call stack.
+ */
+public class VM implements Opcodes {
+
+    public static final class Function {
+        final String name;
+        final int[] code;
+        final double[] constants;
+        final int intRegs, doubleRegs;
+        final boolean[] doubleParams;
+
+        Function(String name, int[] code, double[] constants, int intRegs, int doubleRegs, boolean[] doubleParams) {
+            this.name = name;
+            this.code = code;
+            this.constants = constants;
+            this.intRegs = intRegs;
+            this.doubleRegs = doubleRegs;
+            this.doubleParams = doubleParams;
+        }
+    }
+
+    private Runtime runtime;
+    private Function[] functions;
+    // compile by way of SSA form instead of straight from the tree
+    private final boolean ssa;
+
+    // result of the last returning call
+    private int intResult;
+    private double doubleResult;
+
+    // registers of all active calls
+    private int[] ints = new int[1024];
+    private double[] doubles = new double[1024];
+
+    // callers of the active calls, and the pc of the call instruction in each
+    private Function[] callers = new Function[256];
+    private int[] returnPcs = new int[256];
+
+    public VM() {
+        this(false);
+    }
+
+    public VM(boolean ssa) {
+        this(new Runtime(), ssa);
+    }
+
+    public VM(Runtime runtime, boolean ssa) {
+        this.runtime = runtime;
+        this.ssa = ssa;
+    }
+
+    public void interpret(Program p) {
+        run(compile(p, ssa));
+    }
+
+    // the code of p, which never changes, so any number of VMs can run it at once
+    public static Function[] compile(Program p, boolean ssa) {
+        return ssa ? new SSALowering().compile(p) : new BytecodeCompiler().compile(p);
+    }
+
+    public void run(Function[] functions) {
+        this.functions = functions;
+        for(Function f : functions) {
+            if (f.name.equals("main")) {
+                execute(f);
+                return;
+            }
+        }
+        throw new RuntimeException("no main function");
+    }
+
+    private void execute(Function main) {
+        Function f = main;
+        int[] code = f.code;
+        double[] k = f.constants;
+        int[] is = ints;
+        double[] ds = doubles;
+        // start of the register windows of f, and the number of active callers
+        int ib = 0, db = 0, depth = 0;
+        int pc = 0;
+        for(;;) {
+            switch (code[pc]) {
+                case ICONST: is[ib + code[pc+1]] = code[pc+2]; pc += 3; continue;
+                case DCONST: ds[db + code[pc+1]] = k[code[pc+2]]; pc += 3; continue;
+                case IMOV: is[ib + code[pc+1]] = is[ib + code[pc+2]]; pc += 3; continue;
+                case DMOV: ds[db + code[pc+1]] = ds[db + code[pc+2]]; pc += 3; continue;
+
+                case IADD_RR: is[ib + code[pc+1]] = is[ib + code[pc+2]] + is[ib + code[pc+3]]; pc += 4; continue;
+                case ISUB_RR: is[ib + code[pc+1]] = is[ib + code[pc+2]] - is[ib + code[pc+3]]; pc += 4; continue;
+                case IMUL_RR: is[ib + code[pc+1]] = is[ib + code[pc+2]] * is[ib + code[pc+3]]; pc += 4; continue;
+                case IDIV_RR: is[ib + code[pc+1]] = is[ib + code[pc+2]] / is[ib + code[pc+3]]; pc += 4; continue;
+                case IADD_RI: is[ib + code[pc+1]] = is[ib + code[pc+2]] + code[pc+3]; pc += 4; continue;
+                case ISUB_RI: is[ib + code[pc+1]] = is[ib + code[pc+2]] - code[pc+3]; pc += 4; continue;
+                case IMUL_RI: is[ib + code[pc+1]] = is[ib + code[pc+2]] * code[pc+3]; pc += 4; continue;
+                case IDIV_RI: is[ib + code[pc+1]] = is[ib + code[pc+2]] / code[pc+3]; pc += 4; continue;
+
+                case DADD_RR: ds[db + code[pc+1]] = ds[db + code[pc+2]] + ds[db + code[pc+3]]; pc += 4; continue;
+                case DSUB_RR: ds[db + code[pc+1]] = ds[db + code[pc+2]] - ds[db + code[pc+3]]; pc += 4; continue;
+                case DMUL_RR: ds[db + code[pc+1]] = ds[db + code[pc+2]] * ds[db + code[pc+3]]; pc += 4; continue;
+                case DDIV_RR: ds[db + code[pc+1]] = ds[db + code[pc+2]] / ds[db + code[pc+3]]; pc += 4; continue;
+                case DADD_RI: ds[db + code[pc+1]] = ds[db + code[pc+2]] + k[code[pc+3]]; pc += 4; continue;
+                case DSUB_RI: ds[db + code[pc+1]] = ds[db + code[pc+2]] - k[code[pc+3]]; pc += 4; continue;
+                case DMUL_RI: ds[db + code[pc+1]] = ds[db + code[pc+2]] * k[code[pc+3]]; pc += 4; continue;
+                case DDIV_RI: ds[db + code[pc+1]] = ds[db + code[pc+2]] / k[code[pc+3]]; pc += 4; continue;
+
+                case ILT_RR: is[ib + code[pc+1]] = is[ib + code[pc+2]] < is[ib + code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case IGT_RR: is[ib + code[pc+1]] = is[ib + code[pc+2]] > is[ib + code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case ILE_RR: is[ib + code[pc+1]] = is[ib + code[pc+2]] <= is[ib + code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case IGE_RR: is[ib + code[pc+1]] = is[ib + code[pc+2]] >= is[ib + code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case IEQ_RR: is[ib + code[pc+1]] = is[ib + code[pc+2]] == is[ib + code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case INE_RR: is[ib + code[pc+1]] = is[ib + code[pc+2]] != is[ib + code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case ILT_RI: is[ib + code[pc+1]] = is[ib + code[pc+2]] < code[pc+3] ? 1 : 0; pc += 4; continue;
+                case IGT_RI: is[ib + code[pc+1]] = is[ib + code[pc+2]] > code[pc+3] ? 1 : 0; pc += 4; continue;
+                case ILE_RI: is[ib + code[pc+1]] = is[ib + code[pc+2]] <= code[pc+3] ? 1 : 0; pc += 4; continue;
+                case IGE_RI: is[ib + code[pc+1]] = is[ib + code[pc+2]] >= code[pc+3] ? 1 : 0; pc += 4; continue;
+                case IEQ_RI: is[ib + code[pc+1]] = is[ib + code[pc+2]] == code[pc+3] ? 1 : 0; pc += 4; continue;
+                case INE_RI: is[ib + code[pc+1]] = is[ib + code[pc+2]] != code[pc+3] ? 1 : 0; pc += 4; continue;
+
+                case DLT_RR: is[ib + code[pc+1]] = ds[db + code[pc+2]] < ds[db + code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case DGT_RR: is[ib + code[pc+1]] = ds[db + code[pc+2]] > ds[db + code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case DLE_RR: is[ib + code[pc+1]] = ds[db + code[pc+2]] <= ds[db + code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case DGE_RR: is[ib + code[pc+1]] = ds[db + code[pc+2]] >= ds[db + code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case DEQ_RR: is[ib + code[pc+1]] = ds[db + code[pc+2]] == ds[db + code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case DNE_RR: is[ib + code[pc+1]] = ds[db + code[pc+2]] != ds[db + code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case DLT_RI: is[ib + code[pc+1]] = ds[db + code[pc+2]] < k[code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case DGT_RI: is[ib + code[pc+1]] = ds[db + code[pc+2]] > k[code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case DLE_RI: is[ib + code[pc+1]] = ds[db + code[pc+2]] <= k[code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case DGE_RI: is[ib + code[pc+1]] = ds[db + code[pc+2]] >= k[code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case DEQ_RI: is[ib + code[pc+1]] = ds[db + code[pc+2]] == k[code[pc+3]] ? 1 : 0; pc += 4; continue;
+                case DNE_RI: is[ib + code[pc+1]] = ds[db + code[pc+2]] != k[code[pc+3]] ? 1 : 0; pc += 4; continue;
+
+                case JMP: pc = code[pc+1]; continue;
+                case JMPF: pc = is[ib + code[pc+1]] == 0 ? code[pc+2] : pc + 3; continue;
+                case JMPT: pc = is[ib + code[pc+1]] != 0 ? code[pc+2] : pc + 3; continue;
+
+                case CALL_I:
+                case CALL_D:
+                case CALL_V: {
+                    // f n a1 .. an follow the opcode, CALL_I and CALL_D have the destination first
+                    int at = code[pc] == CALL_V ? pc + 1 : pc + 2;
+                    Function callee = functions[code[at]];
+                    int n = code[at + 1];
+                    int cib = ib + f.intRegs, cdb = db + f.doubleRegs;
+                    if (cib + callee.intRegs > is.length)
+                        is = ints = Arrays.copyOf(is, Math.max(2 * is.length, cib + callee.intRegs));
+                    if (cdb + callee.doubleRegs > ds.length)
+                        ds = doubles = Arrays.copyOf(ds, Math.max(2 * ds.length, cdb + callee.doubleRegs));
+                    for(int i = 0; i < n; i++) {
+                        int r = code[at + 2 + i];
+                        if (callee.doubleParams[i])
+                            ds[cdb + i] = ds[db + r];
+                        else
+                            is[cib + i] = is[ib + r];
+                    }
+
+                    if (depth == callers.length) {
+                        callers = Arrays.copyOf(callers, 2 * depth);
+                        returnPcs = Arrays.copyOf(returnPcs, 2 * depth);
+                    }
+                    callers[depth] = f;
+                    returnPcs[depth] = pc;
+                    depth++;
+
+                    f = callee;
+                    code = f.code;
+                    k = f.constants;
+                    ib = cib;
+                    db = cdb;
+                    pc = 0;
+                    continue;
+                }
+                case RET_I: intResult = is[ib + code[pc+1]]; break;
+                case RET_D: doubleResult = ds[db + code[pc+1]]; break;
+                case RET_V: break;
+
+                case PRINTI: runtime.printInt(is[ib + code[pc+1]]); pc += 2; continue;
+                case PRINTD: runtime.printDouble(ds[db + code[pc+1]]); pc += 2; continue;
+                case READI: is[ib + code[pc+1]] = runtime.readInt(); pc += 2; continue;
+                case READD: ds[db + code[pc+1]] = runtime.readDouble(); pc += 2; continue;
+
+                default:
+                    throw new RuntimeException("invalid opcode " + code[pc] + " at " + pc + " in " + f.name);
+            }
+
+            // only returns get here, continue after the call instruction of the caller
+            if (depth == 0)
+                return;
+            depth--;
+            f = callers[depth];
+            code = f.code;
+            k = f.constants;
+            ib -= f.intRegs;
+            db -= f.doubleRegs;
+            pc = returnPcs[depth];
+            switch (code[pc]) {
+                case CALL_I: is[ib + code[pc+1]] = intResult; pc += 4 + code[pc+3]; break;
+                case CALL_D: ds[db + code[pc+1]] = doubleResult; pc += 4 + code[pc+3]; break;
+                default: pc += 3 + code[pc+2];
+            }
+        }
+    }
+}
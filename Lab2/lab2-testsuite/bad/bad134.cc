@@ -0,0 +1,5 @@
+int main() {
+  int x = 1;
+  x + 1 = 2;
+  return 0;
+}
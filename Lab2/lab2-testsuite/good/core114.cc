@@ -0,0 +1,12 @@
+// a failing call in a loop condition must not run before an effect preceding it
+
+int inv(int x) { return 10 / x; }
+
+int loud(int x) { printInt(x); return x; }
+
+int main() {
+  int k = 0;
+  int i = 0;
+  while (loud(i) < inv(k)) { i++; }
+  return 0;
+}
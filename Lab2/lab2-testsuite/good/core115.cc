@@ -0,0 +1,22 @@
+// accumulator-style tail recursion a million calls deep, which must not
+// take a stack frame per call
+
+int count(int n, int acc) {
+  if (n == 0)
+    return acc;
+  else
+    return count(n - 1, acc + 1);
+}
+
+double half(int n, double acc) {
+  if (n == 0)
+    return acc;
+  else
+    return half(n - 1, acc + 0.5);
+}
+
+int main() {
+  printInt(count(1000000, 0));
+  printDouble(half(1000000, 0.0));
+  return 0;
+}
@@ -0,0 +1,22 @@
+// recursion a million calls deep that isn't a tail call. The VM keeps its
+// own stack, core116.cc.mode runs this with -vm
+
+int depth(int n) {
+  if (n == 0)
+    return 0;
+  else
+    return 1 + depth(n - 1);
+}
+
+double total(int n) {
+  if (n == 0)
+    return 0.0;
+  else
+    return 0.5 + total(n - 1);
+}
+
+int main() {
+  printInt(depth(1000000));
+  printDouble(total(1000000));
+  return 0;
+}
@@ -0,0 +1,37 @@
+// an inlined function returning from inside a loop, which has to leave
+// the loop and skip the rest of the body
+
+int firstDivisor(int n) {
+  int d = 2;
+  while (d < n) {
+    if (n / d * d == n)
+      return d;
+    else
+      d++;
+  }
+  return n;
+}
+
+int lastBelow(int n, int limit) {
+  int i = 0;
+  int last = 0;
+  while (true) {
+    i++;
+    if (i * n >= limit) {
+      printInt(i);
+      return last;
+    } else
+      last = i * n;
+  }
+  printInt(0);
+  return 0;
+}
+
+int main() {
+  int a = firstDivisor(91);
+  printInt(a);
+  int b = 0;
+  b = lastBelow(7, 50);
+  printInt(b);
+  return 0;
+}
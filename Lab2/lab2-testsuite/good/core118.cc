@@ -0,0 +1,34 @@
+// inlined functions whose parameters and locals have the names of
+// variables of the caller, which they must not touch
+
+int twice(int x) {
+  int y = x + x;
+  return y;
+}
+
+int swapped(int x, int y) {
+  int t = x;
+  x = y;
+  y = t;
+  {
+    int x = 100;
+    t = t + x;
+  }
+  return x * 1000 + y + t;
+}
+
+int main() {
+  int y = 5;
+  int x = 7;
+  int t = 1;
+  int r = twice(y);
+  printInt(r);
+  printInt(x);
+  printInt(y);
+  r = swapped(y, x);
+  printInt(r);
+  printInt(x);
+  printInt(y);
+  printInt(t);
+  return 0;
+}
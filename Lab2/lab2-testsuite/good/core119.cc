@@ -0,0 +1,18 @@
+// an inlined call that ignores a variable argument still reads it, and
+// reading it fails while it's unassigned
+
+int first(int a, int b) { return a; }
+
+int discard(int a) {
+  printInt(a);
+  return a;
+}
+
+int main() {
+  int y = 1;
+  int x;
+  discard(y);
+  printInt(first(y, x));
+  printInt(2);
+  return 0;
+}
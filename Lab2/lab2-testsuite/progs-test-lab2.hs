@@ -71,7 +71,9 @@ testBackendProg :: FilePath -> FilePath -> IO Bool
 testBackendProg prog f =
     do input  <- readFileIfExists (f++".input")
        output <- readFileIfExists (f++".output")
-       let c = prog ++ " " ++ f
+       -- the mode of lab2 to run the program in, if not the default
+       mode   <- readFileIfExists (f++".mode")
+       let c = unwords ([prog] ++ words mode ++ [f])
        putStrLn $ "Running " ++ f ++ "..."
        (out,err,s) <- runCommandStrWait c input
        debug $ "Exit code: " ++ show s
@@ -2,21 +2,46 @@ import java_cup.runtime.*;
 import CPP.*;
 import CPP.Absyn.*;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 public class lab2 {
-    public static void main(String args[]) {
-        if (args.length != 1) {
-            System.err.println("Usage: lab2 <SourceFile>");
+    public static void main(String args[]) throws IOException {
+        if (args.length == 2 && args[0].equals("-server")) {
+            Daemon.serve(args[1]);
+            return;
+        }
+        if ((args.length == 3 || args.length == 4) && args[0].equals("-connect")) {
+            String mode = args.length == 4 ? args[2] : "";
+            if (ProgramRunner.MODES.contains(mode))
+                System.exit(Daemon.connect(args[1], mode, args[args.length - 1]));
+        }
+
+        String mode = args.length == 2 ? args[0] : "";
+        if (args.length < 1 || args.length > 2 || !ProgramRunner.MODES.contains(mode)) {
+            System.err.println("Usage: lab2 [-unboxed|-closure|-vm|-ssa|-jit|-memo|-parallel] <SourceFile>");
+            System.err.println("       lab2 -server <Socket>");
+            System.err.println("       lab2 -connect <Socket> [-unboxed|...] <SourceFile>");
             System.exit(1);
         }
 
+        // programs prepared before are kept in the directory LAB2_CACHE names, if it is set
+        String cacheDirectory = System.getenv("LAB2_CACHE");
+        ProgramCache cache = cacheDirectory == null ? null : new ProgramCache(1, new File(cacheDirectory));
+
         Yylex l = null;
         try {
-            l = new Yylex(new FileReader(args[0]));
-            parser p = new parser(l);
-            CPP.Absyn.Program parse_tree = p.pProgram();
-            new TypeChecker().typecheck(parse_tree);
-            new Interpreter().interpret(parse_tree);
+            String source = new String(Files.readAllBytes(Paths.get(args[args.length - 1])));
+            PreparedProgram program = cache == null ? null : cache.get(source);
+            if (program == null) {
+                l = new Yylex(new StringReader(source));
+                parser p = new parser(l);
+                CPP.Absyn.Program parse_tree = p.pProgram();
+                program = new PreparedProgram(parse_tree);
+                if (cache != null)
+                    cache.put(source, program);
+            }
+            program.execute(mode, new Runtime());
 
         } catch (TypeException e) {
             System.out.println("TYPE ERROR");
@@ -29,10 +54,15 @@ public class lab2 {
         } catch (IOException e) {
             System.err.println(e.toString());
             System.exit(1);
+        } catch (StackOverflowError e) {
+            // recursion deeper than the Java stack, which -vm doesn't use
+            System.err.println(e.toString());
+            System.exit(-1);
         } catch (Throwable e) {
             System.out.println("SYNTAX ERROR");
-            System.out.println("At line " + String.valueOf(l.line_num())
-                       + ", near \"" + l.buff() + "\" :");
+            if (l != null)
+                System.out.println("At line " + String.valueOf(l.line_num())
+                           + ", near \"" + l.buff() + "\" :");
             System.out.println("     " + e.getMessage());
             e.printStackTrace();
             System.exit(1);
@@ -0,0 +1,553 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Writes a class file straight from the instructions of its methods, the
+ * way Jasmin would assemble them, without the text in between.
+ *
+ * Class files of version 52 are verified by type checking, which needs the
+ * types of the locals and the stack wherever a jump goes, in a StackMapTable.
+ * These are computed by running the instructions on types, merging them at
+ * labels. Code that can't be reached has no types, so it is left out.
+ */
+public class ClassFile implements Opcodes {
+
+    public static final int ACC_PUBLIC = 0x0001, ACC_STATIC = 0x0008;
+
+    // verification types, a double takes the local after it as TOP
+    private static final int TOP = 0, INTEGER = 1, DOUBLE = 3, OBJECT = 7;
+
+    private static final int WIDE = 0xc4, LDC_W = 0x13;
+
+    private final Bytes pool = new Bytes();
+    private final HashMap<String, Integer> entries = new HashMap<String, Integer>();
+    private int poolSize = 1;
+
+    private final Bytes methods = new Bytes();
+    private int methodCount = 0;
+
+    private final int thisClass;
+    private final int superClass;
+    private final int codeName;
+    private final int stackMapTableName;
+
+    public ClassFile(String name) {
+        thisClass = classRef(name);
+        superClass = classRef("java/lang/Object");
+        codeName = utf8("Code");
+        stackMapTableName = utf8("StackMapTable");
+    }
+
+    public byte[] toByteArray() {
+        Bytes b = new Bytes();
+        b.u4(0xCAFEBABE);
+        b.u2(0);
+        b.u2(52);
+        b.u2(poolSize);
+        b.bytes(pool);
+        b.u2(0x0021);                        // public super
+        b.u2(thisClass);
+        b.u2(superClass);
+        b.u2(0);                             // interfaces
+        b.u2(0);                             // fields
+        b.u2(methodCount);
+        b.bytes(methods);
+        b.u2(0);                             // attributes
+        return Arrays.copyOf(b.data, b.length);
+    }
+
+    private static class Bytes {
+        byte[] data = new byte[256];
+        int length = 0;
+
+        void u1(int b) {
+            if (length == data.length)
+                data = Arrays.copyOf(data, 2 * data.length);
+            data[length++] = (byte)b;
+        }
+        void u2(int s) { u1(s >> 8); u1(s); }
+        void u4(int i) { u2(i >> 16); u2(i); }
+        void u8(long l) { u4((int)(l >> 32)); u4((int)l); }
+        void bytes(Bytes b) {
+            for(int i = 0; i < b.length; i++) {
+                u1(b.data[i]);
+            }
+        }
+    }
+
+    /* constant pool */
+
+    private int utf8(String s) {
+        Integer index = entries.get("U" + s);
+        if (index == null) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            pool.u1(1);
+            pool.u2(b.length);
+            for(byte x : b) {
+                pool.u1(x);
+            }
+            index = add("U" + s, 1);
+        }
+        return index;
+    }
+
+    private int classRef(String name) {
+        Integer index = entries.get("C" + name);
+        if (index == null) {
+            int n = utf8(name);
+            pool.u1(7);
+            pool.u2(n);
+            index = add("C" + name, 1);
+        }
+        return index;
+    }
+
+    // a method in the form of Jasmin, owner/name(descriptor)
+    private int methodRef(String method) {
+        Integer index = entries.get("M" + method);
+        if (index == null) {
+            int paren = method.indexOf('(');
+            int slash = method.lastIndexOf('/', paren);
+            int c = classRef(method.substring(0, slash));
+            int n = utf8(method.substring(slash + 1, paren)), d = utf8(method.substring(paren));
+            pool.u1(12);
+            pool.u2(n);
+            pool.u2(d);
+            int nameAndType = add("N" + method.substring(slash + 1), 1);
+            pool.u1(10);
+            pool.u2(c);
+            pool.u2(nameAndType);
+            index = add("M" + method, 1);
+        }
+        return index;
+    }
+
+    private int integer(int i) {
+        Integer index = entries.get("I" + i);
+        if (index == null) {
+            pool.u1(3);
+            pool.u4(i);
+            index = add("I" + i, 1);
+        }
+        return index;
+    }
+
+    // doubles take two entries of the constant pool
+    private int doubleConstant(double d) {
+        long bits = Double.doubleToRawLongBits(d);
+        Integer index = entries.get("D" + bits);
+        if (index == null) {
+            pool.u1(6);
+            pool.u8(bits);
+            index = add("D" + bits, 2);
+        }
+        return index;
+    }
+
+    private int add(String key, int size) {
+        int index = poolSize;
+        entries.put(key, index);
+        poolSize += size;
+        return index;
+    }
+
+    /* methods */
+
+    public void method(int access, String name, String descriptor, List<Instruction> instructions, int maxStack, int maxLocals) {
+        Instruction[] code = instructions.toArray(new Instruction[instructions.size()]);
+
+        // labels by the index of the instruction placing them
+        HashMap<Label, Integer> labels = new HashMap<Label, Integer>();
+        for (int i = 0; i < code.length; i++) {
+            if (code[i].opcode == LABEL)
+                labels.put(code[i].label, i);
+        }
+        Frame[] frames = frames(access, descriptor, code, labels, maxLocals);
+        for (Frame f : frames) {
+            if (f != null && f.words() > maxStack)
+                throw new IllegalStateException("max_stack " + maxStack + " of " + name + " too small");
+        }
+        // the labels that reachable jumps go to
+        boolean[] targets = new boolean[code.length];
+        for (int i = 0; i < code.length; i++) {
+            if (frames[i] != null && code[i].isJump())
+                targets[labels.get(code[i].label)] = true;
+        }
+
+        Bytes bytes = new Bytes();
+        Bytes stackMap = new Bytes();
+        int stackMapEntries = 0;
+        Frame previous = frames[0];
+        int previousOffset = -1;
+        boolean target = false;
+        int[] positions = new int[code.length];
+        ArrayList<Integer> jumps = new ArrayList<Integer>();
+        for (int i = 0; i < code.length; i++) {
+            positions[i] = bytes.length;
+            if (frames[i] == null)
+                continue;
+            if (code[i].opcode == LABEL) {
+                target |= targets[i];
+                continue;
+            }
+            if (target) {
+                // the types where jumps arrive, which is the same for all labels here
+                frame(stackMap, bytes.length - previousOffset - 1, previous, frames[i]);
+                stackMapEntries++;
+                previous = frames[i];
+                previousOffset = bytes.length;
+                target = false;
+            }
+            if (code[i].isJump())
+                jumps.add(i);
+            encode(bytes, code[i]);
+        }
+        if (target)
+            throw new IllegalStateException("jump to the end of " + name);
+
+        for (int i : jumps) {
+            int offset = positions[labels.get(code[i].label)] - positions[i];
+            if (offset != (short)offset)
+                throw new IllegalStateException("method " + name + " too large");
+            bytes.data[positions[i] + 1] = (byte)(offset >> 8);
+            bytes.data[positions[i] + 2] = (byte)offset;
+        }
+        if (bytes.length > 65535)
+            throw new IllegalStateException("method " + name + " too large");
+
+        int attributes = stackMapEntries > 0 ? 1 : 0;
+        int stackMapLength = stackMapEntries > 0 ? 8 + stackMap.length : 0;
+        methodCount++;
+        methods.u2(access);
+        methods.u2(utf8(name));
+        methods.u2(utf8(descriptor));
+        methods.u2(1);
+        methods.u2(codeName);
+        methods.u4(12 + bytes.length + stackMapLength);
+        methods.u2(maxStack);
+        methods.u2(maxLocals);
+        methods.u4(bytes.length);
+        methods.bytes(bytes);
+        methods.u2(0);                       // exception table
+        methods.u2(attributes);
+        if (attributes > 0) {
+            methods.u2(stackMapTableName);
+            methods.u4(2 + stackMap.length);
+            methods.u2(stackMapEntries);
+            methods.bytes(stackMap);
+        }
+    }
+
+    private void encode(Bytes b, Instruction i) {
+        switch (i.opcode) {
+            case ILOAD: case DLOAD: case ALOAD: case ISTORE: case DSTORE:
+                if (i.operand <= 3) {
+                    // iload_0 and the like
+                    int first = i.opcode < ISTORE ? 0x1a + 4 * (i.opcode - ILOAD) : 0x3b + 4 * (i.opcode - ISTORE);
+                    b.u1(first + i.operand);
+                } else if (i.operand <= 255) {
+                    b.u1(i.opcode);
+                    b.u1(i.operand);
+                } else {
+                    b.u1(WIDE);
+                    b.u1(i.opcode);
+                    b.u2(i.operand);
+                }
+                return;
+            case IINC:
+                if (i.operand <= 255 && i.increment == (byte)i.increment) {
+                    b.u1(IINC);
+                    b.u1(i.operand);
+                    b.u1(i.increment);
+                } else {
+                    b.u1(WIDE);
+                    b.u1(IINC);
+                    b.u2(i.operand);
+                    b.u2(i.increment);
+                }
+                return;
+            case LDC: {
+                int index = integer(i.operand);
+                if (index <= 255) {
+                    b.u1(LDC);
+                    b.u1(index);
+                } else {
+                    b.u1(LDC_W);
+                    b.u2(index);
+                }
+                return;
+            }
+            case LDC2_W:
+                b.u1(LDC2_W);
+                b.u2(doubleConstant(i.constant));
+                return;
+            case BIPUSH:
+                b.u1(BIPUSH);
+                b.u1(i.operand);
+                return;
+            case SIPUSH:
+                b.u1(SIPUSH);
+                b.u2(i.operand);
+                return;
+            case INVOKESPECIAL: case INVOKESTATIC:
+                b.u1(i.opcode);
+                b.u2(methodRef(i.method));
+                return;
+        }
+        b.u1(i.opcode);
+        if (i.isJump())
+            b.u2(0);                         // offset, once the labels are placed
+    }
+
+    /* stack map frames */
+
+    // types of the locals and the stack before an instruction
+    private static class Frame {
+        final int[] locals;
+        int[] stack;
+
+        Frame(int[] locals, int[] stack) {
+            this.locals = locals;
+            this.stack = stack;
+        }
+
+        // the height of the stack
+        int words() {
+            int words = 0;
+            for (int type : stack) {
+                words += type == DOUBLE ? 2 : 1;
+            }
+            return words;
+        }
+
+        Frame copy() {
+            return new Frame(locals.clone(), stack.clone());
+        }
+
+        void push(int type) {
+            stack = Arrays.copyOf(stack, stack.length + 1);
+            stack[stack.length - 1] = type;
+        }
+
+        int pop() {
+            int type = stack[stack.length - 1];
+            stack = Arrays.copyOf(stack, stack.length - 1);
+            return type;
+        }
+
+        void store(int local, int type) {
+            // a double in the local before loses its second half
+            if (local > 0 && locals[local - 1] == DOUBLE)
+                locals[local - 1] = TOP;
+            locals[local] = type;
+            if (type == DOUBLE)
+                locals[local + 1] = TOP;
+        }
+
+        // merges other into this, and tells whether this changed
+        boolean merge(Frame other) {
+            if (!Arrays.equals(stack, other.stack))
+                throw new IllegalStateException("stacks differ where jumps meet");
+            boolean changed = false;
+            for (int i = 0; i < locals.length; i++) {
+                if (locals[i] != other.locals[i] && locals[i] != TOP) {
+                    locals[i] = TOP;
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+    }
+
+    // the frame before every instruction that can be reached, null before the others
+    private static Frame[] frames(int access, String descriptor, Instruction[] code, HashMap<Label, Integer> labels, int maxLocals) {
+        int[] locals = new int[maxLocals];
+        int local = 0;
+        if ((access & ACC_STATIC) == 0)
+            locals[local++] = OBJECT;
+        for (int type : parameterTypes(descriptor)) {
+            locals[local] = type;
+            local += type == DOUBLE ? 2 : 1;
+        }
+
+        Frame[] frames = new Frame[code.length];
+        frames[0] = new Frame(locals, new int[0]);
+        ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+        work.add(0);
+        while (!work.isEmpty()) {
+            int i = work.poll();
+            Frame f = frames[i].copy();
+            execute(code[i], f);
+            if (code[i].isJump())
+                flow(frames, work, labels.get(code[i].label), f);
+            if (!code[i].endsBlock() && i + 1 < code.length)
+                flow(frames, work, i + 1, f);
+        }
+        return frames;
+    }
+
+    private static void flow(Frame[] frames, ArrayDeque<Integer> work, int to, Frame f) {
+        if (frames[to] == null) {
+            frames[to] = f.copy();
+            work.add(to);
+        } else if (frames[to].merge(f)) {
+            work.add(to);
+        }
+    }
+
+    private static void execute(Instruction i, Frame f) {
+        if (i.opcode >= ICONST_M1 && i.opcode <= ICONST_5) {
+            f.push(INTEGER);
+            return;
+        }
+        switch (i.opcode) {
+            case BIPUSH: case SIPUSH: case LDC: case ILOAD:
+                f.push(INTEGER);
+                return;
+            case DCONST_0: case DCONST_1: case LDC2_W: case DLOAD:
+                f.push(DOUBLE);
+                return;
+            case ALOAD:
+                f.push(f.locals[i.operand]);
+                return;
+            case ISTORE: case DSTORE:
+                f.store(i.operand, f.pop());
+                return;
+            case POP:
+                f.pop();
+                return;
+            case POP2:
+                if (f.pop() != DOUBLE)
+                    f.pop();
+                return;
+            case DUP: {
+                int top = f.pop();
+                f.push(top);
+                f.push(top);
+                return;
+            }
+            case DUP2: {
+                int top = f.pop();
+                if (top == DOUBLE) {
+                    f.push(top);
+                    f.push(top);
+                } else {
+                    int below = f.pop();
+                    f.push(below);
+                    f.push(top);
+                    f.push(below);
+                    f.push(top);
+                }
+                return;
+            }
+            case IADD: case ISUB: case IMUL: case IDIV: case DCMPL: case DCMPG:
+                f.pop();
+                f.pop();
+                f.push(INTEGER);
+                return;
+            case DADD: case DSUB: case DMUL: case DDIV:
+                f.pop();
+                f.pop();
+                f.push(DOUBLE);
+                return;
+            case IFEQ: case IFNE: case IFLT: case IFGE: case IFGT: case IFLE:
+            case IRETURN: case DRETURN:
+                f.pop();
+                return;
+            case IF_ICMPEQ: case IF_ICMPNE: case IF_ICMPLT: case IF_ICMPGE: case IF_ICMPGT: case IF_ICMPLE:
+                f.pop();
+                f.pop();
+                return;
+            case INVOKESPECIAL: case INVOKESTATIC: {
+                String descriptor = i.method.substring(i.method.indexOf('('));
+                for (int n = parameterTypes(descriptor).size(); n > 0; n--) {
+                    f.pop();
+                }
+                if (i.opcode == INVOKESPECIAL)
+                    f.pop();
+                char result = descriptor.charAt(descriptor.indexOf(')') + 1);
+                if (result == 'D')
+                    f.push(DOUBLE);
+                else if (result != 'V')
+                    f.push(result == 'L' || result == '[' ? OBJECT : INTEGER);
+                return;
+            }
+        }
+        // labels, iinc, goto and return
+    }
+
+    private static ArrayList<Integer> parameterTypes(String descriptor) {
+        ArrayList<Integer> types = new ArrayList<Integer>();
+        for (int i = 1; descriptor.charAt(i) != ')'; i++) {
+            char c = descriptor.charAt(i);
+            if (c == 'D') {
+                types.add(DOUBLE);
+            } else if (c == 'L' || c == '[') {
+                while (descriptor.charAt(i) == '[')
+                    i++;
+                if (descriptor.charAt(i) == 'L')
+                    i = descriptor.indexOf(';', i);
+                types.add(OBJECT);
+            } else {
+                types.add(INTEGER);
+            }
+        }
+        return types;
+    }
+
+    // the locals of a frame as in the StackMapTable, a double is one entry and TOPs at the end are left out
+    private static ArrayList<Integer> verificationTypes(int[] locals) {
+        ArrayList<Integer> types = new ArrayList<Integer>();
+        for (int i = 0; i < locals.length; i++) {
+            types.add(locals[i]);
+            if (locals[i] == DOUBLE)
+                i++;
+        }
+        while (!types.isEmpty() && types.get(types.size() - 1) == TOP)
+            types.remove(types.size() - 1);
+        return types;
+    }
+
+    private static void frame(Bytes b, int offsetDelta, Frame previous, Frame f) {
+        ArrayList<Integer> locals = verificationTypes(f.locals);
+        boolean sameLocals = locals.equals(verificationTypes(previous.locals));
+        if (sameLocals && f.stack.length == 0) {
+            if (offsetDelta < 64) {
+                b.u1(offsetDelta);              // same_frame
+            } else {
+                b.u1(251);                      // same_frame_extended
+                b.u2(offsetDelta);
+            }
+        } else if (sameLocals && f.stack.length == 1) {
+            if (offsetDelta < 64) {
+                b.u1(64 + offsetDelta);         // same_locals_1_stack_item_frame
+            } else {
+                b.u1(247);
+                b.u2(offsetDelta);
+            }
+            type(b, f.stack[0]);
+        } else {
+            b.u1(255);                          // full_frame
+            b.u2(offsetDelta);
+            b.u2(locals.size());
+            for (int type : locals) {
+                type(b, type);
+            }
+            b.u2(f.stack.length);
+            for (int type : f.stack) {
+                type(b, type);
+            }
+        }
+    }
+
+    private static void type(Bytes b, int type) {
+        // objects are only in the boilerplate, which has no jumps
+        if (type == OBJECT)
+            throw new IllegalStateException("object in a stack map frame");
+        b.u1(type);
+    }
+}
@@ -1,117 +1,247 @@
-import java.nio.file.*
-
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 
-import CPP.PrettyPrinter;
 import CPP.Absyn.*;
 
-public class CodeGenerator {
+/**
+ * Compiles a type checked program to the class filename, a static method for
+ * every function and a main method running the main function. The class
+ * file is written straight away, see {@link ClassFile}, there is no Jasmin
+ * to run afterwards.
+ *
+ * Declared variables start out as zero, so that the verifier sees every
+ * local assigned before it is read.
+ */
+public class CodeGenerator implements Opcodes {
+    // functions of the Runtime class, the others are the program's own
+    private static final List<String> RUNTIME = Arrays.asList("printInt", "printDouble", "readInt", "readDouble");
+
     Env env;
     String filename;
-    PrintWriter file;
-    LinkedList<String> emitBuffer = new LinkedList<String>();
+    ClassFile classFile;
+    LinkedList<Instruction> emitBuffer = new LinkedList<Instruction>();
     int maxLocals=0;
     int maxStackSize=0;
-    boolean returnStm = false;
+    // compile by way of SSA form instead of straight from the tree
+    boolean ssa;
+    int labels=0;
+
+    public CodeGenerator(Env env, String filename) {
+        this(env, filename, false);
+    }
 
-    public CodeGenerator(Env env) {
+    public CodeGenerator(Env env, String filename, boolean ssa) {
         this.env = env;
+        this.filename = filename;
+        this.ssa = ssa;
     }
 
-    private void emit(String s) {
-        // store temp until stack calculations done
-        emitBuffer.add(s);
+    private void emit(Instruction i) {
+        // store temp until the function is done
+        emitBuffer.add(i);
     }
 
-    private void functionDone(String fnName) {
-        file.write("");
-        file.write(".method public static" + fnName);
-        if(maxLocals > 0)
-            file.write("  .limit locals " + maxLocals);
-        if(maxStackSize > 0)
-            file.write("  .limit stack " + maxStackSize);
+    private void emitLabel(Label l) {
+        emitBuffer.add(Instruction.label(l));
+    }
 
-        // flush buffer
-        for(String s:emitBuffer) {
-            file.write(s);
-        }
+    private Label newLabel() {
+        return new Label("L" + labels++);
+    }
 
-        file.write("");
-        file.write(".end method");
+    private void functionDone(int access, String fnName, String descriptor) {
+        LinkedList<Instruction> code = new Peephole().optimize(emitBuffer);
+        maxStackSize = maxStack(code);
+        classFile.method(access, fnName, descriptor, code, maxStackSize, maxLocals);
         emitBuffer.clear();
         maxLocals=0;
         maxStackSize=0;
-        file.flush();
+    }
+
+    // the height of the stack before every instruction follows from the one
+    // before it and from the jumps to it, and has to be the same on all paths
+    private static int maxStack(List<Instruction> instructions) {
+        Instruction[] code = instructions.toArray(new Instruction[instructions.size()]);
+        HashMap<Label,Integer> labels = new HashMap<Label,Integer>();
+        for(int i = 0; i < code.length; i++) {
+            if(code[i].opcode == LABEL)
+                labels.put(code[i].label, i);
+        }
+
+        int[] heights = new int[code.length];
+        Arrays.fill(heights, -1);
+        heights[0] = 0;
+        int max = 0;
+        ArrayDeque<Integer> work = new ArrayDeque<Integer>();
+        work.add(0);
+        while(!work.isEmpty()) {
+            int i = work.poll();
+            int height = heights[i] + code[i].stackEffect();
+            max = Math.max(max, height);
+            if(code[i].isJump())
+                flow(heights, work, labels.get(code[i].label), height);
+            if(!code[i].endsBlock() && i + 1 < code.length)
+                flow(heights, work, i + 1, height);
+        }
+        return max;
+    }
+
+    private static void flow(int[] heights, ArrayDeque<Integer> work, int to, int height) {
+        if(heights[to] == -1) {
+            heights[to] = height;
+            work.add(to);
+        } else if(heights[to] != height) {
+            throw new IllegalStateException("stack heights " + heights[to] + " and " + height + " meet");
+        }
     }
 
     private void startEmiting() {
-        // open file
-        file = new PrintWriter(new FileWriter(filename+".j"));
-
-	    // header
-        file.write(".class public "+filename);
-        file.write(".super java/lang/Object");
-        file.write("");
-        file.write(".method public static main([Ljava/lang/String;)V");
-        file.write("");
-        file.write(".method public <init>()V");
-        file.write("aload_0");
-        file.write("invokespecial java/lang/Object/<init>()V");
-        file.write("return");
-        file.write(".end method");
-        file.write(".method public static main([Ljava/lang/String;)V");
-        file.write(".limit locals 1");
-        file.write("invokestatic good03/main()I");
-        file.write("pop");
-        file.write("return");
-        file.write(".end method");
-        file.write(";;########################");
-        file.write(";;# end boilerplate code #");
-        file.write(";;########################");
-    }
-
-    private void stopEmiting() {
-        file.close();
+        classFile = new ClassFile(filename);
+
+        emit(Instruction.local(ALOAD, 0));
+        emit(Instruction.invoke(INVOKESPECIAL, "java/lang/Object/<init>()V"));
+        emit(Instruction.op(RETURN));
+        maxLocals = 1;
+        functionDone(ClassFile.ACC_PUBLIC, "<init>", "()V");
+
+        emit(Instruction.invoke(INVOKESTATIC, filename + "/main()I"));
+        emit(Instruction.op(POP));
+        emit(Instruction.op(RETURN));
+        maxLocals = 1;
+        functionDone(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, "main", "([Ljava/lang/String;)V");
+    }
+
+    private void stopEmiting() throws IOException {
+        Files.write(Paths.get(filename + ".class"), classFile.toByteArray());
     }
 
     private String jvmFunType(FunType ft) {
-        String str="";
-        return str;
-     }
+        StringBuilder str = new StringBuilder("(");
+        for(Type t:ft.intyps) {
+            str.append(jvmType(t));
+        }
+        return str.append(")").append(jvmType(ft.outtyp)).toString();
+    }
 
-     private String jvmType(FunType ft) {
-        String str="";
-        return str;
-     }
+    private String jvmType(Type t) {
+        if(t instanceof Type_int) return "I";
+        if(t instanceof Type_double) return "D";
+        if(t instanceof Type_bool) return "Z";
+        return "V";
+    }
 
-    private Env env;
+    private String javaRef(String fnName) {
+        return (RUNTIME.contains(fnName) ? "Runtime" : filename) + "/" + fnName;
+    }
 
-    public void generateCode(Program p) {
-        // TODO call jasmin afterwards
-        PDefs defs = (PDefs) p;
+    public void generateCode(Program p) throws IOException {
+        PDefs defs = (PDefs) new Optimizer().optimize(new Inliner().inline(p));
+        startEmiting();
+
+        // the SSA form would fold the zero of a variable read before it is
+        // assigned into the code around it, the tree keeps it a variable
+        if(ssa && new DefiniteAssignment(defs).isSafe("main")) {
+            for(SSALowering.Method m:new SSALowering(filename).compile(defs)) {
+                emitBuffer.addAll(m.code);
+                maxLocals = m.maxLocals;
+                functionDone(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, m.name, m.descriptor);
+            }
+            stopEmiting();
+            return;
+        }
 
         LinkedList<Type> args = new LinkedList<Type>();
+        env.updateFun("readInt", new FunType(new LinkedList<Type>(args), new Type_int()));
+        env.updateFun("readDouble", new FunType(new LinkedList<Type>(args), new Type_double()));
         args.add(new Type_int());
-        env.updateFun("printInt", new FunType("Runtime/printInt", args, new Type_void()));
+        env.updateFun("printInt", new FunType(new LinkedList<Type>(args), new Type_void()));
+        args.clear();
+        args.add(new Type_double());
+        env.updateFun("printDouble", new FunType(new LinkedList<Type>(args), new Type_void()));
+
+        for(Def f:defs.listdef_) {
+            DFun df = (DFun)f;
+            LinkedList<Type> funArgs = new LinkedList<Type>();
+            for(Arg arg:df.listarg_) {
+                funArgs.add(((ADecl)arg).type_);
+            }
+            env.updateFun(df.id_, new FunType(funArgs, df.type_));
+        }
 
-        //TODO user def functions;
         for(Def f:defs.listdef_) {
             DFun df = (DFun)f;
 
-            // skip creating local block and adding fun args
+            // arguments come first in the locals
+            env.newBlock();
+            for(Arg arg:df.listarg_) {
+                ADecl decl = (ADecl)arg;
+                env.updateVar(decl.id_, decl.type_);
+            }
             generateStms(df.liststm_);
-
-            // take care of main fun special return
-            if(!returnStm && df.id_=="main") {
-                emit("iconst_0");
-                emit("ireturn");
+            env.exitBlock();
+
+            // falling off the end of a function, dropped if it can't happen
+            if(df.type_ instanceof Type_double) {
+                emit(Instruction.ldc2(0.0));
+                emit(Instruction.op(DRETURN));
+            } else if(df.type_ instanceof Type_void) {
+                emit(Instruction.op(RETURN));
+            } else {
+                emit(Instruction.push(LDC, 0));
+                emit(Instruction.op(IRETURN));
             }
 
-            functionDone(df.id_);
+            maxLocals = env.maxLocals();
+            functionDone(ClassFile.ACC_PUBLIC | ClassFile.ACC_STATIC, df.id_, jvmFunType(env.lookupFun(df.id_)));
         }
+        stopEmiting();
     }
 
-    private void generateStms(ListStms stms) {
+    /* variables */
+
+    private static int size(Type t) {
+        if(t instanceof Type_double) return 2;
+        if(t instanceof Type_void) return 0;
+        return 1;
+    }
+
+    private void load(String id, Type t) {
+        if(t instanceof Type_double)
+            emit(Instruction.local(DLOAD, env.lookupLocal(id)));
+        else
+            emit(Instruction.local(ILOAD, env.lookupLocal(id)));
+    }
+
+    private void store(String id, Type t) {
+        if(t instanceof Type_double)
+            emit(Instruction.local(DSTORE, env.lookupLocal(id)));
+        else
+            emit(Instruction.local(ISTORE, env.lookupLocal(id)));
+    }
+
+    private void dup(Type t) {
+        if(t instanceof Type_double)
+            emit(Instruction.op(DUP2));
+        else
+            emit(Instruction.op(DUP));
+    }
+
+    private void pop(Type t) {
+        if(t instanceof Type_double)
+            emit(Instruction.op(POP2));
+        else if(!(t instanceof Type_void))
+            emit(Instruction.op(POP));
+    }
+
+    /* statements */
+
+    private void generateStms(ListStm stms) {
         for(Stm stm:stms) {
             generateStm(stm);
         }
@@ -121,72 +251,281 @@ public class CodeGenerator {
         stm.accept(new StmGenerator(), null);
     }
 
+    // a statement in a context of its own, like the branches of if and the body of while
+    private void generateScoped(Stm stm) {
+        env.newBlock();
+        generateStm(stm);
+        env.exitBlock();
+    }
+
+    private Type generateExp(Exp e) {
+        return e.accept(new ExpGenerator(), null);
+    }
+
     private class StmGenerator implements Stm.Visitor<Void,Void> {
-        public Void visit(SExp s, Void _) {
-            generate(s.exp_);
-            emit("pop"); // no double (never)
+        public Void visit(SExp s, Void v) {
+            pop(generateExp(s.exp_));
+            return null;
+        }
+
+        public Void visit(SDecls s, Void v) {
+            for(String id:s.listid_) {
+                env.updateVar(id, s.type_);
+                if(s.type_ instanceof Type_double)
+                    emit(Instruction.ldc2(0.0));
+                else
+                    emit(Instruction.push(LDC, 0));
+                store(id, s.type_);
+            }
+            return null;
+        }
 
+        public Void visit(SInit s, Void v) {
+            generateExp(s.exp_);
+            env.updateVar(s.id_, s.type_);
+            store(s.id_, s.type_);
+            return null;
+        }
+
+        public Void visit(SReturn s, Void v) {
+            Type t = generateExp(s.exp_);
+            if(t instanceof Type_double)
+                emit(Instruction.op(DRETURN));
+            else if(t instanceof Type_void)
+                emit(Instruction.op(RETURN));
+            else
+                emit(Instruction.op(IRETURN));
+            return null;
+        }
+
+        public Void visit(SWhile s, Void v) {
+            // the test at the bottom, so that an iteration takes one jump
+            Label body = newLabel(), test = newLabel();
+            emit(Instruction.jump(GOTO, test));
+            emitLabel(body);
+            generateScoped(s.stm_);
+            emitLabel(test);
+            generateCond(s.exp_, true, body);
+            return null;
+        }
+
+        public Void visit(SBlock s, Void v) {
+            env.newBlock();
+            generateStms(s.liststm_);
+            env.exitBlock();
+            return null;
+        }
+
+        public Void visit(SIfElse s, Void v) {
+            Label otherwise = newLabel(), end = newLabel();
+            generateCond(s.exp_, false, otherwise);
+            generateScoped(s.stm_1);
+            emit(Instruction.jump(GOTO, end));
+            emitLabel(otherwise);
+            generateScoped(s.stm_2);
+            emitLabel(end);
             return null;
         }
     }
 
-    private class ExpGenerator implements Exp.Visitor<Void,Void> {
+    // generates the code of an expression and returns its type
+    private class ExpGenerator implements Exp.Visitor<Type,Void> {
         // basic
-        public Type visit(ETrue e, Void v) { emit(""); return null; }
-        public Type visit(EFalse e, Void v) { emit(""); return null; }
-        public Type visit(EInt e, Void v) { emit("ldc " + e.integer_); return null; }
-        public Type visit(EDouble e, Void v) { throw new RuntimeExcemit(""); return null; }
+        public Type visit(ETrue e, Void v) { emit(Instruction.push(LDC, 1)); return new Type_bool(); }
+        public Type visit(EFalse e, Void v) { emit(Instruction.push(LDC, 0)); return new Type_bool(); }
+        public Type visit(EInt e, Void v) { emit(Instruction.push(LDC, e.integer_)); return new Type_int(); }
+        public Type visit(EDouble e, Void v) { emit(Instruction.ldc2(e.double_)); return new Type_double(); }
 
         // var, function
-        public Type visit(EId e, Void v) { return env.lookupVar(e.id_); }
-        //TODO parameter types
+        public Type visit(EId e, Void v) {
+            Type t = env.lookupVar(e.id_);
+            load(e.id_, t);
+            return t;
+        }
+
         public Type visit(EApp e, Void v) {
-            for(Exp arg: e.listexp_) {
+            for(Exp arg:e.listexp_) {
                 generateExp(arg);
             }
             FunType ft = env.lookupFun(e.id_);
-            emit("invokestatic" + ft.javaRef + jvmFunType(ft));
+            emit(Instruction.invoke(INVOKESTATIC, javaRef(e.id_) + jvmFunType(ft)));
+            return ft.outtyp;
+        }
+
+        //++ -- (implicit variable via parser)
+        public Type visit(EPostIncr e, Void v) { return increment(e.exp_, 1, false); }
+        public Type visit(EPostDecr e, Void v) { return increment(e.exp_, -1, false); }
+        public Type visit(EPreIncr e, Void v) { return increment(e.exp_, 1, true); }
+        public Type visit(EPreDecr e, Void v) { return increment(e.exp_, -1, true); }
 
-            switch(typeCode(ft.outtyp)) {
-                case VOID:
-                    emit("bipush 0"); break;
+        // * / + - assignment(implicit variable via parser)
+        public Type visit(ETimes e, Void v) { return arithmetic(e.exp_1, e.exp_2, IMUL, DMUL); }
+        public Type visit(EDiv e, Void v) { return arithmetic(e.exp_1, e.exp_2, IDIV, DDIV); }
+        public Type visit(EPlus e, Void v) { return arithmetic(e.exp_1, e.exp_2, IADD, DADD); }
+        public Type visit(EMinus e, Void v) { return arithmetic(e.exp_1, e.exp_2, ISUB, DSUB); }
+
+        public Type visit(EAss e, Void v) {
+            String id = ((EId)e.exp_1).id_;
+            Type t = generateExp(e.exp_2);
+            dup(t);
+            store(id, t);
+            return t;
+        }
+
+        // < > >= ... && ||
+        public Type visit(ELt e, Void v) { return condValue(e); }
+        public Type visit(EGt e, Void v) { return condValue(e); }
+        public Type visit(ELtEq e, Void v) { return condValue(e); }
+        public Type visit(EGtEq e, Void v) { return condValue(e); }
+        public Type visit(EEq e, Void v) { return condValue(e); }
+        public Type visit(ENEq e, Void v) { return condValue(e); }
+        public Type visit(EAnd e, Void v) { return condValue(e); }
+        public Type visit(EOr e, Void v) { return condValue(e); }
+
+        private Type increment(Exp e, int delta, boolean pre) {
+            String id = ((EId)e).id_;
+            Type t = env.lookupVar(id);
+            load(id, t);
+            if(!pre)
+                dup(t);
+            if(t instanceof Type_double) {
+                emit(Instruction.ldc2(1.0));
+                emit(Instruction.op(delta > 0 ? DADD : DSUB));
+            } else {
+                emit(Instruction.push(LDC, 1));
+                emit(Instruction.op(delta > 0 ? IADD : ISUB));
             }
+            if(pre)
+                dup(t);
+            store(id, t);
+            return t;
+        }
+
+        private Type arithmetic(Exp e1, Exp e2, int intOp, int doubleOp) {
+            Type t = generateExp(e1);
+            generateExp(e2);
+            if(t instanceof Type_double)
+                emit(Instruction.op(doubleOp));
+            else
+                emit(Instruction.op(intOp));
+            return t;
+        }
+
+        // a condition as a value, 1 if it jumps and 0 otherwise
+        private Type condValue(Exp e) {
+            Label yes = newLabel(), done = newLabel();
+            generateCond(e, true, yes);
+            emit(Instruction.push(LDC, 0));
+            emit(Instruction.jump(GOTO, done));
+            emitLabel(yes);
+            emit(Instruction.push(LDC, 1));
+            emitLabel(done);
+            return new Type_bool();
+        }
+    }
+
+    /* conditions */
+
+    // jumps to target if e is when, and falls through otherwise
+    private void generateCond(Exp e, boolean when, Label target) {
+        e.accept(new CondGenerator(when), target);
+    }
+
+    // comparisons in the order < > <= >= == !=, and their negations
+    private static final int[] INT_JUMP = { IF_ICMPLT, IF_ICMPGT, IF_ICMPLE, IF_ICMPGE, IF_ICMPEQ, IF_ICMPNE };
+    private static final int[] INT_JUMP_NOT = { IF_ICMPGE, IF_ICMPLE, IF_ICMPGT, IF_ICMPLT, IF_ICMPNE, IF_ICMPEQ };
+    private static final int[] DOUBLE_JUMP = { IFLT, IFGT, IFLE, IFGE, IFEQ, IFNE };
+    private static final int[] DOUBLE_JUMP_NOT = { IFGE, IFLE, IFGT, IFLT, IFNE, IFEQ };
+    private static final int LT = 0, GT = 1, LE = 2, GE = 3, EQ = 4, NE = 5;
+
+    // compiles conditions to jumps, so that their values are never pushed
+    private class CondGenerator implements Exp.Visitor<Void,Label> {
+        private final boolean when;
+
+        CondGenerator(boolean when) {
+            this.when = when;
+        }
+
+        public Void visit(ETrue e, Label target) {
+            if(when)
+                emit(Instruction.jump(GOTO, target));
             return null;
         }
 
-        //++ -- (implicit variable via parser)
-        public Type visit(EPostIncr e, Void v) { return numberType(e.exp_, env, "post++"); }
-        public Type visit(EPostDecr e, Void v) { return numberType(e.exp_, env, "post--"); }
-        public Type visit(EPreIncr e, Void v) { return numberType(e.exp_, env, "++pre"); }
-        public Type visit(EPreDecr e, Void v) { return numberType(e.exp_, env, "--pre"); }
+        public Void visit(EFalse e, Label target) {
+            if(!when)
+                emit(Instruction.jump(GOTO, target));
+            return null;
+        }
 
-        // * / + - assignment(implicit variable via parser)
-        public Type visit(ETimes e, Void v) { return intDoubleType(e.exp_1, e.exp_2, env, "*"); }
-        public Type visit(EDiv e, Void v) { return intDoubleType(e.exp_1, e.exp_2, env, "/"); }
+        // bools computed some other way are tested
+        public Void visit(EInt e, Label target) { return test(e, target); }
+        public Void visit(EDouble e, Label target) { return test(e, target); }
+        public Void visit(EId e, Label target) { return test(e, target); }
+        public Void visit(EApp e, Label target) { return test(e, target); }
+        public Void visit(EPostIncr e, Label target) { return test(e, target); }
+        public Void visit(EPostDecr e, Label target) { return test(e, target); }
+        public Void visit(EPreIncr e, Label target) { return test(e, target); }
+        public Void visit(EPreDecr e, Label target) { return test(e, target); }
+        public Void visit(ETimes e, Label target) { return test(e, target); }
+        public Void visit(EDiv e, Label target) { return test(e, target); }
+        public Void visit(EPlus e, Label target) { return test(e, target); }
+        public Void visit(EMinus e, Label target) { return test(e, target); }
+        public Void visit(EAss e, Label target) { return test(e, target); }
+
+        public Void visit(ELt e, Label target) { return comparison(e.exp_1, e.exp_2, LT, target); }
+        public Void visit(EGt e, Label target) { return comparison(e.exp_1, e.exp_2, GT, target); }
+        public Void visit(ELtEq e, Label target) { return comparison(e.exp_1, e.exp_2, LE, target); }
+        public Void visit(EGtEq e, Label target) { return comparison(e.exp_1, e.exp_2, GE, target); }
+        public Void visit(EEq e, Label target) { return comparison(e.exp_1, e.exp_2, EQ, target); }
+        public Void visit(ENEq e, Label target) { return comparison(e.exp_1, e.exp_2, NE, target); }
+
+        public Void visit(EAnd e, Label target) {
+            if(when) {
+                // both true jump, the first one false skips the second
+                Label skip = newLabel();
+                generateCond(e.exp_1, false, skip);
+                generateCond(e.exp_2, true, target);
+                emitLabel(skip);
+            } else {
+                generateCond(e.exp_1, false, target);
+                generateCond(e.exp_2, false, target);
+            }
+            return null;
+        }
 
-        public Type visit(EPlus e, Void v) {
-            accept(e.exp_1, e.exp_2)
-            emit("iadd");
+        public Void visit(EOr e, Label target) {
+            if(when) {
+                generateCond(e.exp_1, true, target);
+                generateCond(e.exp_2, true, target);
+            } else {
+                // both false jump, the first one true skips the second
+                Label skip = newLabel();
+                generateCond(e.exp_1, true, skip);
+                generateCond(e.exp_2, false, target);
+                emitLabel(skip);
+            }
             return null;
         }
 
-        //
-        public Type visit(EMinus e, Void v) { return intDoubleType(e.exp_1, e.exp_2, env, "-"); }
-        public Type visit(EAss e, Void v) { return sameType(e.exp_1, e.exp_2, env, "assignment"); }
+        private Void test(Exp e, Label target) {
+            generateExp(e);
+            emit(Instruction.jump(when ? IFNE : IFEQ, target));
+            return null;
+        }
 
-        // < > >= ... && ||
-        public Type visit(ELt e, Void v) { return boolType(e.exp_1, e.exp_2, env, "<"); }
-        public Type visit(EGt e, Void v) { return boolType(e.exp_1, e.exp_2, env, ">"); }
-        public Type visit(ELtEq e, Void v) { return boolType(e.exp_1, e.exp_2, env, "<="); }
-        public Type visit(EGtEq e, Void v) { return boolType(e.exp_1, e.exp_2, env, ">="); }
-        public Type visit(EEq e, Void v) { return boolType(e.exp_1, e.exp_2, env, "=="); }
-        public Type visit(ENEq e, Void v) { return boolType(e.exp_1, e.exp_2, env, "!="); }
-        public Type visit(EAnd e, Void v) { return boolType(e.exp_1, e.exp_2, env, "&&"); }
-        public Type visit(EOr e, Void v) { return boolType(e.exp_1, e.exp_2, env, "||"); }
-
-        private void accept(Exp e1, Exp e2) {
-            e1.accept(this, null);
-            e2.accept(this, null);
+        private Void comparison(Exp e1, Exp e2, int c, Label target) {
+            Type t = generateExp(e1);
+            generateExp(e2);
+            if(t instanceof Type_double) {
+                // dcmpg makes NaN greater and dcmpl less, so that < and > are false for
+                // it, and their negations true
+                emit(Instruction.op(c == LT || c == LE ? DCMPG : DCMPL));
+                emit(Instruction.jump((when ? DOUBLE_JUMP : DOUBLE_JUMP_NOT)[c], target));
+            } else {
+                emit(Instruction.jump((when ? INT_JUMP : INT_JUMP_NOT)[c], target));
+            }
+            return null;
         }
     }
 }
@@ -11,6 +11,12 @@ public class Env {
     public HashMap<String, FunType> signature = new HashMap<String, FunType>();
     // current variables
     public LinkedList<HashMap<String,Type>> contexts = new LinkedList<HashMap<String,Type>>();
+    // JVM locals of the current variables, a map per context. Variables of a
+    // context that is left give their locals to the ones declared after it.
+    public LinkedList<HashMap<String,Integer>> locals = new LinkedList<HashMap<String,Integer>>();
+    private LinkedList<Integer> firstLocals = new LinkedList<Integer>();
+    private int nextLocal = 0;
+    private int maxLocals = 0;
 
     private Env() { }
 
@@ -43,10 +49,30 @@ public class Env {
             throw new TypeException("Var "+ id +" already declared");
         } else {
             contexts.getLast().put(id, typ);
+            // doubles take two locals
+            locals.getLast().put(id, nextLocal);
+            nextLocal += typ instanceof Type_double ? 2 : 1;
+            maxLocals = Math.max(maxLocals, nextLocal);
             return this;
         }
     }
 
+    public int lookupLocal(String id) {
+        ListIterator<HashMap<String, Integer>> listIterator = locals.listIterator(locals.size());
+
+        while(listIterator.hasPrevious()) {
+            HashMap<String, Integer> context = listIterator.previous();
+            if (context.containsKey(id))
+                return context.get(id);
+        }
+        throw new TypeException("Var "+ id +" not declared in any context.");
+    }
+
+    // the locals the function needs at most, since its outermost context began
+    public int maxLocals() {
+        return maxLocals;
+    }
+
     public Env updateFun(String id, FunType funtyp) {
         if (signature.containsKey(id)) {
             throw new TypeException("Function "+ id +" already declared");
@@ -57,12 +83,21 @@ public class Env {
     }
 
     public Env newBlock() {
+        // the outermost context is a function's, whose locals start at 0
+        if (contexts.isEmpty()) {
+            nextLocal = 0;
+            maxLocals = 0;
+        }
         contexts.add(new HashMap<String,Type>());
+        locals.add(new HashMap<String,Integer>());
+        firstLocals.add(nextLocal);
         return this;
     }
 
     public Env exitBlock() {
         contexts.pollLast();
+        locals.pollLast();
+        nextLocal = firstLocals.pollLast();
         return this;
     }
 }
@@ -0,0 +1,180 @@
+/**
+ * One instruction of a method being generated, an opcode of {@link Opcodes}
+ * with its operands and the effect it has on the stack. Instructions print in
+ * the syntax of Jasmin.
+ */
+public class Instruction implements Opcodes {
+
+    public final int opcode;
+    // the local of loads, stores and iinc, the int constant of ldc, bipush and sipush
+    public final int operand;
+    // what iinc adds
+    public final int increment;
+    // the double constant of ldc2_w
+    public final double constant;
+    // the target of jumps, the label a LABEL places
+    public final Label label;
+    // the method invokes call, as owner/name(descriptor)
+    public final String method;
+
+    private Instruction(int opcode, int operand, int increment, double constant, Label label, String method) {
+        this.opcode = opcode;
+        this.operand = operand;
+        this.increment = increment;
+        this.constant = constant;
+        this.label = label;
+        this.method = method;
+    }
+
+    // an instruction without operands
+    public static Instruction op(int opcode) {
+        return new Instruction(opcode, 0, 0, 0, null, null);
+    }
+
+    // a load or store of a local
+    public static Instruction local(int opcode, int local) {
+        return new Instruction(opcode, local, 0, 0, null, null);
+    }
+
+    // ldc, bipush or sipush of an int
+    public static Instruction push(int opcode, int value) {
+        return new Instruction(opcode, value, 0, 0, null, null);
+    }
+
+    public static Instruction ldc2(double value) {
+        return new Instruction(LDC2_W, 0, 0, value, null, null);
+    }
+
+    public static Instruction iinc(int local, int increment) {
+        return new Instruction(IINC, local, increment, 0, null, null);
+    }
+
+    public static Instruction jump(int opcode, Label target) {
+        return new Instruction(opcode, 0, 0, 0, target, null);
+    }
+
+    public static Instruction label(Label label) {
+        return new Instruction(LABEL, 0, 0, 0, label, null);
+    }
+
+    public static Instruction invoke(int opcode, String method) {
+        return new Instruction(opcode, 0, 0, 0, null, method);
+    }
+
+    // the words pushed on the stack less the words popped
+    public int stackEffect() {
+        switch (opcode) {
+            case LABEL: case IINC: case GOTO: case RETURN:
+                return 0;
+            case DCONST_0: case DCONST_1: case LDC2_W: case DLOAD: case DUP2:
+                return 2;
+            case ISTORE: case POP: case IADD: case ISUB: case IMUL: case IDIV:
+            case IFEQ: case IFNE: case IFLT: case IFGE: case IFGT: case IFLE: case IRETURN:
+                return -1;
+            case DSTORE: case POP2: case DADD: case DSUB: case DMUL: case DDIV:
+            case IF_ICMPEQ: case IF_ICMPNE: case IF_ICMPLT: case IF_ICMPGE: case IF_ICMPGT: case IF_ICMPLE: case DRETURN:
+                return -2;
+            case DCMPL: case DCMPG:
+                return -3;
+            case INVOKESPECIAL: case INVOKESTATIC: {
+                int paren = method.indexOf('('), close = method.indexOf(')');
+                int effect = words(method.substring(close + 1)) - words(method.substring(paren + 1, close));
+                return opcode == INVOKESPECIAL ? effect - 1 : effect;
+            }
+        }
+        // constants, iload, aload and dup
+        return 1;
+    }
+
+    // the words values of the types in a descriptor take
+    private static int words(String types) {
+        int words = 0;
+        for (int i = 0; i < types.length(); i++) {
+            char c = types.charAt(i);
+            if (c == 'V')
+                continue;
+            words += c == 'D' || c == 'J' ? 2 : 1;
+            while (types.charAt(i) == '[')
+                i++;
+            if (types.charAt(i) == 'L')
+                i = types.indexOf(';', i);
+        }
+        return words;
+    }
+
+    public boolean isJump() {
+        return opcode >= IFEQ && opcode <= GOTO;
+    }
+
+    // execution never continues with the next instruction
+    public boolean endsBlock() {
+        return opcode == GOTO || (opcode >= IRETURN && opcode <= RETURN);
+    }
+
+    public String toString() {
+        switch (opcode) {
+            case LABEL: return label + ":";
+            case ILOAD: case DLOAD: case ALOAD: case ISTORE: case DSTORE:
+            case LDC: case BIPUSH: case SIPUSH:
+                return NAMES[opcode] + " " + operand;
+            case LDC2_W: return NAMES[opcode] + " " + constant;
+            case IINC: return NAMES[opcode] + " " + operand + " " + increment;
+            case INVOKESPECIAL: case INVOKESTATIC: return NAMES[opcode] + " " + method;
+        }
+        if (isJump())
+            return NAMES[opcode] + " " + label;
+        return NAMES[opcode];
+    }
+
+    private static final String[] NAMES = new String[256];
+    static {
+        for (int i = ICONST_0; i <= ICONST_5; i++) {
+            NAMES[i] = "iconst_" + (i - ICONST_0);
+        }
+        NAMES[ICONST_M1] = "iconst_m1";
+        NAMES[DCONST_0] = "dconst_0";
+        NAMES[DCONST_1] = "dconst_1";
+        NAMES[BIPUSH] = "bipush";
+        NAMES[SIPUSH] = "sipush";
+        NAMES[LDC] = "ldc";
+        NAMES[LDC2_W] = "ldc2_w";
+        NAMES[ILOAD] = "iload";
+        NAMES[DLOAD] = "dload";
+        NAMES[ALOAD] = "aload";
+        NAMES[ISTORE] = "istore";
+        NAMES[DSTORE] = "dstore";
+        NAMES[POP] = "pop";
+        NAMES[POP2] = "pop2";
+        NAMES[DUP] = "dup";
+        NAMES[DUP2] = "dup2";
+        NAMES[IADD] = "iadd";
+        NAMES[DADD] = "dadd";
+        NAMES[ISUB] = "isub";
+        NAMES[DSUB] = "dsub";
+        NAMES[IMUL] = "imul";
+        NAMES[DMUL] = "dmul";
+        NAMES[IDIV] = "idiv";
+        NAMES[DDIV] = "ddiv";
+        NAMES[IINC] = "iinc";
+        NAMES[DCMPL] = "dcmpl";
+        NAMES[DCMPG] = "dcmpg";
+        NAMES[IFEQ] = "ifeq";
+        NAMES[IFNE] = "ifne";
+        NAMES[IFLT] = "iflt";
+        NAMES[IFGE] = "ifge";
+        NAMES[IFGT] = "ifgt";
+        NAMES[IFLE] = "ifle";
+        NAMES[IF_ICMPEQ] = "if_icmpeq";
+        NAMES[IF_ICMPNE] = "if_icmpne";
+        NAMES[IF_ICMPLT] = "if_icmplt";
+        NAMES[IF_ICMPGE] = "if_icmpge";
+        NAMES[IF_ICMPGT] = "if_icmpgt";
+        NAMES[IF_ICMPLE] = "if_icmple";
+        NAMES[GOTO] = "goto";
+        NAMES[IRETURN] = "ireturn";
+        NAMES[DRETURN] = "dreturn";
+        NAMES[RETURN] = "return";
+        NAMES[INVOKESPECIAL] = "invokespecial";
+        NAMES[INVOKESTATIC] = "invokestatic";
+    }
+}
@@ -0,0 +1,12 @@
+/** A position in the code of a method, where jumps go to. */
+public class Label {
+    private final String name;
+
+    public Label(String name) {
+        this.name = name;
+    }
+
+    public String toString() {
+        return name;
+    }
+}
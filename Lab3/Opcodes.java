@@ -0,0 +1,62 @@
+/**
+ * The JVM instructions the code generators emit, by their opcodes. Loads,
+ * stores and ldc are encoded in their shortest form by the {@link ClassFile},
+ * LABEL marks a position in the code and isn't encoded at all.
+ */
+public interface Opcodes {
+    int LABEL = -1;
+
+    int ICONST_M1 = 0x02;
+    int ICONST_0 = 0x03;
+    int ICONST_1 = 0x04;
+    int ICONST_5 = 0x08;
+    int DCONST_0 = 0x0e;
+    int DCONST_1 = 0x0f;
+    int BIPUSH = 0x10;
+    int SIPUSH = 0x11;
+    int LDC = 0x12;
+    int LDC2_W = 0x14;
+
+    int ILOAD = 0x15;
+    int DLOAD = 0x18;
+    int ALOAD = 0x19;
+    int ISTORE = 0x36;
+    int DSTORE = 0x39;
+
+    int POP = 0x57;
+    int POP2 = 0x58;
+    int DUP = 0x59;
+    int DUP2 = 0x5c;
+
+    int IADD = 0x60;
+    int DADD = 0x63;
+    int ISUB = 0x64;
+    int DSUB = 0x67;
+    int IMUL = 0x68;
+    int DMUL = 0x6b;
+    int IDIV = 0x6c;
+    int DDIV = 0x6f;
+    int IINC = 0x84;
+
+    int DCMPL = 0x97;
+    int DCMPG = 0x98;
+    int IFEQ = 0x99;
+    int IFNE = 0x9a;
+    int IFLT = 0x9b;
+    int IFGE = 0x9c;
+    int IFGT = 0x9d;
+    int IFLE = 0x9e;
+    int IF_ICMPEQ = 0x9f;
+    int IF_ICMPNE = 0xa0;
+    int IF_ICMPLT = 0xa1;
+    int IF_ICMPGE = 0xa2;
+    int IF_ICMPGT = 0xa3;
+    int IF_ICMPLE = 0xa4;
+    int GOTO = 0xa7;
+
+    int IRETURN = 0xac;
+    int DRETURN = 0xaf;
+    int RETURN = 0xb1;
+    int INVOKESPECIAL = 0xb7;
+    int INVOKESTATIC = 0xb8;
+}
@@ -0,0 +1,211 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Improves the instructions of a method by looking at a few of them at a
+ * time, until nothing changes anymore:
+ *
+ *  - int and double constants are pushed by the shortest instruction,
+ *  - adding a constant to an int local becomes iinc,
+ *  - values pushed and popped right away aren't pushed, a dup before a
+ *    store and a pop isn't needed, a load right after a store to the same
+ *    local becomes a dup before the store,
+ *  - jumps to a goto jump to where that one goes, a goto to the next
+ *    instruction goes away, and so do labels nothing jumps to.
+ *
+ * Patterns never reach over a label, where execution could come from elsewhere.
+ */
+public class Peephole implements Opcodes {
+
+    private ArrayList<Instruction> code;
+
+    public LinkedList<Instruction> optimize(List<Instruction> instructions) {
+        code = new ArrayList<Instruction>(instructions);
+        boolean changed = true;
+        while (changed) {
+            changed = threadJumps();
+            for (int i = 0; i < code.size(); i++) {
+                changed |= rewrite(i);
+            }
+        }
+        return new LinkedList<Instruction>(code);
+    }
+
+    /* jumps */
+
+    private boolean threadJumps() {
+        HashMap<Label, Integer> labels = new HashMap<Label, Integer>();
+        for (int i = 0; i < code.size(); i++) {
+            if (code.get(i).opcode == LABEL)
+                labels.put(code.get(i).label, i);
+        }
+
+        boolean changed = false;
+        HashSet<Label> used = new HashSet<Label>();
+        for (int i = 0; i < code.size(); i++) {
+            Instruction in = code.get(i);
+            if (!in.isJump())
+                continue;
+            Label target = destination(in.label, labels);
+            if (target != in.label) {
+                code.set(i, Instruction.jump(in.opcode, target));
+                changed = true;
+            }
+            used.add(target);
+        }
+
+        ArrayList<Instruction> kept = new ArrayList<Instruction>();
+        for (int i = 0; i < code.size(); i++) {
+            Instruction in = code.get(i);
+            if (in.opcode == LABEL && !used.contains(in.label))
+                continue;
+            // a goto to the labels right after it
+            if (in.opcode == GOTO && labels.get(in.label) > i && onlyLabels(i + 1, labels.get(in.label)))
+                continue;
+            kept.add(in);
+        }
+        changed |= kept.size() != code.size();
+        code = kept;
+        return changed;
+    }
+
+    // where a jump to l ends up, following gotos but not around in circles
+    private Label destination(Label l, HashMap<Label, Integer> labels) {
+        HashSet<Label> seen = new HashSet<Label>();
+        while (seen.add(l)) {
+            int i = labels.get(l);
+            while (code.get(i).opcode == LABEL)
+                i++;
+            if (code.get(i).opcode != GOTO)
+                break;
+            l = code.get(i).label;
+        }
+        return l;
+    }
+
+    private boolean onlyLabels(int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (code.get(i).opcode != LABEL)
+                return false;
+        }
+        return true;
+    }
+
+    /* patterns */
+
+    // replaces the n instructions at i
+    private boolean replace(int i, int n, Instruction... by) {
+        for (int k = 0; k < n; k++) {
+            code.remove(i);
+        }
+        for (int k = by.length - 1; k >= 0; k--) {
+            code.add(i, by[k]);
+        }
+        return true;
+    }
+
+    private int opcode(int i) {
+        return i < code.size() ? code.get(i).opcode : LABEL;
+    }
+
+    // whether the instructions at i have the opcodes, LDC standing for any int constant
+    private boolean matches(int i, int... opcodes) {
+        for (int k = 0; k < opcodes.length; k++) {
+            if (opcodes[k] == LDC ? !isIntConstant(i + k) : opcode(i + k) != opcodes[k])
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isIntConstant(int i) {
+        int op = opcode(i);
+        return (op >= ICONST_M1 && op <= ICONST_5) || op == BIPUSH || op == SIPUSH || op == LDC;
+    }
+
+    private int intConstant(int i) {
+        Instruction in = code.get(i);
+        return in.opcode <= ICONST_5 ? in.opcode - ICONST_0 : in.operand;
+    }
+
+    private boolean sameLocal(int i, int j) {
+        return code.get(i).operand == code.get(j).operand;
+    }
+
+    // the value iinc adds in place of iadd or isub of the constant at i, if it fits
+    private Integer increment(int i, int op) {
+        int c = intConstant(i);
+        int increment = op == IADD ? c : -c;
+        if (increment != (short)increment || (op == ISUB && c == Integer.MIN_VALUE))
+            return null;
+        return increment;
+    }
+
+    private boolean rewrite(int i) {
+        Instruction in = code.get(i);
+
+        // shortest constants
+        if (in.opcode == LDC || in.opcode == BIPUSH || in.opcode == SIPUSH) {
+            int c = in.operand;
+            int shortest = c >= -1 && c <= 5 ? ICONST_0 + c
+                : c == (byte)c ? BIPUSH : c == (short)c ? SIPUSH : LDC;
+            if (shortest == in.opcode)
+                return false;
+            return replace(i, 1, shortest <= ICONST_5 ? Instruction.op(shortest) : Instruction.push(shortest, c));
+        }
+        if (in.opcode == LDC2_W) {
+            if (Double.doubleToRawLongBits(in.constant) == 0L)
+                return replace(i, 1, Instruction.op(DCONST_0));
+            if (in.constant == 1.0)
+                return replace(i, 1, Instruction.op(DCONST_1));
+            return false;
+        }
+
+        // x = x + c as a statement, x++ as a value, ++x as a value, and x++ as a statement
+        if (matches(i, ILOAD, LDC, IADD, ISTORE) || matches(i, ILOAD, LDC, ISUB, ISTORE)) {
+            Integer increment = increment(i + 1, opcode(i + 2));
+            if (sameLocal(i, i + 3) && increment != null)
+                return replace(i, 4, Instruction.iinc(in.operand, increment));
+        }
+        if (matches(i, ILOAD, DUP, LDC, IADD, ISTORE, POP) || matches(i, ILOAD, DUP, LDC, ISUB, ISTORE, POP)) {
+            Integer increment = increment(i + 2, opcode(i + 3));
+            if (sameLocal(i, i + 4) && increment != null)
+                return replace(i, 6, Instruction.iinc(in.operand, increment));
+        }
+        if (matches(i, ILOAD, DUP, LDC, IADD, ISTORE) || matches(i, ILOAD, DUP, LDC, ISUB, ISTORE)) {
+            Integer increment = increment(i + 2, opcode(i + 3));
+            if (sameLocal(i, i + 4) && increment != null)
+                return replace(i, 5, in, Instruction.iinc(in.operand, increment));
+        }
+        if (matches(i, ILOAD, LDC, IADD, DUP, ISTORE) || matches(i, ILOAD, LDC, ISUB, DUP, ISTORE)) {
+            Integer increment = increment(i + 1, opcode(i + 2));
+            if (sameLocal(i, i + 4) && increment != null)
+                return replace(i, 5, Instruction.iinc(in.operand, increment), in);
+        }
+
+        // pushed for nothing
+        if (pushesWord(i) && opcode(i + 1) == POP)
+            return replace(i, 2);
+        if ((matches(i, DLOAD) || matches(i, DCONST_0) || matches(i, DCONST_1) || matches(i, LDC2_W) || matches(i, DUP2))
+                && opcode(i + 1) == POP2)
+            return replace(i, 2);
+        if (matches(i, DUP, ISTORE, POP) || matches(i, DUP2, DSTORE, POP2))
+            return replace(i, 3, code.get(i + 1));
+
+        // stores and loads of the same local
+        if ((matches(i, ISTORE, ILOAD) || matches(i, DSTORE, DLOAD)) && sameLocal(i, i + 1))
+            return replace(i, 2, Instruction.op(in.opcode == ISTORE ? DUP : DUP2), in);
+        if ((matches(i, ILOAD, ISTORE) || matches(i, DLOAD, DSTORE)) && sameLocal(i, i + 1))
+            return replace(i, 2);
+
+        return false;
+    }
+
+    // pushes a word, without doing anything else
+    private boolean pushesWord(int i) {
+        int op = opcode(i);
+        return isIntConstant(i) || op == ILOAD || op == DUP;
+    }
+}
@@ -0,0 +1,313 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+
+import CPP.Absyn.*;
+
+/**
+ * Compiles a type checked program to JVM instructions by way of
+ * {@link SSA} form, which the {@link SSAOptimizer} simplifies first.
+ *
+ * Values live in the registers the {@link RegisterAllocator} gives them, each
+ * file of registers laid out in the locals after the parameters, which stay
+ * in the locals the JVM passes them in. Constants are pushed where they are
+ * used. Phis take their arguments at the end of every predecessor by pushing
+ * them all and storing them in reverse, so the copies happen at once. A
+ * branch on a comparison right before it is a single compare and jump.
+ */
+public class SSALowering implements Opcodes {
+
+    public static final class Method {
+        public final String name;
+        public final String descriptor;
+        public final LinkedList<Instruction> code;
+        public final int maxLocals;
+
+        Method(String name, String descriptor, LinkedList<Instruction> code, int maxLocals) {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.code = code;
+            this.maxLocals = maxLocals;
+        }
+    }
+
+    private String className;
+    private HashMap<String, String> descriptors = new HashMap<String, String>();
+
+    // method being compiled
+    private LinkedList<Instruction> code;
+    private HashMap<SSA.Block, Label> blockLabels;
+    private int[] local;
+    private int[] uses;
+    private int nextLocal, labels;
+
+    public SSALowering(String className) {
+        this.className = className;
+    }
+
+    public ArrayList<Method> compile(Program p) {
+        ArrayList<SSA.Function> fns = new SSABuilder().build(p);
+        new SSAOptimizer().optimize(fns);
+
+        descriptors.put("printInt", "Runtime/printInt(I)V");
+        descriptors.put("printDouble", "Runtime/printDouble(D)V");
+        descriptors.put("readInt", "Runtime/readInt()I");
+        descriptors.put("readDouble", "Runtime/readDouble()D");
+        for (SSA.Function fn : fns) {
+            descriptors.put(fn.name, className + "/" + fn.name + descriptor(fn));
+        }
+
+        ArrayList<Method> methods = new ArrayList<Method>();
+        for (SSA.Function fn : fns) {
+            methods.add(compileFunction(fn));
+        }
+        return methods;
+    }
+
+    private static String descriptor(SSA.Function fn) {
+        StringBuilder s = new StringBuilder("(");
+        for (int t : fn.paramTypes) {
+            s.append(typeDescriptor(t));
+        }
+        return s.append(')').append(typeDescriptor(fn.type)).toString();
+    }
+
+    private static String typeDescriptor(int type) {
+        switch (type) {
+            case SSA.INT: return "I";
+            case SSA.DOUBLE: return "D";
+            case SSA.BOOL: return "Z";
+            default: return "V";
+        }
+    }
+
+    private Method compileFunction(SSA.Function fn) {
+        code = new LinkedList<Instruction>();
+        blockLabels = new HashMap<SSA.Block, Label>();
+        labels = 0;
+        fn.splitCriticalEdges();
+        countUses(fn);
+
+        // parameters come first, doubles take two locals
+        RegisterAllocator registers = new RegisterAllocator(fn, new HashSet<SSA.Value>());
+        int[] intLocal = new int[registers.ints], doubleLocal = new int[registers.doubles];
+        Arrays.fill(intLocal, -1);
+        Arrays.fill(doubleLocal, -1);
+        nextLocal = 0;
+        for (int i = 0; i < fn.paramTypes.length; i++) {
+            if (fn.paramTypes[i] == SSA.DOUBLE)
+                doubleLocal[i] = newLocal(SSA.DOUBLE);
+            else
+                intLocal[i] = newLocal(SSA.INT);
+        }
+        // then the other registers, as they come
+        local = new int[fn.valueCount()];
+        for (SSA.Block b : fn.blocks) {
+            for (SSA.Value v : b.phis) {
+                local[v.id] = local(v, registers.register[v.id], intLocal, doubleLocal);
+            }
+            for (SSA.Value v : b.code) {
+                int r = registers.register[v.id];
+                if (r >= 0)
+                    local[v.id] = local(v, r, intLocal, doubleLocal);
+            }
+        }
+
+        for (int i = 0; i < fn.blocks.size(); i++) {
+            SSA.Block b = fn.blocks.get(i);
+            SSA.Block next = i + 1 < fn.blocks.size() ? fn.blocks.get(i + 1) : null;
+            label(label(b));
+            SSA.Value fused = fusedComparison(b);
+            for (SSA.Value v : b.code) {
+                if (v.op != SSA.CONST && v.op != SSA.PARAM && v != fused)
+                    compileValue(v);
+            }
+            switch (b.end) {
+                case SSA.JUMP:
+                    copyPhis(b, b.succs[0]);
+                    if (b.succs[0] != next)
+                        emit(Instruction.jump(GOTO, label(b.succs[0])));
+                    break;
+                case SSA.BRANCH:
+                    // jump to the successor that doesn't follow on the opposite condition
+                    boolean negate = b.succs[0] == next;
+                    SSA.Block target = negate ? b.succs[1] : b.succs[0];
+                    if (fused != null) {
+                        jump(fused, negate, label(target));
+                    } else {
+                        load(b.operand);
+                        emit(Instruction.jump(negate ? IFEQ : IFNE, label(target)));
+                    }
+                    SSA.Block other = negate ? b.succs[0] : b.succs[1];
+                    if (other != next)
+                        emit(Instruction.jump(GOTO, label(other)));
+                    break;
+                default:
+                    if (b.operand == null) {
+                        emit(Instruction.op(RETURN));
+                    } else {
+                        load(b.operand);
+                        emit(Instruction.op(b.operand.type == SSA.DOUBLE ? DRETURN : IRETURN));
+                    }
+            }
+        }
+        return new Method(fn.name, descriptor(fn), code, nextLocal);
+    }
+
+    private void countUses(SSA.Function fn) {
+        uses = new int[fn.valueCount()];
+        for (SSA.Block b : fn.blocks) {
+            for (SSA.Value v : b.phis) {
+                for (SSA.Value arg : v.args) {
+                    uses[arg.id]++;
+                }
+            }
+            for (SSA.Value v : b.code) {
+                for (SSA.Value arg : v.args) {
+                    uses[arg.id]++;
+                }
+            }
+            if (b.operand != null)
+                uses[b.operand.id]++;
+        }
+    }
+
+    // the comparison b branches on if it is computed in b for nothing else
+    private SSA.Value fusedComparison(SSA.Block b) {
+        if (b.end != SSA.BRANCH)
+            return null;
+        SSA.Value cond = b.operand;
+        if (cond.block != b || cond.op < SSA.LT || uses[cond.id] != 1)
+            return null;
+        // its operands may have given up their locals to values after it
+        for (int i = b.code.indexOf(cond) + 1; i < b.code.size(); i++) {
+            if (!b.code.get(i).isConstant())
+                return null;
+        }
+        return cond;
+    }
+
+    /* code */
+
+    private void emit(Instruction instruction) {
+        code.add(instruction);
+    }
+
+    private void label(Label label) {
+        code.add(Instruction.label(label));
+    }
+
+    private Label label(SSA.Block b) {
+        Label l = blockLabels.get(b);
+        if (l == null) {
+            l = new Label(b.toString());
+            blockLabels.put(b, l);
+        }
+        return l;
+    }
+
+    private static int size(int type) {
+        return type == SSA.DOUBLE ? 2 : type == SSA.VOID ? 0 : 1;
+    }
+
+    private int newLocal(int type) {
+        int l = nextLocal;
+        nextLocal += size(type);
+        return l;
+    }
+
+    // the local of register r in the file of v, given the locals of both files
+    private int local(SSA.Value v, int r, int[] ints, int[] doubles) {
+        int[] file = v.type == SSA.DOUBLE ? doubles : ints;
+        if (file[r] < 0)
+            file[r] = newLocal(v.type);
+        return file[r];
+    }
+
+    private void load(SSA.Value v) {
+        if (!v.isConstant())
+            emit(Instruction.local(v.type == SSA.DOUBLE ? DLOAD : ILOAD, local[v.id]));
+        else if (v.type == SSA.DOUBLE)
+            emit(Instruction.ldc2(v.doubleConstant));
+        else
+            emit(Instruction.push(LDC, v.intConstant));
+    }
+
+    private void store(SSA.Value v) {
+        emit(Instruction.local(v.type == SSA.DOUBLE ? DSTORE : ISTORE, local[v.id]));
+    }
+
+    /* values */
+
+    private static final int[] INT_ARITHMETIC = { IADD, ISUB, IMUL, IDIV };
+    private static final int[] DOUBLE_ARITHMETIC = { DADD, DSUB, DMUL, DDIV };
+    // jumps on comparisons in the order lt gt le ge eq ne, and on their negations
+    private static final int[] INT_CONDITION = { IF_ICMPLT, IF_ICMPGT, IF_ICMPLE, IF_ICMPGE, IF_ICMPEQ, IF_ICMPNE };
+    private static final int[] INT_NEGATED = { IF_ICMPGE, IF_ICMPLE, IF_ICMPGT, IF_ICMPLT, IF_ICMPNE, IF_ICMPEQ };
+    private static final int[] CONDITION = { IFLT, IFGT, IFLE, IFGE, IFEQ, IFNE };
+    private static final int[] NEGATED = { IFGE, IFLE, IFGT, IFLT, IFNE, IFEQ };
+
+    private void compileValue(SSA.Value v) {
+        if (v.op == SSA.CALL) {
+            for (SSA.Value arg : v.args) {
+                load(arg);
+            }
+            emit(Instruction.invoke(INVOKESTATIC, descriptors.get(v.function)));
+        } else if (v.op <= SSA.DIV) {
+            load(v.args[0]);
+            load(v.args[1]);
+            boolean isDouble = v.type == SSA.DOUBLE;
+            emit(Instruction.op((isDouble ? DOUBLE_ARITHMETIC : INT_ARITHMETIC)[v.op - SSA.ADD]));
+        } else {
+            // a comparison as a value is 1 if it jumps and 0 otherwise
+            Label yes = new Label("C" + labels++), done = new Label("C" + labels++);
+            jump(v, false, yes);
+            emit(Instruction.op(ICONST_0));
+            emit(Instruction.jump(GOTO, done));
+            label(yes);
+            emit(Instruction.op(ICONST_1));
+            label(done);
+        }
+
+        if (v.type == SSA.VOID)
+            return;
+        if (uses[v.id] > 0)
+            store(v);
+        else
+            emit(Instruction.op(v.type == SSA.DOUBLE ? POP2 : POP));
+    }
+
+    // jumps to target if the comparison v holds, or if it doesn't when negated
+    private void jump(SSA.Value v, boolean negate, Label target) {
+        SSA.Value a = v.args[0], b = v.args[1];
+        int c = v.op - SSA.LT;
+        load(a);
+        load(b);
+        if (a.type == SSA.DOUBLE) {
+            // dcmpg makes NaN greater and dcmpl less, so that < and > are false for it
+            emit(Instruction.op(v.op == SSA.LT || v.op == SSA.LE ? DCMPG : DCMPL));
+            emit(Instruction.jump((negate ? NEGATED : CONDITION)[c], target));
+        } else {
+            emit(Instruction.jump((negate ? INT_NEGATED : INT_CONDITION)[c], target));
+        }
+    }
+
+    // the phis of to take their arguments from b all at once, but for those
+    // already in the local of their phi
+    private void copyPhis(SSA.Block b, SSA.Block to) {
+        int k = to.preds.indexOf(b);
+        ArrayList<SSA.Value> copied = new ArrayList<SSA.Value>();
+        for (SSA.Value phi : to.phis) {
+            SSA.Value arg = phi.args[k];
+            if (arg.isConstant() || local[arg.id] != local[phi.id]) {
+                load(arg);
+                copied.add(phi);
+            }
+        }
+        for (int i = copied.size() - 1; i >= 0; i--) {
+            store(copied.get(i));
+        }
+    }
+}